@@ -1,9 +1,13 @@
 /**
- * Bank account.
+ * Account ID and balance, as read from a snapshot, an archive or the wire.
+ * Live balances are kept and updated by {@link AccountStore}, so an account
+ * never changes once created.
  */
 public class Account {
+    public static final long INITIAL_BALANCE = 500;
+
     private final String accountId;
-    private volatile int balance;
+    private final long balance;
 
     /**
      * Create an account with an initial balance of 500.
@@ -11,8 +15,7 @@ public class Account {
      * @param accountId ID of the account to create
      */
     public Account(String accountId) {
-        this.accountId = accountId;
-        this.balance = 500;
+        this(accountId, INITIAL_BALANCE);
     }
 
     /**
@@ -21,29 +24,11 @@ public class Account {
      * @param accountId ID of the account to create
      * @param balance   balance of this account
      */
-    public Account(String accountId, int balance) {
+    public Account(String accountId, long balance) {
         this.accountId = accountId;
         this.balance = balance;
     }
 
-    /**
-     * Deposit money into the account.
-     *
-     * @param amount amount to deposit
-     */
-    public synchronized void deposit(int amount) {
-        balance += amount;
-    }
-
-    /**
-     * Withdraw money from the account.
-     *
-     * @param amount amount to withdraw
-     */
-    public synchronized void withdraw(int amount) {
-        balance -= amount;
-    }
-
     /**
      * Retrieve the ID of the account.
      *
@@ -58,7 +43,7 @@ public class Account {
      *
      * @return the balance of the account
      */
-    public synchronized int getBalance() {
+    public long getBalance() {
         return balance;
     }
 
@@ -68,7 +53,7 @@ public class Account {
         int result = 1;
         result = prime * result +
             ((accountId == null) ? 0 : accountId.hashCode());
-        result = prime * result + balance;
+        result = prime * result + (int) (balance ^ (balance >>> 32));
         return result;
     }
 
@@ -0,0 +1,414 @@
+import java.util.AbstractList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Balances of the local accounts of a bank, without an object per account.
+ *
+ * <p>
+ * Account IDs are interned to dense indices in the order the accounts are
+ * opened, and found through an open addressing table of those indices.
+ * Balances are kept in chunks of primitive longs. Opening accounts only ever
+ * adds chunks, so lookups and balance updates never block and are never lost
+ * to a resize. Opening accounts is serialised.
+ *
+ * <p>
+ * Snapshots are taken by pinning a {@link Version}, which costs the same no
+ * matter how many accounts there are. Every account records the epoch in
+ * which it was last written. The first write to an account after a version
+ * is pinned saves the old balance into that version before changing it, so
+ * the version can be read out later while writers carry on.
+ */
+public class AccountStore {
+    private static final int CHUNK_BITS = 14;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int INITIAL_TABLE_SIZE = 64;
+
+    private volatile String[][] idChunks = new String[0][];
+    private volatile AtomicLongArray[] balanceChunks = new AtomicLongArray[0];
+    private volatile AtomicLongArray[] versionChunks = new AtomicLongArray[0];
+    private volatile AtomicIntegerArray table =
+        new AtomicIntegerArray(INITIAL_TABLE_SIZE);
+    private volatile int size;
+    private final ConcurrentHashMap<Integer, LongAdder> contended =
+        new ConcurrentHashMap<>();
+    private volatile boolean hasContended;
+    private volatile long epoch = 1;
+    private final CopyOnWriteArrayList<Version> pinned =
+        new CopyOnWriteArrayList<>();
+
+    /**
+     * Open an account, or reset its balance if it is already open.
+     *
+     * @param accountId ID of the account
+     * @param balance   initial balance of the account
+     * @param contended true if the account is expected to be updated by many
+     *                  threads at once
+     * @return index of the account
+     */
+    public synchronized int open(
+            String accountId,
+            long balance,
+            boolean contended) {
+        int index = indexOf(accountId);
+        boolean added = index < 0;
+        if (added) {
+            index = size;
+            ensureChunk(index);
+            idChunks[index >>> CHUNK_BITS][index & CHUNK_MASK] = accountId;
+        } else {
+            prepareWrite(index);
+        }
+        versionChunks[index >>> CHUNK_BITS].set(index & CHUNK_MASK, epoch);
+
+        if (contended) {
+            LongAdder cells = new LongAdder();
+            cells.add(balance);
+            this.contended.put(index, cells);
+            hasContended = true;
+        } else {
+            this.contended.remove(index);
+            balanceChunks[index >>> CHUNK_BITS]
+                    .set(index & CHUNK_MASK, balance);
+        }
+
+        if (added) {
+            if ((index + 1) * 2 > table.length()) {
+                table = rehash(table.length() * 2, index);
+            }
+            insert(table, accountId, index);
+            size = index + 1;
+        }
+        return index;
+    }
+
+    /**
+     * Find the index of an account.
+     *
+     * @param accountId ID of the account
+     * @return index of the account, or -1 if it is not open
+     */
+    public int indexOf(String accountId) {
+        AtomicIntegerArray slots = table;
+        int mask = slots.length() - 1;
+        for (int slot = hash(accountId) & mask;; slot = (slot + 1) & mask) {
+            int entry = slots.get(slot);
+            if (entry == 0) {
+                return -1;
+            }
+            if (getAccountId(entry - 1).equals(accountId)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    /**
+     * Check whether an account is open.
+     *
+     * @param accountId ID of the account
+     * @return true if the account is open
+     */
+    public boolean contains(String accountId) {
+        return indexOf(accountId) >= 0;
+    }
+
+    /**
+     * Add to the balance of an account. Negative amounts withdraw.
+     *
+     * @param index  index of the account
+     * @param amount amount to add
+     */
+    public void add(int index, long amount) {
+        prepareWrite(index);
+        if (hasContended) {
+            LongAdder cells = contended.get(index);
+            if (cells != null) {
+                cells.add(amount);
+                return;
+            }
+        }
+        balanceChunks[index >>> CHUNK_BITS]
+                .getAndAdd(index & CHUNK_MASK, amount);
+    }
+
+    /**
+     * Retrieve the balance of an account.
+     *
+     * @param index index of the account
+     * @return the balance of the account
+     */
+    public long getBalance(int index) {
+        if (hasContended) {
+            LongAdder cells = contended.get(index);
+            if (cells != null) {
+                return cells.sum();
+            }
+        }
+        return balanceChunks[index >>> CHUNK_BITS].get(index & CHUNK_MASK);
+    }
+
+    /**
+     * Check whether an account was opened as contended.
+     *
+     * @param index index of the account
+     * @return true if the account is expected to be updated by many threads
+     *         at once
+     */
+    public boolean isContended(int index) {
+        return hasContended && contended.containsKey(index);
+    }
+
+    /**
+     * Retrieve the ID of an account.
+     *
+     * @param index index of the account
+     * @return the ID of the account
+     */
+    public String getAccountId(int index) {
+        return idChunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    /**
+     * Retrieve the number of open accounts. Indices run from zero up to, but
+     * not including, this number.
+     *
+     * @return the number of open accounts
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Check whether an account has been written since a version was pinned.
+     * An account written since then and written back to the same balance
+     * still counts as changed.
+     *
+     * @param index index of the account
+     * @param epoch epoch of the version
+     * @return true if the account has been written in a later epoch
+     */
+    public boolean changedSince(int index, long epoch) {
+        return versionChunks[index >>> CHUNK_BITS]
+                .get(index & CHUNK_MASK) > epoch;
+    }
+
+    /**
+     * Pin the current balances of every open account. Must not run at the
+     * same time as {@link #add(int, long)}, the caller is expected to keep
+     * writers out for the duration of the call.
+     *
+     * @return the pinned version, to be released once read
+     */
+    public Version pin() {
+        Version version = new Version(epoch, size);
+        pinned.add(version);
+        epoch++;
+        return version;
+    }
+
+    /**
+     * Save the balance of an account into every pinned version which still
+     * needs it, if this is the first write to the account in this epoch.
+     * The balance is saved before the write, and saving never replaces a
+     * balance saved by a racing writer, so each version keeps the balance
+     * from before its epoch ended.
+     *
+     * @param index index of the account about to be written
+     */
+    private void prepareWrite(int index) {
+        AtomicLongArray versions = versionChunks[index >>> CHUNK_BITS];
+        int offset = index & CHUNK_MASK;
+        long current = epoch;
+        long written = versions.get(offset);
+        if (written == current) {
+            return;
+        }
+        if (!pinned.isEmpty()) {
+            long balance = getBalance(index);
+            for (Version version : pinned) {
+                if (version.epoch >= written && index < version.size) {
+                    version.preserved.putIfAbsent(index, balance);
+                }
+            }
+        }
+        versions.set(offset, current);
+    }
+
+    /**
+     * Retrieve the IDs of the accounts open at the time of the call, in index
+     * order. The list is a view and does not copy the IDs.
+     *
+     * @return the IDs of the open accounts
+     */
+    public List<String> getAccountIds() {
+        final int count = size;
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                if (index < 0 || index >= count) {
+                    throw new IndexOutOfBoundsException(
+                        String.valueOf(index));
+                }
+                return getAccountId(index);
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        };
+    }
+
+    /**
+     * Make sure the chunks holding an index exist.
+     *
+     * @param index index about to be used
+     */
+    private void ensureChunk(int index) {
+        int chunk = index >>> CHUNK_BITS;
+        if (chunk < idChunks.length) {
+            return;
+        }
+        String[][] ids = new String[chunk + 1][];
+        System.arraycopy(idChunks, 0, ids, 0, idChunks.length);
+        ids[chunk] = new String[CHUNK_SIZE];
+        AtomicLongArray[] balances = new AtomicLongArray[chunk + 1];
+        System.arraycopy(balanceChunks, 0, balances, 0, balanceChunks.length);
+        balances[chunk] = new AtomicLongArray(CHUNK_SIZE);
+        AtomicLongArray[] versions = new AtomicLongArray[chunk + 1];
+        System.arraycopy(versionChunks, 0, versions, 0, versionChunks.length);
+        versions[chunk] = new AtomicLongArray(CHUNK_SIZE);
+        idChunks = ids;
+        balanceChunks = balances;
+        versionChunks = versions;
+    }
+
+    /**
+     * Build a larger table holding every index below a limit.
+     *
+     * @param capacity number of slots in the new table
+     * @param limit    number of indices to copy
+     * @return the new table
+     */
+    private AtomicIntegerArray rehash(int capacity, int limit) {
+        AtomicIntegerArray slots = new AtomicIntegerArray(capacity);
+        for (int index = 0; index < limit; index++) {
+            insert(slots, getAccountId(index), index);
+        }
+        return slots;
+    }
+
+    /**
+     * Place an index in the first free slot after the hash of its ID.
+     *
+     * @param slots     the table
+     * @param accountId ID of the account
+     * @param index     index of the account
+     */
+    private static void insert(
+            AtomicIntegerArray slots,
+            String accountId,
+            int index) {
+        int mask = slots.length() - 1;
+        int slot = hash(accountId) & mask;
+        while (slots.get(slot) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots.set(slot, index + 1);
+    }
+
+    /**
+     * Spread the hash of an account ID over the low bits.
+     *
+     * @param accountId ID of the account
+     * @return the spread hash
+     */
+    private static int hash(String accountId) {
+        int hash = accountId.hashCode() * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Balances of the accounts as they were when the version was pinned.
+     */
+    public final class Version {
+        private final long epoch;
+        private final int size;
+        private final ConcurrentHashMap<Integer, Long> preserved =
+            new ConcurrentHashMap<>();
+
+        /**
+         * Pin the balances written up to and including an epoch.
+         *
+         * @param epoch last epoch whose writes are visible
+         * @param size  number of accounts open when pinned
+         */
+        private Version(long epoch, int size) {
+            this.epoch = epoch;
+            this.size = size;
+        }
+
+        /**
+         * Retrieve the epoch of the version.
+         *
+         * @return last epoch whose writes are visible
+         */
+        public long getEpoch() {
+            return epoch;
+        }
+
+        /**
+         * Retrieve the store the version was pinned from.
+         *
+         * @return the account store
+         */
+        public AccountStore getStore() {
+            return AccountStore.this;
+        }
+
+        /**
+         * Retrieve the number of accounts open when the version was pinned.
+         *
+         * @return the number of accounts
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Retrieve the ID of an account.
+         *
+         * @param index index of the account
+         * @return the ID of the account
+         */
+        public String getAccountId(int index) {
+            return AccountStore.this.getAccountId(index);
+        }
+
+        /**
+         * Retrieve the balance of an account when the version was pinned.
+         *
+         * @param index index of the account
+         * @return the balance of the account
+         */
+        public long getBalance(int index) {
+            // a writer saves the old balance before changing it, so check
+            // for a saved balance only after reading the live one
+            long balance = AccountStore.this.getBalance(index);
+            Long saved = preserved.get(index);
+            return saved != null ? saved : balance;
+        }
+
+        /**
+         * Stop saving balances for this version.
+         */
+        public void release() {
+            pinned.remove(this);
+        }
+    }
+}
@@ -1,25 +1,55 @@
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Class of bank system.
  */
 public class Bank implements Runnable {
-    private final ServerSocket serverSocket;
+    private static final int LOCK_STRIPES = 64;
+
+    private final Transport transport;
     private final UUID bankId;
+    private final BankConfig config;
     private final HashMap<String, RemoteBank> remoteAccounts = new HashMap<>();
-    private final HashMap<String, Account> localAccounts = new HashMap<>();
+    private final AccountStore localAccounts = new AccountStore();
     private final HashMap<UUID, RemoteBank> remoteBanks = new HashMap<>();
-    private final Set<Thread> remoteBankThreads = new HashSet<>();
+    private final Set<RemoteBank> connections = ConcurrentHashMap.newKeySet();
     private final ChandyLamport chandyLamportAlgorithm;
     private final MAlgorithm mAlgorithm;
+    private final LaiYang laiYang;
+    private final VectorClock vectorClock = new VectorClock();
+    private final OverheadMeter overheadMeter = new OverheadMeter();
+    private final SnapshotScheduler snapshotScheduler;
+    private final WriteAheadLog writeAheadLog;
+    private final Object checkpointLock = new Object();
+    // guarded by checkpointLock
+    private long lastCheckpointLsn = -1;
+    private final SnapshotArchive snapshotArchive;
+    private final SnapshotVerifier snapshotVerifier;
+    private final ReentrantReadWriteLock snapshotLock =
+        new ReentrantReadWriteLock();
+    private final ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES];
+    private final ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "bank-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
 
     /**
      * Initialise a bank.
@@ -29,10 +59,57 @@ public class Bank implements Runnable {
      * @throws IOException if unable to open socket
      */
     public Bank(UUID bankId, int port) throws IOException {
+        this(bankId, port, new BankConfig());
+    }
+
+    /**
+     * Initialise a bank with a specific configuration.
+     *
+     * @param bankId ID of the bank
+     * @param port   port to listen on
+     * @param config startup configuration of the bank
+     * @throws IOException if unable to open socket, to restore the local
+     *                     accounts from the write-ahead log or to open the
+     *                     snapshot archive
+     */
+    public Bank(UUID bankId, int port, BankConfig config) throws IOException {
         this.bankId = bankId;
-        serverSocket = new ServerSocket(port);
+        this.config = config;
+        if (config.getWalDirectory() != null) {
+            writeAheadLog = new WriteAheadLog(
+                config.getWalDirectory(),
+                config.getWalSegmentSize(),
+                config.getWalSyncPolicy());
+            writeAheadLog.replay(
+                localAccounts,
+                Checkpoint.load(config.getWalDirectory(), localAccounts));
+            writeAheadLog.start();
+        } else {
+            writeAheadLog = null;
+        }
+        if (config.getArchiveDirectory() != null) {
+            snapshotArchive = new SnapshotArchive(config.getArchiveDirectory());
+        } else {
+            snapshotArchive = null;
+        }
+        if (config.isVerifySnapshots()) {
+            snapshotVerifier = new SnapshotVerifier(
+                config.getExpectedIssuance());
+        } else {
+            snapshotVerifier = null;
+        }
+        if (config.getTransportMode() == TransportMode.NIO) {
+            transport = new NioTransport(port, config);
+        } else {
+            transport = new BlockingTransport(port, config);
+        }
         chandyLamportAlgorithm = new ChandyLamport(this);
         mAlgorithm = new MAlgorithm(this);
+        laiYang = new LaiYang(this);
+        snapshotScheduler = new SnapshotScheduler(this);
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock();
+        }
     }
 
     /**
@@ -44,11 +121,26 @@ public class Bank implements Runnable {
      *
      * @throws IOException if unable to start algorithm
      */
-    public void startChandyLamport() throws IOException {
+    public synchronized void startChandyLamport() throws IOException {
+        // no message may be received between recording the state and
+        // starting to record the channels
         Snapshot snapshot = takeSnapshot();
         chandyLamportAlgorithm.startAlgorithm(snapshot);
     }
 
+    /**
+     * Start a Chandy-Lamport snapshot whose result is handed back rather
+     * than printed.
+     *
+     * @return a future completed with the collected snapshot, or
+     *         exceptionally if not every remote bank supports light markers
+     * @throws IOException if unable to send markers
+     */
+    public synchronized CompletableFuture<GlobalSnapshot> initChandyLamport()
+            throws IOException {
+        return chandyLamportAlgorithm.initSnapshot(takeSnapshot());
+    }
+
     /**
      * Method to handle all chandy lamport messages - usage can be found in
      * run() method of RemoteBank.
@@ -67,6 +159,69 @@ public class Bank implements Runnable {
             currentState);
     }
 
+    /**
+     * Handle a Chandy-Lamport marker which carries only the ID of its
+     * snapshot.
+     *
+     * @param remoteBankId ID of the remote bank
+     * @param initiatorId  ID of the initiator of the snapshot
+     * @param epoch        number of the snapshot at the initiator
+     * @throws IOException if unable to send markers or the local state
+     */
+    public synchronized void handleChandyLamportMarker(
+            UUID remoteBankId,
+            UUID initiatorId,
+            long epoch) throws IOException {
+        chandyLamportAlgorithm.handleLightMarker(
+            remoteBankId,
+            initiatorId,
+            epoch);
+    }
+
+    /**
+     * Collect the state a remote bank recorded for a Chandy-Lamport
+     * snapshot started by this bank.
+     *
+     * @param remoteBankId ID of the remote bank
+     * @param epoch        number of the snapshot
+     * @param state        recorded state of the remote bank
+     * @throws IOException if unable to read back the channel states
+     */
+    public synchronized void receiveChandyLamportState(
+            UUID remoteBankId,
+            long epoch,
+            Snapshot state) throws IOException {
+        chandyLamportAlgorithm.receiveState(remoteBankId, epoch, state);
+    }
+
+    /**
+     * Collect part of the state a remote bank recorded for one of its
+     * channels, for a Chandy-Lamport snapshot started by this bank.
+     *
+     * @param remoteBankId ID of the remote bank
+     * @param epoch        number of the snapshot
+     * @param chunk        message holding the recorded updates
+     * @throws IOException if unable to spill the channel state to disk
+     */
+    public synchronized void receiveChandyLamportChannel(
+            UUID remoteBankId,
+            long epoch,
+            Message chunk) throws IOException {
+        chandyLamportAlgorithm.receiveChannelState(remoteBankId, epoch, chunk);
+    }
+
+    /**
+     * Record a received message in the state of its channel, if a
+     * Chandy-Lamport snapshot is recording the channel.
+     *
+     * @param message message received from a remote bank
+     * @throws IOException if unable to spill the channel state to disk
+     */
+    public synchronized void recordChandyLamportMessage(Message message)
+            throws IOException {
+        chandyLamportAlgorithm.recordMessage(message);
+    }
+
     /**
      * Method to erase the snapshot stored in local branch.
      */
@@ -82,10 +237,12 @@ public class Bank implements Runnable {
      * @throws IOException if unable to connect to the remote bank
      */
     public void connect(String hostname, int port) throws IOException {
-        RemoteBank remoteBank = new RemoteBank(hostname, port, this);
-        Thread remoteBankThread = new Thread(remoteBank);
-        remoteBankThread.start();
-        remoteBankThreads.add(remoteBankThread);
+        RemoteBank remoteBank = new RemoteBank(
+            transport.connect(hostname, port),
+            this);
+        connections.add(remoteBank);
+        remoteBank.start();
+        remoteBank.register();
     }
 
     /**
@@ -95,7 +252,40 @@ public class Bank implements Runnable {
      * @throws IOException if unable to notify remote banks about new account
      */
     public void open(String accountId) throws IOException {
-        localAccounts.put(accountId, new Account(accountId));
+        open(accountId, false);
+    }
+
+    /**
+     * Open a local account, optionally suited to many threads updating it at
+     * once, such as an account collecting fees.
+     *
+     * @param accountId ID of the account
+     * @param contended true if the account is expected to be updated by many
+     *                  threads at once
+     * @throws IOException if unable to notify remote banks about new account
+     */
+    public void open(String accountId, boolean contended) throws IOException {
+        // updates are kept out so that the log holds the opening in the
+        // same place relative to them as it happened
+        long lsn = 0;
+        synchronized (this) {
+            snapshotLock.writeLock().lock();
+            try {
+                if (writeAheadLog != null) {
+                    lsn = writeAheadLog.appendOpen(
+                        accountId,
+                        Account.INITIAL_BALANCE,
+                        contended);
+                }
+                localAccounts.open(
+                    accountId,
+                    Account.INITIAL_BALANCE,
+                    contended);
+            } finally {
+                snapshotLock.writeLock().unlock();
+            }
+        }
+        awaitLog(lsn);
         for (RemoteBank remoteBank : remoteBanks.values()) {
             remoteBank.register();
         }
@@ -118,6 +308,13 @@ public class Bank implements Runnable {
      */
     public synchronized void removeBank(UUID bankId) {
         remoteBanks.remove(bankId);
+        try {
+            chandyLamportAlgorithm.removeBank(bankId);
+            laiYang.removeBank(bankId);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.print("> ");
+        }
     }
 
     /**
@@ -150,17 +347,52 @@ public class Bank implements Runnable {
      * @throws UnknownAccountException if there is no known account with ID
      *                                 matching accountId
      */
-    public synchronized void deposit(String accountId, int amount)
+    public void deposit(String accountId, long amount)
             throws IOException,
             UnknownAccountException {
-        if (localAccounts.containsKey(accountId)) {
-            localAccounts.get(accountId).deposit(amount);
-        } else if (remoteAccounts.containsKey(accountId)) {
+        int index = localAccounts.indexOf(accountId);
+        long lsn;
+        if (index >= 0 && isStriped()) {
+            // a single account is updated atomically without any stripe
+            snapshotLock.readLock().lock();
+            try {
+                lsn = apply(index, amount);
+            } finally {
+                snapshotLock.readLock().unlock();
+            }
+            awaitLog(lsn);
+            return;
+        }
+        synchronized (this) {
+            lsn = depositGlobal(accountId, amount);
+        }
+        awaitLog(lsn);
+    }
+
+    /**
+     * Deposit to an account while holding the bank's monitor.
+     *
+     * @param accountId ID of the account
+     * @param amount    amount to be deposited
+     * @return the LSN just past the logged update, or 0 if nothing was
+     *         logged here
+     * @throws IOException             if unable to perform action
+     * @throws UnknownAccountException if there is no known account with ID
+     *                                 matching accountId
+     */
+    private long depositGlobal(String accountId, long amount)
+            throws IOException,
+            UnknownAccountException {
+        int index = localAccounts.indexOf(accountId);
+        if (index >= 0) {
+            return apply(index, amount);
+        }
+        if (remoteAccounts.containsKey(accountId)) {
             remoteAccounts.get(accountId).deposit(accountId, amount);
-        } else {
-            throw new UnknownAccountException(
-                String.format("Unknown account %s", accountId));
+            return 0;
         }
+        throw new UnknownAccountException(
+            String.format("Unknown account %s", accountId));
     }
 
     /**
@@ -172,17 +404,188 @@ public class Bank implements Runnable {
      * @throws UnknownAccountException if there is no known account with ID
      *                                 matching accountId
      */
-    public synchronized void withdraw(String accountId, int amount)
+    public void withdraw(String accountId, long amount)
             throws IOException,
             UnknownAccountException {
-        if (localAccounts.containsKey(accountId)) {
-            localAccounts.get(accountId).withdraw(amount);
-        } else if (remoteAccounts.containsKey(accountId)) {
+        int index = localAccounts.indexOf(accountId);
+        long lsn;
+        if (index >= 0 && isStriped()) {
+            // a single account is updated atomically without any stripe
+            snapshotLock.readLock().lock();
+            try {
+                lsn = apply(index, -amount);
+            } finally {
+                snapshotLock.readLock().unlock();
+            }
+            awaitLog(lsn);
+            return;
+        }
+        synchronized (this) {
+            lsn = withdrawGlobal(accountId, amount);
+        }
+        awaitLog(lsn);
+    }
+
+    /**
+     * Withdraw from an account while holding the bank's monitor.
+     *
+     * @param accountId ID of the account
+     * @param amount    amount to be withdrawn
+     * @return the LSN just past the logged update, or 0 if nothing was
+     *         logged here
+     * @throws IOException             if unable to perform action
+     * @throws UnknownAccountException if there is no known account with ID
+     *                                 matching accountId
+     */
+    private long withdrawGlobal(String accountId, long amount)
+            throws IOException,
+            UnknownAccountException {
+        int index = localAccounts.indexOf(accountId);
+        if (index >= 0) {
+            return apply(index, -amount);
+        }
+        if (remoteAccounts.containsKey(accountId)) {
             remoteAccounts.get(accountId).withdraw(accountId, amount);
-        } else {
-            throw new UnknownAccountException(
-                String.format("Unknown account %s", accountId));
+            return 0;
         }
+        throw new UnknownAccountException(
+            String.format("Unknown account %s", accountId));
+    }
+
+    /**
+     * Deposit to many accounts at once. Accounts owned by the same remote
+     * bank are sent to it in a single message.
+     *
+     * @param amounts amount to be deposited, indexed by account ID
+     * @throws IOException             if unable to perform action
+     * @throws UnknownAccountException if there is no known account with one of
+     *                                 the IDs, nothing is deposited
+     */
+    public void depositAll(Map<String, Long> amounts)
+            throws IOException,
+            UnknownAccountException {
+        long lsn;
+        if (isStriped() && isLocal(amounts.keySet())) {
+            ReentrantLock[] locks = lockAccounts(amounts.keySet());
+            try {
+                lsn = applyAll(amounts, false);
+            } finally {
+                unlockAccounts(locks);
+            }
+            awaitLog(lsn);
+            return;
+        }
+        synchronized (this) {
+            lsn = depositAllGlobal(amounts);
+        }
+        awaitLog(lsn);
+    }
+
+    /**
+     * Deposit to many accounts while holding the bank's monitor.
+     *
+     * @param amounts amount to be deposited, indexed by account ID
+     * @return the LSN just past the logged update, or 0 if nothing was
+     *         logged here
+     * @throws IOException             if unable to perform action
+     * @throws UnknownAccountException if there is no known account with one of
+     *                                 the IDs
+     */
+    private long depositAllGlobal(Map<String, Long> amounts)
+            throws IOException,
+            UnknownAccountException {
+        long lsn = 0;
+        for (Map.Entry<RemoteBank, Map<String, Long>> batch : groupByOwner(
+                amounts).entrySet()) {
+            if (batch.getKey() == null) {
+                lsn = applyAll(batch.getValue(), false);
+            } else {
+                batch.getKey().depositAll(batch.getValue());
+            }
+        }
+        return lsn;
+    }
+
+    /**
+     * Withdraw from many accounts at once. Accounts owned by the same remote
+     * bank are sent to it in a single message.
+     *
+     * @param amounts amount to be withdrawn, indexed by account ID
+     * @throws IOException             if unable to perform action
+     * @throws UnknownAccountException if there is no known account with one of
+     *                                 the IDs, nothing is withdrawn
+     */
+    public void withdrawAll(Map<String, Long> amounts)
+            throws IOException,
+            UnknownAccountException {
+        long lsn;
+        if (isStriped() && isLocal(amounts.keySet())) {
+            ReentrantLock[] locks = lockAccounts(amounts.keySet());
+            try {
+                lsn = applyAll(amounts, true);
+            } finally {
+                unlockAccounts(locks);
+            }
+            awaitLog(lsn);
+            return;
+        }
+        synchronized (this) {
+            lsn = withdrawAllGlobal(amounts);
+        }
+        awaitLog(lsn);
+    }
+
+    /**
+     * Withdraw from many accounts while holding the bank's monitor.
+     *
+     * @param amounts amount to be withdrawn, indexed by account ID
+     * @return the LSN just past the logged update, or 0 if nothing was
+     *         logged here
+     * @throws IOException             if unable to perform action
+     * @throws UnknownAccountException if there is no known account with one of
+     *                                 the IDs
+     */
+    private long withdrawAllGlobal(Map<String, Long> amounts)
+            throws IOException,
+            UnknownAccountException {
+        long lsn = 0;
+        for (Map.Entry<RemoteBank, Map<String, Long>> batch : groupByOwner(
+                amounts).entrySet()) {
+            if (batch.getKey() == null) {
+                lsn = applyAll(batch.getValue(), true);
+            } else {
+                batch.getKey().withdrawAll(batch.getValue());
+            }
+        }
+        return lsn;
+    }
+
+    /**
+     * Split amounts by the bank which owns each account. Local accounts are
+     * grouped under a null key.
+     *
+     * @param amounts amounts indexed by account ID
+     * @return amounts indexed by owning bank, then by account ID
+     * @throws UnknownAccountException if there is no known account with one of
+     *                                 the IDs
+     */
+    private Map<RemoteBank, Map<String, Long>> groupByOwner(
+            Map<String, Long> amounts) throws UnknownAccountException {
+        Map<RemoteBank, Map<String, Long>> batches = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : amounts.entrySet()) {
+            String accountId = entry.getKey();
+            RemoteBank owner = null;
+            if (!localAccounts.contains(accountId)) {
+                owner = remoteAccounts.get(accountId);
+                if (owner == null) {
+                    throw new UnknownAccountException(
+                        String.format("Unknown account %s", accountId));
+                }
+            }
+            batches.computeIfAbsent(owner, key -> new LinkedHashMap<>())
+                    .put(accountId, entry.getValue());
+        }
+        return batches;
     }
 
     /**
@@ -195,13 +598,207 @@ public class Bank implements Runnable {
      * @throws UnknownAccountException if there is no known account with ID
      *                                 matching accountId
      */
-    public synchronized void transfer(
+    public void transfer(
             String sourceId,
             String destId,
-            int amount) throws IOException,
+            long amount) throws IOException,
             UnknownAccountException {
-        withdraw(sourceId, amount);
-        deposit(destId, amount);
+        long lsn;
+        if (isStriped() && isLocal(Arrays.asList(sourceId, destId))) {
+            ReentrantLock[] locks = lockAccounts(
+                Arrays.asList(sourceId, destId));
+            try {
+                lsn = applyTransfer(sourceId, destId, amount);
+            } finally {
+                unlockAccounts(locks);
+            }
+            awaitLog(lsn);
+            return;
+        }
+        synchronized (this) {
+            if (isLocal(Arrays.asList(sourceId, destId))) {
+                lsn = applyTransfer(sourceId, destId, amount);
+            } else {
+                lsn = withdrawGlobal(sourceId, amount);
+                lsn = Math.max(lsn, depositGlobal(destId, amount));
+            }
+        }
+        awaitLog(lsn);
+    }
+
+    /**
+     * Log an update to a local account and apply it. Callers must keep
+     * snapshots out.
+     *
+     * @param index  index of the account
+     * @param amount amount to add, negative to withdraw
+     * @return the LSN just past the logged update, or 0 if there is no log
+     * @throws IOException if unable to append to the write-ahead log
+     */
+    private long apply(int index, long amount) throws IOException {
+        long lsn = 0;
+        if (writeAheadLog != null) {
+            lsn = writeAheadLog.appendUpdate(
+                new int[] {index},
+                new long[] {amount});
+        }
+        localAccounts.add(index, amount);
+        return lsn;
+    }
+
+    /**
+     * Log a transfer between local accounts as a single update and apply
+     * it. Callers must keep snapshots out.
+     *
+     * @param sourceId ID of the source account
+     * @param destId   ID of the destination account
+     * @param amount   amount to be transferred
+     * @return the LSN just past the logged update, or 0 if there is no log
+     * @throws IOException if unable to append to the write-ahead log
+     */
+    private long applyTransfer(String sourceId, String destId, long amount)
+            throws IOException {
+        return applyAll(
+            new int[] {
+                localAccounts.indexOf(sourceId),
+                localAccounts.indexOf(destId)},
+            new long[] {-amount, amount});
+    }
+
+    /**
+     * Log updates to many local accounts as a single update and apply them.
+     * Callers must keep snapshots out.
+     *
+     * @param amounts  amounts indexed by account ID
+     * @param withdraw true if the amounts are withdrawn
+     * @return the LSN just past the logged update, or 0 if there is no log
+     * @throws IOException if unable to append to the write-ahead log
+     */
+    private long applyAll(Map<String, Long> amounts, boolean withdraw)
+            throws IOException {
+        int[] indices = new int[amounts.size()];
+        long[] values = new long[amounts.size()];
+        int count = 0;
+        for (Map.Entry<String, Long> entry : amounts.entrySet()) {
+            indices[count] = localAccounts.indexOf(entry.getKey());
+            values[count++] = withdraw ? -entry.getValue() : entry.getValue();
+        }
+        return applyAll(indices, values);
+    }
+
+    /**
+     * Log updates to many local accounts as a single update and apply them.
+     * Callers must keep snapshots out.
+     *
+     * @param indices indices of the accounts
+     * @param amounts amount added to each account, negative to withdraw
+     * @return the LSN just past the logged update, or 0 if there is no log
+     * @throws IOException if unable to append to the write-ahead log
+     */
+    private long applyAll(int[] indices, long[] amounts) throws IOException {
+        long lsn = 0;
+        if (writeAheadLog != null) {
+            lsn = writeAheadLog.appendUpdate(indices, amounts);
+        }
+        for (int i = 0; i < indices.length; i++) {
+            localAccounts.add(indices[i], amounts[i]);
+        }
+        return lsn;
+    }
+
+    /**
+     * Wait for the write-ahead log to be durable up to the record of an
+     * operation, if the sync policy makes operations wait. Updates made on
+     * behalf of a remote bank hold the bank's monitor or the snapshot lock
+     * and do not wait, nor do updates nested in another operation, which
+     * waits once it is done.
+     *
+     * @param lsn the LSN just past the record of the operation
+     * @throws IOException if interrupted while waiting
+     */
+    private void awaitLog(long lsn) throws IOException {
+        if (writeAheadLog == null ||
+            Thread.holdsLock(this) ||
+            snapshotLock.getReadHoldCount() > 0) {
+            return;
+        }
+        writeAheadLog.commit(lsn);
+    }
+
+    /**
+     * Check whether operations on local accounts lock only those accounts.
+     *
+     * @return true if the bank uses striped locking
+     */
+    public boolean isStriped() {
+        return config.getLockMode() == LockMode.STRIPED;
+    }
+
+    /**
+     * Check whether every account is owned by this bank.
+     *
+     * @param accountIds IDs of the accounts
+     * @return true if all of the accounts are local
+     */
+    public boolean isLocal(Collection<String> accountIds) {
+        for (String accountId : accountIds) {
+            if (!localAccounts.contains(accountId)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Retrieve the lock which keeps snapshots from observing a partially
+     * applied operation. Operations on local accounts share it, snapshots
+     * hold it exclusively. A thread holding the bank's monitor may acquire
+     * it, but not the other way around.
+     *
+     * @return the snapshot lock
+     */
+    public ReentrantReadWriteLock getSnapshotLock() {
+        return snapshotLock;
+    }
+
+    /**
+     * Lock the stripes guarding some local accounts. Stripes are always
+     * locked in index order so that concurrent transfers cannot deadlock.
+     *
+     * @param accountIds IDs of the accounts
+     * @return the stripes which were locked
+     */
+    private ReentrantLock[] lockAccounts(Collection<String> accountIds) {
+        int[] indices = new int[accountIds.size()];
+        int count = 0;
+        for (String accountId : accountIds) {
+            int hash = accountId.hashCode();
+            indices[count++] = (hash ^ (hash >>> 16)) & (stripes.length - 1);
+        }
+        Arrays.sort(indices);
+
+        snapshotLock.readLock().lock();
+        ReentrantLock[] locks = new ReentrantLock[count];
+        int locked = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || indices[i] != indices[i - 1]) {
+                locks[locked] = stripes[indices[i]];
+                locks[locked++].lock();
+            }
+        }
+        return Arrays.copyOf(locks, locked);
+    }
+
+    /**
+     * Unlock stripes locked by {@link #lockAccounts(Collection)}.
+     *
+     * @param locks the stripes which were locked
+     */
+    private void unlockAccounts(ReentrantLock[] locks) {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            locks[i].unlock();
+        }
+        snapshotLock.readLock().unlock();
     }
 
     /**
@@ -211,11 +808,10 @@ public class Bank implements Runnable {
      * @throws IOException if unable to perform action
      */
     public void printBalance(String accountId) throws IOException {
-        if (localAccounts.containsKey(accountId)) {
+        int index = localAccounts.indexOf(accountId);
+        if (index >= 0) {
             System.out.println(
-                String.format(
-                    "$%d",
-                    localAccounts.get(accountId).getBalance()));
+                String.format("$%d", localAccounts.getBalance(index)));
         } else if (remoteAccounts.containsKey(accountId)) {
             remoteAccounts.get(accountId).printBalance(accountId);
         }
@@ -227,8 +823,8 @@ public class Bank implements Runnable {
      * @param accountId ID of the account
      * @return balance of the account
      */
-    public int getBalance(String accountId) {
-        return localAccounts.get(accountId).getBalance();
+    public long getBalance(String accountId) {
+        return localAccounts.getBalance(localAccounts.indexOf(accountId));
     }
 
     /**
@@ -236,8 +832,8 @@ public class Bank implements Runnable {
      *
      * @return the IDs of all local accounts
      */
-    public Set<String> getLocalAccountIds() {
-        return localAccounts.keySet();
+    public List<String> getLocalAccountIds() {
+        return localAccounts.getAccountIds();
     }
 
     /**
@@ -249,25 +845,70 @@ public class Bank implements Runnable {
         return remoteAccounts.keySet();
     }
 
+    /**
+     * Forget a connection to a remote bank once it has closed.
+     *
+     * @param remoteBank the remote bank whose connection closed
+     */
+    public void removeConnection(RemoteBank remoteBank) {
+        connections.remove(remoteBank);
+    }
+
     @Override
     public void run() {
-        Socket socket;
+        snapshotScheduler.start();
+        long checkpointInterval = config.getCheckpointIntervalMillis();
+        if (writeAheadLog != null && checkpointInterval > 0) {
+            scheduler.scheduleWithFixedDelay(
+                () -> {
+                    try {
+                        checkpoint();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        System.out.print("> ");
+                    }
+                },
+                checkpointInterval,
+                checkpointInterval,
+                TimeUnit.MILLISECONDS);
+        }
         try {
-            while ((socket = serverSocket.accept()) != null &&
-                !Thread.interrupted()) {
-                RemoteBank remoteBank;
-                remoteBank = new RemoteBank(socket, this);
-                Thread remoteBankThread = new Thread(remoteBank);
-                remoteBankThread.start();
-                remoteBankThreads.add(remoteBankThread);
+            while (!Thread.interrupted()) {
+                RemoteBank remoteBank = new RemoteBank(
+                    transport.accept(),
+                    this);
+                connections.add(remoteBank);
+                remoteBank.start();
             }
         } catch (IOException e) {
             e.printStackTrace();
             System.out.print("> ");
         }
-        remoteBankThreads.forEach(remoteBankThread -> {
-            remoteBankThread.interrupt();
-        });
+        try {
+            transport.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.print("> ");
+        }
+        scheduler.shutdownNow();
+        if (writeAheadLog != null) {
+            try {
+                // restart from the checkpoint without replaying the log
+                checkpoint();
+                writeAheadLog.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.print("> ");
+            }
+        }
+        if (snapshotArchive != null) {
+            try {
+                snapshotArchive.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.print("> ");
+            }
+        }
     }
 
     /**
@@ -280,11 +921,30 @@ public class Bank implements Runnable {
     }
 
     /**
-     * Retrieve all localAccounts.
+     * Retrieve the vector clock of the bank. Callers must hold the bank's
+     * monitor while using it.
+     *
+     * @return the vector clock of the bank
+     */
+    public VectorClock getVectorClock() {
+        return vectorClock;
+    }
+
+    /**
+     * Retrieve the startup configuration of the bank.
+     *
+     * @return the configuration of the bank
+     */
+    public BankConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Retrieve the store holding the local accounts.
      *
-     * @return all local accounts indexed by ID
+     * @return the local accounts
      */
-    public HashMap<String, Account> getLocalAccounts() {
+    public AccountStore getLocalAccounts() {
         return localAccounts;
     }
 
@@ -298,29 +958,144 @@ public class Bank implements Runnable {
     }
 
     /**
-     * Make a clone of the local accounts and form a snapshot.
+     * Pin the balances of the local accounts and form a snapshot. Only the
+     * pinning happens while holding the lock, the balances are read out
+     * afterwards.
      *
      * @return a snapshot containing info of local accounts
      */
     public synchronized Snapshot takeSnapshot() {
-        ArrayList<Account> clone = new ArrayList<>();
-        for (Account account : localAccounts.values()) {
-            clone.add(
-                new Account(account.getAccountId(), account.getBalance()));
-        }
-        Snapshot snapshot = new Snapshot(getBankId(), clone);
+        Snapshot snapshot = new Snapshot(
+            getBankId(),
+            pinLocalAccounts().getVersion());
+        // read the balances out away from the message path, writers stop
+        // saving old balances once it is done
+        ForkJoinPool.commonPool().execute(snapshot::materialize);
         return snapshot;
     }
 
+    /**
+     * Pin the balances of the local accounts along with the end of the
+     * write-ahead log. Updates are logged while snapshots are kept out, so
+     * the balances reflect exactly the records before the end.
+     *
+     * @return the pinned balances, to be released once read
+     */
+    private synchronized Checkpoint pinLocalAccounts() {
+        snapshotLock.writeLock().lock();
+        long lockedAt = System.nanoTime();
+        try {
+            return new Checkpoint(
+                localAccounts.pin(),
+                writeAheadLog != null ? writeAheadLog.getEnd() : 0);
+        } finally {
+            overheadMeter.lockHeld(System.nanoTime() - lockedAt);
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Write a checkpoint of the local accounts and delete the log segments
+     * no longer needed to restore them. The balances are pinned as for a
+     * snapshot and written out without holding any lock. Nothing is written
+     * if the log has not grown since the last checkpoint.
+     *
+     * @return false if no write-ahead log is kept
+     * @throws IOException if unable to write the checkpoint or delete the
+     *                     segments
+     */
+    public boolean checkpoint() throws IOException {
+        if (writeAheadLog == null) {
+            return false;
+        }
+        synchronized (checkpointLock) {
+            Checkpoint checkpoint = pinLocalAccounts();
+            if (checkpoint.getLsn() == lastCheckpointLsn) {
+                checkpoint.getVersion().release();
+                return true;
+            }
+            writeAheadLog.truncate(
+                checkpoint.write(config.getWalDirectory()));
+            lastCheckpointLsn = checkpoint.getLsn();
+        }
+        return true;
+    }
+
+    /**
+     * Hand a completed global snapshot to whoever asked for it, after
+     * appending it to the snapshot archive if one is kept and verifying it
+     * if snapshots are verified. Everything happens away from the thread
+     * delivering messages, and violations are printed as they are found. A
+     * snapshot nobody is waiting for any more, because its round was given
+     * up on, is closed.
+     *
+     * @param result         completed with the snapshot once archived, or
+     *                       null if nobody is waiting for it
+     * @param globalSnapshot the completed snapshot
+     */
+    public void completeSnapshot(
+            CompletableFuture<GlobalSnapshot> result,
+            GlobalSnapshot globalSnapshot) {
+        ForkJoinPool.commonPool().execute(() -> {
+            if (snapshotArchive != null) {
+                try {
+                    snapshotArchive.append(
+                        globalSnapshot,
+                        System.currentTimeMillis());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.out.print("> ");
+                }
+            }
+            if (snapshotVerifier != null) {
+                SnapshotVerifier.Report report =
+                    snapshotVerifier.verify(globalSnapshot);
+                if (!report.isConsistent()) {
+                    System.out.println("\nInconsistent snapshot:");
+                    report.print();
+                    System.out.print("> ");
+                }
+            }
+            if (result != null && !result.complete(globalSnapshot)) {
+                try {
+                    globalSnapshot.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.out.print("> ");
+                }
+            }
+        });
+    }
+
     /**
      * Broad future tick of a vector clock to all other processes.
      *
-     * @param tick the tick of a vector clock
+     * @param info the initiator, epoch and future tick of the snapshot
+     * @param tree the tree the snapshot is collected through, or null if
+     *             every process reports to the initiator
+     */
+    public synchronized void broadcastFutureTick(
+            InitiatorInfo info,
+            SnapshotTree tree) {
+        this.remoteBanks.values().forEach(remoteBank -> {
+            try {
+                remoteBank.sendFutureTick(info, tree);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.print("> ");
+            }
+        });
+    }
+
+    /**
+     * Tell all other processes that a snapshot round has completed.
+     *
+     * @param info the initiator and epoch of the completed round
      */
-    public synchronized void broadcastFutureTick(long tick) {
+    public synchronized void broadcastSnapshotComplete(InitiatorInfo info) {
         this.remoteBanks.values().forEach(remoteBank -> {
             try {
-                remoteBank.sendFutureTick(tick);
+                remoteBank.sendSnapshotComplete(info);
             } catch (IOException e) {
                 e.printStackTrace();
                 System.out.print("> ");
@@ -345,24 +1120,62 @@ public class Bank implements Runnable {
     /**
      * Send a snapshot to the initiator.
      *
-     * @param snapshot the snapshot instance to be sent
+     * @param snapshot   the snapshot instance to be sent
+     * @param msgCounter messages sent minus messages received when the
+     *                   snapshot was taken
+     * @param info       the round the snapshot was taken for
      * @throws IOException if unable to send snapshot
      */
-    public void sendSnapshotToInitiator(Snapshot snapshot) throws IOException {
-        UUID initiatorId = mAlgorithm.getInitiatorInfo().getInitiatorId();
-        remoteBanks.get(initiatorId).sendSnapshotToInitiator(snapshot);
+    public void sendSnapshotToInitiator(
+            Snapshot snapshot,
+            int msgCounter,
+            InitiatorInfo info) throws IOException {
+        remoteBanks.get(info.getInitiatorId())
+                .sendSnapshotToInitiator(snapshot, msgCounter, info);
     }
 
     /**
      * Forward a white message to the initiator.
      *
      * @param whiteMessage the white message instance
+     * @param info         the round the message was in transit for
      * @throws IOException if unable to send message
      */
-    public void sendWhiteMessageToInitiator(Message whiteMessage)
-            throws IOException {
-        UUID initiatorId = mAlgorithm.getInitiatorInfo().getInitiatorId();
-        remoteBanks.get(initiatorId).sendWhiteMessageToInitiator(whiteMessage);
+    public void sendWhiteMessageToInitiator(
+            Message whiteMessage,
+            InitiatorInfo info) throws IOException {
+        remoteBanks.get(info.getInitiatorId())
+                .sendWhiteMessageToInitiator(whiteMessage, info);
+    }
+
+    /**
+     * Pass a report on a branch of a snapshot tree to the parent. The tree
+     * is laid out by the initiator, which cannot tell whether this bank is
+     * connected to its parent, so without a connection the report goes to
+     * the initiator, which is connected to every bank in the tree and
+     * passes it on.
+     *
+     * @param parentId   ID of the bank to report to
+     * @param snapshot   merged snapshot of the branch, or null if only white
+     *                   messages are reported
+     * @param msgCounter messages sent minus messages received by the branch
+     * @param amounts    amounts in transit indexed by account ID
+     * @param info       the round being reported on
+     * @throws IOException if unable to send the report
+     */
+    public void sendReport(
+            UUID parentId,
+            Snapshot snapshot,
+            int msgCounter,
+            Map<String, Long> amounts,
+            InitiatorInfo info) throws IOException {
+        RemoteBank parent = remoteBanks.get(parentId);
+        if (parent != null) {
+            parent.sendReport(snapshot, msgCounter, amounts, info, null);
+        } else {
+            remoteBanks.get(info.getInitiatorId())
+                    .sendReport(snapshot, msgCounter, amounts, info, parentId);
+        }
     }
 
     /**
@@ -383,6 +1196,68 @@ public class Bank implements Runnable {
         }
     }
 
+    /**
+     * Visualize the recorded channel states of a Chandy-Lamport snapshot.
+     *
+     * @param channels recorded channel states, indexed by the receiving bank
+     *                 then the sending bank
+     * @throws IOException if unable to read back a spilled channel state
+     */
+    public void printChannelStates(
+            Map<UUID, Map<UUID, ChannelRecorder>> channels)
+            throws IOException {
+        System.out.println("Channel states:");
+        for (Map.Entry<UUID, Map<UUID, ChannelRecorder>> receiver :
+                channels.entrySet()) {
+            for (Map.Entry<UUID, ChannelRecorder> channel :
+                    receiver.getValue().entrySet()) {
+                System.out.println(
+                    "------------------------------------------------");
+                System.out.println(
+                    "channel: " + channel.getKey() + " -> " +
+                    receiver.getKey());
+                channel.getValue().forEach((command, accountId, amount) -> {
+                    System.out.print("command: " + command);
+                    System.out.print(", account ID: " + accountId);
+                    System.out.println(", amount: " + amount);
+                });
+            }
+        }
+    }
+
+    /**
+     * Visualize the totals of a global snapshot, overall and for each bank
+     * or branch.
+     *
+     * @param snapshot the global snapshot
+     */
+    public void printTotals(GlobalSnapshot snapshot) {
+        System.out.println("Totals:");
+        for (Map.Entry<UUID, Long> entry :
+                snapshot.getBranchTotals().entrySet()) {
+            System.out.print("process ID: " + entry.getKey());
+            System.out.println(", balance: " + entry.getValue());
+        }
+        System.out.println(String.format(
+            "%d accounts, balance: %d, in transit: %d",
+            snapshot.getAccountCount(),
+            snapshot.getTotalBalance(),
+            snapshot.getTotalInTransit()));
+    }
+
+    /**
+     * Visualize the amounts in transit totalled by a snapshot tree.
+     *
+     * @param amounts amounts in transit indexed by account ID
+     */
+    public void printAmountsInTransit(Map<String, Long> amounts) {
+        System.out.println("Amounts in transit:");
+        for (Map.Entry<String, Long> entry : amounts.entrySet()) {
+            System.out.print("account ID: " + entry.getKey());
+            System.out.println(", amount: " + entry.getValue());
+        }
+    }
+
     /**
      * Visualize the message in transit (white messages).
      *
@@ -395,18 +1270,28 @@ public class Bank implements Runnable {
                 "----------------------------------------------------");
             System.out.println("source process: " + message.getSourceId());
             System.out.println("command: " + message.getCommand());
-            System.out.println("amount: " + message.getAmount());
+            if (message.getAmounts() != null) {
+                for (int i = 0; i < message.getAmounts().length; i++) {
+                    System.out.print(
+                        "account ID: " + message.getAccountIds().get(i));
+                    System.out.println(
+                        ", amount: " + message.getAmounts()[i]);
+                }
+            } else {
+                System.out.println("amount: " + message.getAmount());
+            }
         }
         System.out.print("> ");
     }
 
     /**
-     * Retrieve all remote bank threads.
+     * Retrieve every open connection to a remote bank, including those that
+     * have not finished registering.
      *
-     * @return all remote bank threads.
+     * @return all remote bank connections
      */
-    public Set<Thread> getRemoteBankThreads() {
-        return remoteBankThreads;
+    public Set<RemoteBank> getConnections() {
+        return connections;
     }
 
     /**
@@ -417,4 +1302,58 @@ public class Bank implements Runnable {
     public MAlgorithm getmAlgorithm() {
         return mAlgorithm;
     }
+
+    /**
+     * Retrieve the Lai-Yang snapshot algorithm used by this bank.
+     *
+     * @return the LaiYang instance used by this bank
+     */
+    public LaiYang getLaiYang() {
+        return laiYang;
+    }
+
+    /**
+     * Retrieve the single thread that runs timed tasks for this bank.
+     *
+     * @return the scheduler of the bank
+     */
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Retrieve the meter counting what this bank spends on snapshots.
+     *
+     * @return the overhead meter of the bank
+     */
+    public OverheadMeter getOverheadMeter() {
+        return overheadMeter;
+    }
+
+    /**
+     * Retrieve the scheduler taking snapshots in the background.
+     *
+     * @return the snapshot scheduler of the bank
+     */
+    public SnapshotScheduler getSnapshotScheduler() {
+        return snapshotScheduler;
+    }
+
+    /**
+     * Retrieve the archive of completed global snapshots.
+     *
+     * @return the snapshot archive, or null if snapshots are not archived
+     */
+    public SnapshotArchive getSnapshotArchive() {
+        return snapshotArchive;
+    }
+
+    /**
+     * Retrieve the verifier of completed global snapshots.
+     *
+     * @return the snapshot verifier, or null if snapshots are not verified
+     */
+    public SnapshotVerifier getSnapshotVerifier() {
+        return snapshotVerifier;
+    }
 }
@@ -0,0 +1,541 @@
+import java.io.File;
+
+/**
+ * Startup configuration of a bank.
+ */
+public class BankConfig {
+    public static final int DEFAULT_IO_THREADS = Math.min(
+        4,
+        Runtime.getRuntime().availableProcessors());
+    public static final int DEFAULT_OUTBOUND_CAPACITY = 1024;
+    public static final long DEFAULT_CHANNEL_MEMORY = 1 << 20;
+    public static final long DEFAULT_SNAPSHOT_MEMORY = 256L << 20;
+    public static final long DEFAULT_SNAPSHOT_RETENTION_MILLIS = 60000;
+    public static final long DEFAULT_NUDGE_DELAY_MILLIS = 20;
+    public static final double DEFAULT_SNAPSHOT_BUDGET = 5;
+    public static final int DEFAULT_WAL_SEGMENT_SIZE = 64 << 20;
+    public static final int MIN_WAL_SEGMENT_SIZE = 4096;
+    public static final long DEFAULT_CHECKPOINT_INTERVAL_MILLIS = 60000;
+
+    private TransportMode transportMode = TransportMode.BLOCKING;
+    private int ioThreads = DEFAULT_IO_THREADS;
+    private WireFormat wireFormat = WireFormat.BINARY;
+    private FlushPolicy flushPolicy = FlushPolicy.immediate();
+    private int outboundCapacity = DEFAULT_OUTBOUND_CAPACITY;
+    private LockMode lockMode = LockMode.GLOBAL;
+    private ClockEncoding clockEncoding = ClockEncoding.DELTA;
+    private CollectionMode collectionMode = CollectionMode.DIRECT;
+    private SnapshotEncoding snapshotEncoding = SnapshotEncoding.DELTA;
+    private long channelMemory = DEFAULT_CHANNEL_MEMORY;
+    private long snapshotMemory = DEFAULT_SNAPSHOT_MEMORY;
+    private long snapshotRetentionMillis = DEFAULT_SNAPSHOT_RETENTION_MILLIS;
+    private long nudgeDelayMillis = DEFAULT_NUDGE_DELAY_MILLIS;
+    private long snapshotIntervalMillis = 0;
+    private SnapshotAlgorithm snapshotAlgorithm = SnapshotAlgorithm.MATTERN;
+    private double snapshotBudget = DEFAULT_SNAPSHOT_BUDGET;
+    private File walDirectory;
+    private int walSegmentSize = DEFAULT_WAL_SEGMENT_SIZE;
+    private SyncPolicy walSyncPolicy = SyncPolicy.commit();
+    private long checkpointIntervalMillis =
+        DEFAULT_CHECKPOINT_INTERVAL_MILLIS;
+    private File archiveDirectory;
+    private boolean verifySnapshots;
+    private long expectedIssuance = -1;
+
+    /**
+     * Retrieve the transport used to talk to remote banks.
+     *
+     * @return the transport mode
+     */
+    public TransportMode getTransportMode() {
+        return transportMode;
+    }
+
+    /**
+     * Set the transport used to talk to remote banks.
+     *
+     * @param transportMode the transport mode
+     */
+    public void setTransportMode(TransportMode transportMode) {
+        this.transportMode = transportMode;
+    }
+
+    /**
+     * Retrieve the number of selector threads used by the NIO transport.
+     *
+     * @return the number of I/O threads
+     */
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * Set the number of selector threads used by the NIO transport.
+     *
+     * @param ioThreads the number of I/O threads
+     */
+    public void setIoThreads(int ioThreads) {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException(
+                "At least one I/O thread is required");
+        }
+        this.ioThreads = ioThreads;
+    }
+
+    /**
+     * Retrieve the preferred encoding for messages sent to remote banks.
+     *
+     * @return the preferred wire format
+     */
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    /**
+     * Set the preferred encoding for messages sent to remote banks. Banks
+     * that do not support it are sent JSON regardless.
+     *
+     * @param wireFormat the preferred wire format
+     */
+    public void setWireFormat(WireFormat wireFormat) {
+        this.wireFormat = wireFormat;
+    }
+
+    /**
+     * Retrieve the policy deciding when queued messages are flushed.
+     *
+     * @return the flush policy
+     */
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    /**
+     * Set the policy deciding when queued messages are flushed.
+     *
+     * @param flushPolicy the flush policy
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    /**
+     * Retrieve the number of messages that may be queued for a remote bank
+     * before senders have to wait.
+     *
+     * @return the capacity of each outbound queue
+     */
+    public int getOutboundCapacity() {
+        return outboundCapacity;
+    }
+
+    /**
+     * Set the number of messages that may be queued for a remote bank before
+     * senders have to wait.
+     *
+     * @param outboundCapacity the capacity of each outbound queue
+     */
+    public void setOutboundCapacity(int outboundCapacity) {
+        if (outboundCapacity < 1) {
+            throw new IllegalArgumentException(
+                "Outbound capacity must be positive");
+        }
+        this.outboundCapacity = outboundCapacity;
+    }
+
+    /**
+     * Retrieve how operations on local accounts are serialised.
+     *
+     * @return the lock mode
+     */
+    public LockMode getLockMode() {
+        return lockMode;
+    }
+
+    /**
+     * Set how operations on local accounts are serialised.
+     *
+     * @param lockMode the lock mode
+     */
+    public void setLockMode(LockMode lockMode) {
+        this.lockMode = lockMode;
+    }
+
+    /**
+     * Retrieve how vector clocks are sent to remote banks.
+     *
+     * @return the preferred clock encoding
+     */
+    public ClockEncoding getClockEncoding() {
+        return clockEncoding;
+    }
+
+    /**
+     * Set how vector clocks are sent to remote banks. Banks that do not
+     * support delta clocks are sent the whole clock regardless.
+     *
+     * @param clockEncoding the preferred clock encoding
+     */
+    public void setClockEncoding(ClockEncoding clockEncoding) {
+        this.clockEncoding = clockEncoding;
+    }
+
+    /**
+     * Retrieve how snapshots are sent to remote banks.
+     *
+     * @return the preferred snapshot encoding
+     */
+    public SnapshotEncoding getSnapshotEncoding() {
+        return snapshotEncoding;
+    }
+
+    /**
+     * Set how snapshots are sent to remote banks. Banks that do not support
+     * delta snapshots are sent every account regardless.
+     *
+     * @param snapshotEncoding the preferred snapshot encoding
+     */
+    public void setSnapshotEncoding(SnapshotEncoding snapshotEncoding) {
+        this.snapshotEncoding = snapshotEncoding;
+    }
+
+    /**
+     * Retrieve the number of bytes of recorded channel state held in memory
+     * per channel before it is spilled to disk.
+     *
+     * @return the memory limit of each channel recorder
+     */
+    public long getChannelMemory() {
+        return channelMemory;
+    }
+
+    /**
+     * Set the number of bytes of recorded channel state held in memory per
+     * channel before it is spilled to disk.
+     *
+     * @param channelMemory the memory limit of each channel recorder
+     */
+    public void setChannelMemory(long channelMemory) {
+        if (channelMemory < 0) {
+            throw new IllegalArgumentException(
+                "Channel memory must not be negative");
+        }
+        this.channelMemory = channelMemory;
+    }
+
+    /**
+     * Retrieve the number of bytes of snapshots a Mattern round started by
+     * this bank holds in memory before spilling them to disk.
+     *
+     * @return the memory limit of each round
+     */
+    public long getSnapshotMemory() {
+        return snapshotMemory;
+    }
+
+    /**
+     * Set the number of bytes of snapshots a Mattern round started by this
+     * bank holds in memory before spilling them to disk.
+     *
+     * @param snapshotMemory the memory limit of each round
+     */
+    public void setSnapshotMemory(long snapshotMemory) {
+        if (snapshotMemory < 0) {
+            throw new IllegalArgumentException(
+                "Snapshot memory must not be negative");
+        }
+        this.snapshotMemory = snapshotMemory;
+    }
+
+    /**
+     * Retrieve how long a completed Chandy-Lamport snapshot is remembered
+     * before it is evicted.
+     *
+     * @return the retention window in milliseconds
+     */
+    public long getSnapshotRetentionMillis() {
+        return snapshotRetentionMillis;
+    }
+
+    /**
+     * Set how long a completed Chandy-Lamport snapshot is remembered before
+     * it is evicted.
+     *
+     * @param snapshotRetentionMillis the retention window in milliseconds
+     */
+    public void setSnapshotRetentionMillis(long snapshotRetentionMillis) {
+        if (snapshotRetentionMillis < 0) {
+            throw new IllegalArgumentException(
+                "Snapshot retention must not be negative");
+        }
+        this.snapshotRetentionMillis = snapshotRetentionMillis;
+    }
+
+    /**
+     * Retrieve how long a bank waits, after taking a Lai-Yang snapshot, for
+     * account updates to carry its colour to each remote bank before sending
+     * a dummy message instead.
+     *
+     * @return the nudge delay in milliseconds
+     */
+    public long getNudgeDelayMillis() {
+        return nudgeDelayMillis;
+    }
+
+    /**
+     * Set how long a bank waits, after taking a Lai-Yang snapshot, for
+     * account updates to carry its colour to each remote bank before sending
+     * a dummy message instead.
+     *
+     * @param nudgeDelayMillis the nudge delay in milliseconds
+     */
+    public void setNudgeDelayMillis(long nudgeDelayMillis) {
+        if (nudgeDelayMillis < 0) {
+            throw new IllegalArgumentException(
+                "Nudge delay must not be negative");
+        }
+        this.nudgeDelayMillis = nudgeDelayMillis;
+    }
+
+    /**
+     * Retrieve how Mattern snapshots started by this bank are collected.
+     *
+     * @return the collection mode
+     */
+    public CollectionMode getCollectionMode() {
+        return collectionMode;
+    }
+
+    /**
+     * Set how Mattern snapshots started by this bank are collected. Rounds
+     * fall back to direct collection when a remote bank does not support
+     * trees.
+     *
+     * @param collectionMode the collection mode
+     */
+    public void setCollectionMode(CollectionMode collectionMode) {
+        this.collectionMode = collectionMode;
+    }
+
+    /**
+     * Retrieve the shortest interval between scheduled snapshots.
+     *
+     * @return the snapshot interval in milliseconds, or 0 if snapshots are
+     *         not scheduled
+     */
+    public long getSnapshotIntervalMillis() {
+        return snapshotIntervalMillis;
+    }
+
+    /**
+     * Set the shortest interval between scheduled snapshots. The interval
+     * is stretched while snapshots cost more than the budget allows.
+     *
+     * @param snapshotIntervalMillis the snapshot interval in milliseconds,
+     *                               or 0 to not schedule snapshots
+     */
+    public void setSnapshotIntervalMillis(long snapshotIntervalMillis) {
+        if (snapshotIntervalMillis < 0) {
+            throw new IllegalArgumentException(
+                "Snapshot interval must not be negative");
+        }
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+    }
+
+    /**
+     * Retrieve the algorithm scheduled snapshots are taken with.
+     *
+     * @return the snapshot algorithm
+     */
+    public SnapshotAlgorithm getSnapshotAlgorithm() {
+        return snapshotAlgorithm;
+    }
+
+    /**
+     * Set the algorithm scheduled snapshots are taken with.
+     *
+     * @param snapshotAlgorithm the snapshot algorithm
+     */
+    public void setSnapshotAlgorithm(SnapshotAlgorithm snapshotAlgorithm) {
+        this.snapshotAlgorithm = snapshotAlgorithm;
+    }
+
+    /**
+     * Retrieve the share of the bank's traffic and time that scheduled
+     * snapshots may take up.
+     *
+     * @return the snapshot budget as a percentage
+     */
+    public double getSnapshotBudget() {
+        return snapshotBudget;
+    }
+
+    /**
+     * Set the share of the bank's traffic and time that scheduled snapshots
+     * may take up.
+     *
+     * @param snapshotBudget the snapshot budget as a percentage
+     */
+    public void setSnapshotBudget(double snapshotBudget) {
+        if (!(snapshotBudget > 0 && snapshotBudget <= 100)) {
+            throw new IllegalArgumentException(
+                "Snapshot budget must be above 0 and at most 100");
+        }
+        this.snapshotBudget = snapshotBudget;
+    }
+
+    /**
+     * Retrieve the directory holding the write-ahead log of the local
+     * accounts.
+     *
+     * @return the log directory, or null if accounts are only kept in memory
+     */
+    public File getWalDirectory() {
+        return walDirectory;
+    }
+
+    /**
+     * Set the directory holding the write-ahead log of the local accounts.
+     * Accounts in an existing log are restored when the bank starts.
+     *
+     * @param walDirectory the log directory, or null to only keep accounts
+     *                     in memory
+     */
+    public void setWalDirectory(File walDirectory) {
+        this.walDirectory = walDirectory;
+    }
+
+    /**
+     * Retrieve the size of each segment file of the write-ahead log.
+     *
+     * @return the segment size in bytes
+     */
+    public int getWalSegmentSize() {
+        return walSegmentSize;
+    }
+
+    /**
+     * Set the size of each segment file of the write-ahead log.
+     *
+     * @param walSegmentSize the segment size in bytes
+     */
+    public void setWalSegmentSize(int walSegmentSize) {
+        if (walSegmentSize < MIN_WAL_SEGMENT_SIZE) {
+            throw new IllegalArgumentException(
+                "Log segments must be at least " + MIN_WAL_SEGMENT_SIZE +
+                    " bytes");
+        }
+        this.walSegmentSize = walSegmentSize;
+    }
+
+    /**
+     * Retrieve the policy deciding when the write-ahead log is forced to
+     * disk.
+     *
+     * @return the sync policy
+     */
+    public SyncPolicy getWalSyncPolicy() {
+        return walSyncPolicy;
+    }
+
+    /**
+     * Set the policy deciding when the write-ahead log is forced to disk.
+     *
+     * @param walSyncPolicy the sync policy
+     */
+    public void setWalSyncPolicy(SyncPolicy walSyncPolicy) {
+        this.walSyncPolicy = walSyncPolicy;
+    }
+
+    /**
+     * Retrieve the interval between checkpoints of the local accounts,
+     * written while the write-ahead log is kept.
+     *
+     * @return the checkpoint interval in milliseconds, or 0 if checkpoints
+     *         are only written when the bank stops
+     */
+    public long getCheckpointIntervalMillis() {
+        return checkpointIntervalMillis;
+    }
+
+    /**
+     * Set the interval between checkpoints of the local accounts, written
+     * while the write-ahead log is kept. The shorter the interval, the less
+     * of the log is replayed on startup.
+     *
+     * @param checkpointIntervalMillis the checkpoint interval in
+     *                                 milliseconds, or 0 to only write a
+     *                                 checkpoint when the bank stops
+     */
+    public void setCheckpointIntervalMillis(long checkpointIntervalMillis) {
+        if (checkpointIntervalMillis < 0) {
+            throw new IllegalArgumentException(
+                "Checkpoint interval must not be negative");
+        }
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+    }
+
+    /**
+     * Retrieve the directory holding the archive of completed global
+     * snapshots.
+     *
+     * @return the archive directory, or null if snapshots are not archived
+     */
+    public File getArchiveDirectory() {
+        return archiveDirectory;
+    }
+
+    /**
+     * Set the directory holding the archive of completed global snapshots.
+     * Every global snapshot collected by the bank is appended to it.
+     *
+     * @param archiveDirectory the archive directory, or null to not archive
+     *                         snapshots
+     */
+    public void setArchiveDirectory(File archiveDirectory) {
+        this.archiveDirectory = archiveDirectory;
+    }
+
+    /**
+     * Check whether every global snapshot collected by the bank is
+     * verified.
+     *
+     * @return true if snapshots are verified
+     */
+    public boolean isVerifySnapshots() {
+        return verifySnapshots;
+    }
+
+    /**
+     * Set whether every global snapshot collected by the bank is verified.
+     *
+     * @param verifySnapshots true to verify snapshots
+     */
+    public void setVerifySnapshots(boolean verifySnapshots) {
+        this.verifySnapshots = verifySnapshots;
+    }
+
+    /**
+     * Retrieve the money issued, which the balances and amounts in transit
+     * of a verified snapshot have to add up to.
+     *
+     * @return the money issued, or -1 if it is not known
+     */
+    public long getExpectedIssuance() {
+        return expectedIssuance;
+    }
+
+    /**
+     * Set the money issued, which the balances and amounts in transit of a
+     * verified snapshot have to add up to.
+     *
+     * @param expectedIssuance the money issued, or -1 if it is not known
+     */
+    public void setExpectedIssuance(long expectedIssuance) {
+        if (expectedIssuance < -1) {
+            throw new IllegalArgumentException(
+                "Expected issuance must not be negative");
+        }
+        this.expectedIssuance = expectedIssuance;
+    }
+}
@@ -0,0 +1,541 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Compact, length prefixed binary encoding of {@link Message}.
+ *
+ * <p>
+ * A frame is {@link #FRAME_MARKER}, the payload length as a varint, then the
+ * payload. JSON frames always start with '{', so both encodings can share a
+ * connection. The payload holds the command ordinal, a bit set of the
+ * optional fields that follow, the source ID and vector clock, then each
+ * present field in turn. UUIDs are written as 16 raw bytes, ticks and counts
+ * as unsigned varints, amounts as zig-zag varints and strings as a length
+ * followed by UTF-8 bytes. New commands must be appended to {@link Command}
+ * so that ordinals stay stable between versions.
+ */
+public final class BinaryCodec {
+    public static final String FEATURE = "binary";
+    public static final byte FRAME_MARKER = (byte) 0x80;
+
+    private static final int FUTURE_TICK = 1;
+    private static final int ACCOUNT_IDS = 1 << 1;
+    private static final int AMOUNT = 1 << 2;
+    private static final int SNAPSHOT = 1 << 3;
+    private static final int WHITE_MESSAGE = 1 << 4;
+    private static final int MSG_COUNTER = 1 << 5;
+    private static final int FEATURES = 1 << 6;
+    private static final int AMOUNTS = 1 << 7;
+    private static final int CLOCK_DELTA = 1 << 8;
+    private static final int EPOCH = 1 << 9;
+    private static final int PARENT = 1 << 10;
+    private static final int INITIATOR = 1 << 11;
+    private static final int SNAPSHOT_BASE = 1 << 12;
+    private static final int SNAPSHOT_DELTA = 1 << 13;
+    private static final int CHANNEL = 1 << 14;
+    private static final int COLOUR = 1 << 15;
+
+    private static final int HEADER_SIZE = 6;
+
+    private static final Command[] COMMANDS = Command.values();
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Encode a message as a complete binary frame.
+     *
+     * @param message the message to encode
+     * @param out     destination of the frame
+     * @throws IOException if unable to write the frame
+     */
+    public static void encode(Message message, OutputStream out)
+            throws IOException {
+        encode(message, null, out);
+    }
+
+    /**
+     * Encode a message as a complete binary frame, sending only the clock
+     * values that changed since the previous message on the connection.
+     *
+     * @param message the message to encode
+     * @param delta   clock values to send in place of the whole clock, or
+     *                null to send the whole clock
+     * @param out     destination of the frame
+     * @throws IOException if unable to write the frame
+     */
+    public static void encode(
+            Message message,
+            VectorClock delta,
+            OutputStream out) throws IOException {
+        // leave room for the marker and the longest possible length prefix,
+        // so the payload never has to be copied once its length is known
+        Encoder frame = new Encoder();
+        frame.length = HEADER_SIZE;
+        writeMessage(frame, message, delta);
+
+        int length = frame.length - HEADER_SIZE;
+        int prefix = 1;
+        while ((length >>> (7 * prefix)) != 0) {
+            prefix++;
+        }
+        int start = HEADER_SIZE - prefix - 1;
+        frame.bytes[start] = FRAME_MARKER;
+        for (int i = 0; i < prefix; i++) {
+            int bits = (length >>> (7 * i)) & 0x7F;
+            frame.bytes[start + 1 + i] =
+                (byte) (i < prefix - 1 ? bits | 0x80 : bits);
+        }
+        out.write(frame.bytes, start, frame.length - start);
+    }
+
+    /**
+     * Find the length of the frame starting at an offset.
+     *
+     * @param bytes  buffer holding the frame
+     * @param offset offset of the frame marker
+     * @param limit  end of the readable bytes
+     * @return length of the whole frame, or -1 if the header is incomplete
+     */
+    public static int frameLength(byte[] bytes, int offset, int limit) {
+        long length = 0;
+        for (int i = offset + 1, shift = 0; i < limit; i++, shift += 7) {
+            length |= (long) (bytes[i] & 0x7F) << shift;
+            if ((bytes[i] & 0x80) == 0) {
+                return (int) length + i + 1 - offset;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decode a complete binary frame. Counts and lengths are checked
+     * against the bytes left in the frame before anything is allocated for
+     * them, so a corrupt frame cannot make the decoder allocate more than
+     * the frame could hold.
+     *
+     * @param bytes  buffer holding the frame
+     * @param offset offset of the frame marker
+     * @param length length of the whole frame
+     * @return the decoded message
+     * @throws IOException if the frame is malformed
+     */
+    public static Message decode(byte[] bytes, int offset, int length)
+            throws IOException {
+        Decoder decoder = new Decoder(bytes, offset + 1, offset + length);
+        try {
+            decoder.readVarLong();
+            return readMessage(decoder);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed binary frame", e);
+        }
+    }
+
+    /**
+     * Write the payload of a message.
+     *
+     * @param out     destination of the payload
+     * @param message the message to write
+     * @param delta   clock values to write in place of the whole clock, or
+     *                null to write the whole clock
+     */
+    private static void writeMessage(
+            Encoder out,
+            Message message,
+            VectorClock delta) {
+        int flags = 0;
+        if (message.getFutureTick() != 0) {
+            flags |= FUTURE_TICK;
+        }
+        if (!message.getAccountIds().isEmpty()) {
+            flags |= ACCOUNT_IDS;
+        }
+        if (message.getAmount() != 0) {
+            flags |= AMOUNT;
+        }
+        if (message.getSnapshot() != null) {
+            flags |= SNAPSHOT;
+            if (message.getSnapshot().isBase()) {
+                flags |= SNAPSHOT_BASE;
+            }
+            if (message.getSnapshot().isDelta()) {
+                flags |= SNAPSHOT_DELTA;
+            }
+        }
+        if (message.getWhiteMessage() != null) {
+            flags |= WHITE_MESSAGE;
+        }
+        if (message.getMsgCounter() != 0) {
+            flags |= MSG_COUNTER;
+        }
+        if (message.getFeatures() != null) {
+            flags |= FEATURES;
+        }
+        if (message.getAmounts() != null) {
+            flags |= AMOUNTS;
+        }
+        if (delta != null) {
+            flags |= CLOCK_DELTA;
+        }
+        if (message.getEpoch() != 0) {
+            flags |= EPOCH;
+        }
+        if (message.getParentId() != null) {
+            flags |= PARENT;
+        }
+        if (message.getInitiatorId() != null) {
+            flags |= INITIATOR;
+        }
+        if (message.getChannelId() != null) {
+            flags |= CHANNEL;
+        }
+        if (message.getColour() != 0) {
+            flags |= COLOUR;
+        }
+
+        out.writeVarLong(message.getCommand().ordinal());
+        out.writeVarLong(flags);
+        out.writeUuid(message.getSourceId());
+        VectorClock vectorClock =
+            delta != null ? delta : message.getVectorClock();
+        out.writeVarLong(vectorClock.size());
+        vectorClock.forEach((pid, tick) -> {
+            out.writeUuid(pid);
+            out.writeVarLong(tick);
+        });
+
+        if ((flags & FUTURE_TICK) != 0) {
+            out.writeVarLong(message.getFutureTick());
+        }
+        if ((flags & ACCOUNT_IDS) != 0) {
+            writeStrings(out, message.getAccountIds());
+        }
+        if ((flags & AMOUNT) != 0) {
+            out.writeZigZag(message.getAmount());
+        }
+        if ((flags & SNAPSHOT) != 0) {
+            Snapshot snapshot = message.getSnapshot();
+            out.writeUuid(snapshot.getBankId());
+            if ((flags & SNAPSHOT_DELTA) != 0) {
+                out.writeVarLong(snapshot.getFullSize());
+            }
+            out.writeVarLong(snapshot.size());
+            for (int i = 0; i < snapshot.size(); i++) {
+                if ((flags & SNAPSHOT_DELTA) != 0) {
+                    out.writeVarLong(snapshot.getPosition(i));
+                }
+                out.writeString(snapshot.getAccountId(i));
+                out.writeZigZag(snapshot.getBalance(i));
+            }
+        }
+        if ((flags & WHITE_MESSAGE) != 0) {
+            writeMessage(out, message.getWhiteMessage(), null);
+        }
+        if ((flags & MSG_COUNTER) != 0) {
+            out.writeZigZag(message.getMsgCounter());
+        }
+        if ((flags & FEATURES) != 0) {
+            writeStrings(out, message.getFeatures());
+        }
+        if ((flags & AMOUNTS) != 0) {
+            out.writeVarLong(message.getAmounts().length);
+            for (long amount : message.getAmounts()) {
+                out.writeZigZag(amount);
+            }
+        }
+        if ((flags & EPOCH) != 0) {
+            out.writeVarLong(message.getEpoch());
+        }
+        if ((flags & PARENT) != 0) {
+            out.writeUuid(message.getParentId());
+            out.writeVarLong(message.getChildCount());
+        }
+        if ((flags & INITIATOR) != 0) {
+            out.writeUuid(message.getInitiatorId());
+        }
+        if ((flags & CHANNEL) != 0) {
+            out.writeUuid(message.getChannelId());
+        }
+        if ((flags & COLOUR) != 0) {
+            out.writeVarLong(message.getColour());
+        }
+    }
+
+    /**
+     * Read the payload of a message.
+     *
+     * @param in source of the payload
+     * @return the message
+     * @throws IOException if the payload is malformed
+     */
+    private static Message readMessage(Decoder in) throws IOException {
+        long ordinal = in.readVarLong();
+        if (ordinal < 0 || ordinal >= COMMANDS.length) {
+            throw new IOException("Unknown command " + ordinal);
+        }
+        int flags = (int) in.readVarLong();
+        UUID sourceId = in.readUuid();
+        VectorClock vectorClock = new VectorClock();
+        // a process ID and a tick of at least one byte each
+        for (int i = in.readCount(17); i > 0; i--) {
+            vectorClock.set(in.readUuid(), in.readVarLong());
+        }
+        Message message = new Message(
+            COMMANDS[(int) ordinal],
+            sourceId,
+            vectorClock);
+        message.setDeltaClock((flags & CLOCK_DELTA) != 0);
+
+        if ((flags & FUTURE_TICK) != 0) {
+            message.setFutureTick(in.readVarLong());
+        }
+        if ((flags & ACCOUNT_IDS) != 0) {
+            for (String accountId : readStrings(in)) {
+                message.addAccountId(accountId);
+            }
+        }
+        if ((flags & AMOUNT) != 0) {
+            message.setAmount(in.readZigZag());
+        }
+        if ((flags & SNAPSHOT) != 0) {
+            boolean delta = (flags & SNAPSHOT_DELTA) != 0;
+            UUID bankId = in.readUuid();
+            long fullSize = delta ? in.readVarLong() : 0;
+            if (fullSize < 0 || fullSize > Integer.MAX_VALUE) {
+                throw new IOException(
+                    "Snapshot of " + fullSize + " accounts is out of range");
+            }
+            // an ID length and a balance, and a position for a delta
+            int size = in.readCount(delta ? 3 : 2);
+            int[] positions = new int[delta ? size : 0];
+            String[] accountIds = new String[size];
+            long[] balances = new long[size];
+            for (int i = 0; i < size; i++) {
+                if (delta) {
+                    long position = in.readVarLong();
+                    if (position < 0 || position >= fullSize) {
+                        throw new IOException(
+                            "Account position " + position +
+                                " is out of range");
+                    }
+                    positions[i] = (int) position;
+                }
+                accountIds[i] = in.readString();
+                balances[i] = in.readZigZag();
+            }
+            Snapshot snapshot = delta ?
+                Snapshot.delta(
+                    bankId,
+                    positions,
+                    accountIds,
+                    balances,
+                    (int) fullSize) :
+                new Snapshot(bankId, accountIds, balances);
+            if ((flags & SNAPSHOT_BASE) != 0) {
+                snapshot.markBase();
+            }
+            message.setSnapshot(snapshot);
+        }
+        if ((flags & WHITE_MESSAGE) != 0) {
+            message.setWhiteMessage(readMessage(in));
+        }
+        if ((flags & MSG_COUNTER) != 0) {
+            message.setMsgCounter((int) in.readZigZag());
+        }
+        if ((flags & FEATURES) != 0) {
+            for (String feature : readStrings(in)) {
+                message.addFeature(feature);
+            }
+        }
+        if ((flags & AMOUNTS) != 0) {
+            long[] amounts = new long[in.readCount(1)];
+            for (int i = 0; i < amounts.length; i++) {
+                amounts[i] = in.readZigZag();
+            }
+            message.setAmounts(amounts);
+        }
+        if ((flags & EPOCH) != 0) {
+            message.setEpoch(in.readVarLong());
+        }
+        if ((flags & PARENT) != 0) {
+            message.setParentId(in.readUuid());
+            message.setChildCount((int) in.readVarLong());
+        }
+        if ((flags & INITIATOR) != 0) {
+            message.setInitiatorId(in.readUuid());
+        }
+        if ((flags & CHANNEL) != 0) {
+            message.setChannelId(in.readUuid());
+        }
+        if ((flags & COLOUR) != 0) {
+            message.setColour(in.readVarLong());
+        }
+        return message;
+    }
+
+    /**
+     * Write a list of strings, prefixed by its size.
+     *
+     * @param out     destination of the strings
+     * @param strings the strings to write
+     */
+    private static void writeStrings(Encoder out, ArrayList<String> strings) {
+        out.writeVarLong(strings.size());
+        for (String string : strings) {
+            out.writeString(string);
+        }
+    }
+
+    /**
+     * Read a list of strings, prefixed by its size.
+     *
+     * @param in source of the strings
+     * @return the strings
+     * @throws IOException if the size or a length does not fit in the frame
+     */
+    private static ArrayList<String> readStrings(Decoder in)
+            throws IOException {
+        int size = in.readCount(1);
+        ArrayList<String> strings = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            strings.add(in.readString());
+        }
+        return strings;
+    }
+
+    /**
+     * Growable byte buffer with primitive writers.
+     */
+    private static final class Encoder {
+        private byte[] bytes = new byte[256];
+        private int length = 0;
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(
+                    bytes,
+                    Math.max(bytes.length * 2, length + extra));
+            }
+        }
+
+        private void writeBytes(byte[] values, int offset, int count) {
+            ensure(count);
+            System.arraycopy(values, offset, bytes, length, count);
+            length += count;
+        }
+
+        private void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        private void writeZigZag(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        private void writeLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes[length++] = (byte) (value >>> shift);
+            }
+        }
+
+        private void writeUuid(UUID uuid) {
+            writeLong(uuid.getMostSignificantBits());
+            writeLong(uuid.getLeastSignificantBits());
+        }
+
+        private void writeString(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(utf8.length);
+            writeBytes(utf8, 0, utf8.length);
+        }
+    }
+
+    /**
+     * Cursor over a byte buffer with primitive readers.
+     */
+    private static final class Decoder {
+        private final byte[] bytes;
+        private final int limit;
+        private int position;
+
+        private Decoder(byte[] bytes, int position, int limit) {
+            this.bytes = bytes;
+            this.position = position;
+            this.limit = limit;
+        }
+
+        private byte readByte() {
+            if (position >= limit) {
+                throw new ArrayIndexOutOfBoundsException(position);
+            }
+            return bytes[position++];
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            return value;
+        }
+
+        private long readZigZag() {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private long readLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (readByte() & 0xFF);
+            }
+            return value;
+        }
+
+        private UUID readUuid() {
+            return new UUID(readLong(), readLong());
+        }
+
+        /**
+         * Read the number of items that follow, checking that they can fit
+         * in the rest of the frame.
+         *
+         * @param minBytes the fewest bytes an item can take
+         * @return the number of items
+         * @throws IOException if the items cannot fit in the frame
+         */
+        private int readCount(int minBytes) throws IOException {
+            long count = readVarLong();
+            if (count < 0 || count > (limit - position) / minBytes) {
+                throw new IOException(
+                    "Count of " + count + " does not fit in the frame");
+            }
+            return (int) count;
+        }
+
+        private String readString() throws IOException {
+            int size = readCount(1);
+            String value = new String(
+                bytes,
+                position,
+                size,
+                StandardCharsets.UTF_8);
+            position += size;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Connection to a remote bank serviced by its own blocking reader thread.
+ * Outgoing messages are written by the shared writer threads.
+ */
+public class BlockingPeerConnection extends PeerConnection implements Runnable {
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private Thread thread;
+
+    /**
+     * Wrap a connected socket.
+     *
+     * @param socket socket connected to the remote bank
+     * @param writer pool of threads that drain outbound queues
+     * @param config configuration of the local bank
+     * @throws IOException if unable to open the socket streams
+     */
+    public BlockingPeerConnection(
+            Socket socket,
+            ScheduledExecutorService writer,
+            BankConfig config) throws IOException {
+        super(writer, config);
+        this.socket = socket;
+        this.in = socket.getInputStream();
+        this.out = socket.getOutputStream();
+    }
+
+    @Override
+    public void start() {
+        thread = new Thread(this);
+        thread.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (thread != null) {
+            thread.interrupt();
+        }
+        socket.close();
+    }
+
+    @Override
+    protected void write(byte[] bytes, int length) throws IOException {
+        out.write(bytes, 0, length);
+        out.flush();
+    }
+
+    @Override
+    public void run() {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        int read;
+        try {
+            while ((read = in.read(buffer)) != -1 && !Thread.interrupted()) {
+                receive(buffer, 0, read);
+            }
+        } catch (SocketException e) {
+            // do nothing
+        } catch (IOException | UnknownAccountException e) {
+            e.printStackTrace();
+            System.out.print("> ");
+        } finally {
+            closed();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.print("> ");
+            }
+        }
+    }
+}
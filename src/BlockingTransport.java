@@ -0,0 +1,47 @@
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Transport which dedicates a blocking reader thread to every remote bank.
+ */
+public class BlockingTransport implements Transport {
+    private final ServerSocket serverSocket;
+    private final ScheduledExecutorService writer;
+    private final BankConfig config;
+
+    /**
+     * Listen for remote banks on a port.
+     *
+     * @param port   port to listen on
+     * @param config configuration of the local bank
+     * @throws IOException if unable to open socket
+     */
+    public BlockingTransport(int port, BankConfig config) throws IOException {
+        this.serverSocket = new ServerSocket(port);
+        this.writer = Transport.newWriterPool(config);
+        this.config = config;
+    }
+
+    @Override
+    public PeerConnection accept() throws IOException {
+        Socket socket = serverSocket.accept();
+        return new BlockingPeerConnection(socket, writer, config);
+    }
+
+    @Override
+    public PeerConnection connect(String hostname, int port)
+            throws IOException {
+        return new BlockingPeerConnection(
+            new Socket(hostname, port),
+            writer,
+            config);
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        writer.shutdownNow();
+    }
+}
@@ -0,0 +1,64 @@
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reusable reader decoding UTF-8 straight out of a range of a byte array, so
+ * that a received frame can be parsed without first copying it into a
+ * string.
+ */
+public class ByteRangeReader extends Reader {
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer bytes = ByteBuffer.allocate(0);
+
+    /**
+     * Point the reader at a new range of bytes.
+     *
+     * @param array  array holding the bytes
+     * @param offset offset of the first byte
+     * @param length number of bytes
+     * @return this reader
+     */
+    public ByteRangeReader reset(byte[] array, int offset, int length) {
+        if (bytes.array() != array) {
+            bytes = ByteBuffer.wrap(array);
+        }
+        bytes.limit(offset + length);
+        bytes.position(offset);
+        decoder.reset();
+        return this;
+    }
+
+    @Override
+    public int read(char[] chars, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        int end = offset + length;
+        // fast path for ASCII, which is nearly all of a message
+        byte[] array = bytes.array();
+        int position = bytes.position();
+        int limit = bytes.limit();
+        int next = offset;
+        while (next < end && position < limit && array[position] >= 0) {
+            chars[next++] = (char) array[position++];
+        }
+        bytes.position(position);
+        if (next < end && bytes.hasRemaining()) {
+            CharBuffer out = CharBuffer.wrap(chars, next, end - next);
+            decoder.decode(bytes, out, true);
+            next = out.position();
+        }
+        return next == offset ? -1 : next - offset;
+    }
+
+    @Override
+    public void close() {
+        // nothing to release
+    }
+}
@@ -1,18 +1,53 @@
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Chandy-Lamport algorithm.
+ *
+ * <p>
+ * When every remote bank supports it, markers carry only the
+ * {@link SnapshotId} of the snapshot rather than the state of the sender.
+ * A bank records its state on the first marker of a snapshot and, once a
+ * marker has arrived on every channel, sends its state to the initiator,
+ * which collects and prints them all. Each snapshot keeps its own state, so
+ * any number can run at once and none has to be reset before another
+ * starts. Completed snapshots are remembered for a retention window, then
+ * evicted. Otherwise every marker carries the state of its sender, every
+ * bank collects and prints every state, and a reset round clears the
+ * previous snapshot before a new one starts.
+ *
+ * <p>
+ * With lightweight markers the state of each channel is recorded too:
+ * account updates received on a channel after the local state is recorded
+ * and before the marker on that channel arrives. Each channel is recorded
+ * by a {@link ChannelRecorder}, which spills to disk past a memory limit.
+ * The recorded updates are streamed to the initiator in chunks ahead of the
+ * local state, and the initiator records them again as they arrive.
  */
 public class ChandyLamport {
+    public static final String LIGHT_MARKER_FEATURE = "light-marker";
+    public static final int CHANNEL_CHUNK_SIZE = 512;
+
     private final UUID bankId;
     private final Bank bank;
     private Snapshot bankState;
     private HashMap<UUID, Snapshot> otherStates;
     private boolean stateRecorded;
     private boolean finished;
+    private long nextEpoch = 1; // guarded by the bank's monitor
+    // guarded by the bank's monitor
+    private final Map<SnapshotId, Run> runs = new LinkedHashMap<>();
 
     /**
      * Constructor.
@@ -55,6 +90,16 @@ public class ChandyLamport {
      * @throws IOException if unable to start algorithm
      */
     public void startAlgorithm(Snapshot currentState) throws IOException {
+        if (lightMarkersSupported()) {
+            // runs are told apart by ID, so there is nothing to reset
+            synchronized (bank) {
+                evictCompleted();
+                Run run = new Run(new SnapshotId(bankId, nextEpoch++));
+                runs.put(run.id, run);
+                run.record(currentState);
+            }
+            return;
+        }
         if (bank.getRemoteBanks().isEmpty()) {
             recordState(currentState);
             HashMap<UUID, Snapshot> snapshots = getStates();
@@ -66,6 +111,47 @@ public class ChandyLamport {
         }
     }
 
+    /**
+     * Start a snapshot whose result is handed back rather than printed,
+     * for snapshots taken in the background. Needs lightweight markers, as
+     * only they keep the channel states. Must hold the bank's monitor.
+     *
+     * @param currentState current state of the local bank
+     * @return a future completed with the states of every bank and the
+     *         amounts in transit, or exceptionally if lightweight markers
+     *         are not supported
+     * @throws IOException if unable to send markers
+     */
+    public CompletableFuture<GlobalSnapshot> initSnapshot(
+            Snapshot currentState) throws IOException {
+        CompletableFuture<GlobalSnapshot> result = new CompletableFuture<>();
+        if (!lightMarkersSupported()) {
+            result.completeExceptionally(new IllegalStateException(
+                "Chandy-Lamport snapshots can only be collected when every " +
+                    "bank supports light markers"));
+            return result;
+        }
+        evictCompleted();
+        Run run = new Run(new SnapshotId(bankId, nextEpoch++));
+        run.result = result;
+        runs.put(run.id, run);
+        run.record(currentState);
+        result.whenComplete((snapshot, e) -> {
+            if (e != null) {
+                // given up on by the caller
+                synchronized (bank) {
+                    try {
+                        run.abandon();
+                    } catch (IOException ioException) {
+                        ioException.printStackTrace();
+                        System.out.print("> ");
+                    }
+                }
+            }
+        });
+        return result;
+    }
+
     /**
      * Sends a message to all the branches to reset their snapshots.
      *
@@ -142,4 +228,452 @@ public class ChandyLamport {
 
         return finished;
     }
+
+    /**
+     * Handle a marker that carries only the ID of its snapshot. The local
+     * state is recorded on the first marker of a snapshot. Must hold the
+     * bank's monitor.
+     *
+     * @param remoteBankId ID of the bank the marker came from
+     * @param initiatorId  ID of the initiator of the snapshot
+     * @param epoch        number of the snapshot at the initiator
+     * @throws IOException if unable to send markers or the local state
+     */
+    public void handleLightMarker(
+            UUID remoteBankId,
+            UUID initiatorId,
+            long epoch) throws IOException {
+        SnapshotId id = new SnapshotId(initiatorId, epoch);
+        Run run = runs.get(id);
+        if (run == null) {
+            // every marker of a snapshot arrives before it completes, so a
+            // snapshot is never started again after it has been evicted
+            evictCompleted();
+            run = new Run(id);
+            runs.put(id, run);
+            run.record(bank.takeSnapshot());
+        }
+        run.markerReceived(remoteBankId);
+    }
+
+    /**
+     * Collect the state of a bank for a snapshot started by this bank. Must
+     * hold the bank's monitor.
+     *
+     * @param remoteBankId ID of the bank the state belongs to
+     * @param epoch        number of the snapshot
+     * @param state        recorded state of the bank
+     * @throws IOException if unable to read back the channel states
+     */
+    public void receiveState(UUID remoteBankId, long epoch, Snapshot state)
+            throws IOException {
+        Run run = runs.get(new SnapshotId(bankId, epoch));
+        if (run != null && !run.isComplete()) {
+            run.collect(remoteBankId, state);
+        }
+    }
+
+    /**
+     * Record a message in the state of its channel for every snapshot that
+     * is recording the channel. Must hold the bank's monitor.
+     *
+     * @param message message received from another bank
+     * @throws IOException if unable to spill the channel state to disk
+     */
+    public void recordMessage(Message message) throws IOException {
+        for (Run run : runs.values()) {
+            run.record(message);
+        }
+    }
+
+    /**
+     * Collect part of the recorded state of a channel into a bank, for a
+     * snapshot started by this bank. Must hold the bank's monitor.
+     *
+     * @param remoteBankId ID of the bank that recorded the channel
+     * @param epoch        number of the snapshot
+     * @param chunk        CHANDY_LAMPORT_CHANNEL message holding the updates
+     * @throws IOException if unable to spill the channel state to disk
+     */
+    public void receiveChannelState(
+            UUID remoteBankId,
+            long epoch,
+            Message chunk) throws IOException {
+        Run run = runs.get(new SnapshotId(bankId, epoch));
+        if (run == null || run.isComplete()) {
+            return;
+        }
+        ChannelRecorder recorder = run.recorder(
+            run.collected,
+            remoteBankId,
+            chunk.getChannelId());
+        long[] amounts = chunk.getAmounts();
+        for (int i = 0; i < amounts.length; i++) {
+            // withdrawals travel as negative amounts
+            recorder.record(
+                amounts[i] < 0 ? Command.WITHDRAW : Command.DEPOSIT,
+                chunk.getAccountIds().get(i),
+                Math.abs(amounts[i]));
+        }
+    }
+
+    /**
+     * Stop waiting for a bank that has disconnected, in every snapshot still
+     * running. Must hold the bank's monitor.
+     *
+     * @param remoteBankId ID of the remote bank
+     * @throws IOException if unable to send the local state
+     */
+    public void removeBank(UUID remoteBankId) throws IOException {
+        for (Run run : new ArrayList<>(runs.values())) {
+            if (!run.isComplete()) {
+                run.removeMember(remoteBankId);
+            }
+        }
+    }
+
+    /**
+     * Forget snapshots that completed longer ago than the retention window.
+     * Must hold the bank's monitor.
+     */
+    private void evictCompleted() {
+        long retention = TimeUnit.MILLISECONDS.toNanos(
+            bank.getConfig().getSnapshotRetentionMillis());
+        long now = System.nanoTime();
+        Iterator<Run> iterator = runs.values().iterator();
+        while (iterator.hasNext()) {
+            Run run = iterator.next();
+            if (run.isComplete() && now - run.completedAt >= retention) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Check whether every remote bank accepts markers without states.
+     *
+     * @return true if lightweight markers can be used
+     */
+    private boolean lightMarkersSupported() {
+        if (bank.getRemoteBanks().isEmpty()) {
+            return false;
+        }
+        for (RemoteBank remoteBank : bank.getRemoteBanks().values()) {
+            if (!remoteBank.supportsLightMarkers()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * State of a snapshot taken with lightweight markers. Guarded by the
+     * bank's monitor.
+     */
+    private class Run {
+        private final SnapshotId id;
+        private final Set<UUID> awaitingMarkers = new HashSet<>();
+        // banks whose state the initiator waits for, fixed when the local
+        // state is recorded
+        private final Set<UUID> members = new HashSet<>();
+        private final Map<UUID, Snapshot> states = new HashMap<>();
+        // recorded here, indexed by sender
+        private final Map<UUID, ChannelRecorder> channels = new HashMap<>();
+        // collected by the initiator, indexed by receiver then sender
+        private final Map<UUID, Map<UUID, ChannelRecorder>> collected =
+            new LinkedHashMap<>();
+        private Snapshot state;
+        private boolean complete;
+        private long completedAt;
+        // set when the initiator hands the snapshot back instead of
+        // printing it
+        private CompletableFuture<GlobalSnapshot> result;
+
+        /**
+         * Create a run.
+         *
+         * @param id ID of the snapshot
+         */
+        private Run(SnapshotId id) {
+            this.id = id;
+        }
+
+        /**
+         * Check whether this bank is done with the snapshot.
+         *
+         * @return true once the states are printed at the initiator, or the
+         *         local state is sent elsewhere
+         */
+        private boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * Mark this bank as done with the snapshot, starting its retention
+         * window.
+         *
+         * @throws IOException if unable to delete a spill file
+         */
+        private void complete() throws IOException {
+            complete = true;
+            completedAt = System.nanoTime();
+            close();
+        }
+
+        /**
+         * Stop recording the snapshot before it completes, as no one is
+         * waiting for it any more.
+         *
+         * @throws IOException if unable to delete a spill file
+         */
+        private void abandon() throws IOException {
+            if (!complete) {
+                awaitingMarkers.clear();
+                complete();
+            }
+        }
+
+        /**
+         * Record the local state and send a marker on every channel.
+         *
+         * @param currentState current state of the local bank
+         * @throws IOException if unable to send markers
+         */
+        private void record(Snapshot currentState) throws IOException {
+            state = currentState;
+            awaitingMarkers.addAll(bank.getRemoteBanks().keySet());
+            members.addAll(awaitingMarkers);
+            members.add(bankId);
+            for (RemoteBank remoteBank : bank.getRemoteBanks().values()) {
+                remoteBank.sendChandyLamportMarker(
+                    id.getInitiatorId(),
+                    id.getEpoch());
+            }
+        }
+
+        /**
+         * Record a message in the state of its channel, if the local state
+         * has been recorded and the marker on the channel has not arrived.
+         *
+         * @param message message received from another bank
+         * @throws IOException if unable to spill the channel state to disk
+         */
+        private void record(Message message) throws IOException {
+            UUID sourceId = message.getSourceId();
+            if (ChannelRecorder.isUpdate(message) &&
+                awaitingMarkers.contains(sourceId)) {
+                ChannelRecorder recorder = channels.get(sourceId);
+                if (recorder == null) {
+                    recorder = new ChannelRecorder(
+                        bank.getConfig().getChannelMemory());
+                    channels.put(sourceId, recorder);
+                }
+                recorder.record(message);
+            }
+        }
+
+        /**
+         * Close a channel, and hand the local state and the state of every
+         * channel to the initiator once every channel is closed.
+         *
+         * @param remoteBankId ID of the bank the marker came from
+         * @throws IOException if unable to send the local state
+         */
+        private void markerReceived(UUID remoteBankId) throws IOException {
+            if (!awaitingMarkers.remove(remoteBankId) ||
+                !awaitingMarkers.isEmpty()) {
+                return;
+            }
+            if (id.getInitiatorId().equals(bankId)) {
+                collected.put(bankId, new LinkedHashMap<>(channels));
+                channels.clear();
+                collect(bankId, state);
+                return;
+            }
+
+            RemoteBank initiator =
+                bank.getRemoteBanks().get(id.getInitiatorId());
+            if (initiator == null) {
+                // reached through another bank before the initiator
+                // registered here, so the state has nowhere to go
+                complete();
+                return;
+            }
+            for (Map.Entry<UUID, ChannelRecorder> channel :
+                    channels.entrySet()) {
+                sendChannel(initiator, channel.getKey(), channel.getValue());
+            }
+            // sent after the channel state, so the initiator has it all
+            // by the time the local state arrives
+            initiator.sendChandyLamportState(
+                state,
+                id.getInitiatorId(),
+                id.getEpoch());
+            complete();
+        }
+
+        /**
+         * Stop waiting for the marker and the state of a bank that has
+         * disconnected, completing the snapshot if it was the last one.
+         *
+         * @param remoteBankId ID of the remote bank
+         * @throws IOException if unable to send the local state
+         */
+        private void removeMember(UUID remoteBankId) throws IOException {
+            members.remove(remoteBankId);
+            markerReceived(remoteBankId);
+            if (!complete) {
+                checkComplete();
+            }
+        }
+
+        /**
+         * Stream the recorded state of a channel to the initiator in chunks.
+         *
+         * @param initiator the initiator of the snapshot
+         * @param channelId ID of the bank at the far end of the channel
+         * @param recorder  the recorded state of the channel
+         * @throws IOException if unable to send the channel state
+         */
+        private void sendChannel(
+                RemoteBank initiator,
+                UUID channelId,
+                ChannelRecorder recorder) throws IOException {
+            List<String> accountIds = new ArrayList<>(CHANNEL_CHUNK_SIZE);
+            long[] amounts = new long[CHANNEL_CHUNK_SIZE];
+            recorder.forEach((command, accountId, amount) -> {
+                amounts[accountIds.size()] =
+                    command == Command.WITHDRAW ? -amount : amount;
+                accountIds.add(accountId);
+                if (accountIds.size() == CHANNEL_CHUNK_SIZE) {
+                    // the message keeps the array until it is encoded,
+                    // after the next chunk has been written over this one
+                    initiator.sendChandyLamportChannel(
+                        channelId,
+                        accountIds,
+                        amounts.clone(),
+                        id.getInitiatorId(),
+                        id.getEpoch());
+                    accountIds.clear();
+                }
+            });
+            if (!accountIds.isEmpty()) {
+                initiator.sendChandyLamportChannel(
+                    channelId,
+                    accountIds,
+                    Arrays.copyOf(amounts, accountIds.size()),
+                    id.getInitiatorId(),
+                    id.getEpoch());
+            }
+        }
+
+        /**
+         * Find the recorder collecting a channel, creating it if needed.
+         *
+         * @param recorders recorders indexed by receiver then sender
+         * @param receiver  ID of the bank that recorded the channel
+         * @param sender    ID of the bank at the far end of the channel
+         * @return the recorder for the channel
+         */
+        private ChannelRecorder recorder(
+                Map<UUID, Map<UUID, ChannelRecorder>> recorders,
+                UUID receiver,
+                UUID sender) {
+            Map<UUID, ChannelRecorder> byReceiver = recorders.get(receiver);
+            if (byReceiver == null) {
+                byReceiver = new LinkedHashMap<>();
+                recorders.put(receiver, byReceiver);
+            }
+            ChannelRecorder recorder = byReceiver.get(sender);
+            if (recorder == null) {
+                recorder = new ChannelRecorder(
+                    bank.getConfig().getChannelMemory());
+                byReceiver.put(sender, recorder);
+            }
+            return recorder;
+        }
+
+        /**
+         * Delete any channel state spilled to disk, and let go of the
+         * recorded states.
+         *
+         * @throws IOException if unable to close a spill file
+         */
+        private void close() throws IOException {
+            for (ChannelRecorder recorder : channels.values()) {
+                recorder.close();
+            }
+            for (Map<UUID, ChannelRecorder> byReceiver : collected.values()) {
+                for (ChannelRecorder recorder : byReceiver.values()) {
+                    recorder.close();
+                }
+            }
+            channels.clear();
+            collected.clear();
+            states.clear();
+            state = null;
+        }
+
+        /**
+         * Collect the state of a bank at the initiator, and print every
+         * state once the state of every bank taking part is in.
+         *
+         * @param stateBankId ID of the bank the state belongs to
+         * @param bankState   recorded state of the bank
+         * @throws IOException if unable to read back the channel states
+         */
+        private void collect(UUID stateBankId, Snapshot bankState)
+                throws IOException {
+            if (!members.contains(stateBankId)) {
+                // registered after the snapshot started, so not part of it
+                return;
+            }
+            states.put(stateBankId, bankState);
+            checkComplete();
+        }
+
+        /**
+         * Print every collected state, or hand them back, once the state of
+         * every bank that took part is in.
+         *
+         * @throws IOException if unable to read back the channel states
+         */
+        private void checkComplete() throws IOException {
+            if (!states.keySet().containsAll(members)) {
+                return;
+            }
+            GlobalSnapshot globalSnapshot = new GlobalSnapshot(
+                new InitiatorInfo(bankId, id.getEpoch(), 0),
+                new ArrayList<>(states.values()),
+                new ArrayList<>(),
+                amountsInTransit());
+            if (result == null) {
+                bank.printSnapshots(states.values());
+                bank.printChannelStates(collected);
+                System.out.print("> ");
+            }
+            complete();
+            bank.completeSnapshot(result, globalSnapshot);
+        }
+
+        /**
+         * Total the collected channel states by account.
+         *
+         * @return net amounts in transit indexed by account ID
+         * @throws IOException if unable to read back a spilled channel state
+         */
+        private Map<String, Long> amountsInTransit() throws IOException {
+            Map<String, Long> amounts = new HashMap<>();
+            for (Map<UUID, ChannelRecorder> byReceiver : collected.values()) {
+                for (ChannelRecorder recorder : byReceiver.values()) {
+                    recorder.forEach((command, accountId, amount) ->
+                        amounts.merge(
+                            accountId,
+                            command == Command.WITHDRAW ? -amount : amount,
+                            Long::sum));
+                }
+            }
+            return amounts;
+        }
+    }
 }
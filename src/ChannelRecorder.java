@@ -0,0 +1,212 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Messages recorded on one channel for a Chandy-Lamport snapshot, kept as
+ * (command, account, amount) tuples rather than whole messages.
+ *
+ * <p>
+ * Tuples are encoded into a buffer in memory. Once the buffer grows past
+ * the memory limit it is appended to a temporary file and emptied, so a
+ * busy channel never holds more than the limit in memory. Tuples are read
+ * back in the order they were recorded, from the file first and then from
+ * the buffer. Closing the recorder deletes the file.
+ */
+public class ChannelRecorder implements Closeable {
+    private static final Command[] COMMANDS = Command.values();
+
+    private final long memoryLimit;
+    private final ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private final DataOutputStream buffer = new DataOutputStream(memory);
+    private File spillFile;
+    private DataOutputStream spill;
+    private long count;
+    private long spilled;
+
+    /**
+     * Visits recorded tuples.
+     */
+    public interface Visitor {
+        /**
+         * Visit a tuple.
+         *
+         * @param command   DEPOSIT or WITHDRAW
+         * @param accountId ID of the account
+         * @param amount    amount deposited or withdrawn
+         * @throws IOException if unable to handle the tuple
+         */
+        void visit(Command command, String accountId, long amount)
+            throws IOException;
+    }
+
+    /**
+     * Create an empty recorder.
+     *
+     * @param memoryLimit bytes of tuples to hold in memory before spilling
+     *                    them to disk
+     */
+    public ChannelRecorder(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Record a tuple.
+     *
+     * @param command   DEPOSIT or WITHDRAW
+     * @param accountId ID of the account
+     * @param amount    amount deposited or withdrawn
+     * @throws IOException if unable to spill to disk
+     */
+    public void record(Command command, String accountId, long amount)
+            throws IOException {
+        buffer.writeByte(command.ordinal());
+        buffer.writeUTF(accountId);
+        buffer.writeLong(amount);
+        count++;
+        if (memory.size() > memoryLimit) {
+            spill();
+        }
+    }
+
+    /**
+     * Record every account update carried by a message. Messages which do
+     * not update accounts are not recorded.
+     *
+     * @param message message received on the channel
+     * @throws IOException if unable to spill to disk
+     */
+    public void record(Message message) throws IOException {
+        Command command = message.getCommand();
+        if (command == Command.DEPOSIT || command == Command.WITHDRAW) {
+            record(
+                command,
+                message.getAccountIds().get(0),
+                message.getAmount());
+        } else if (command == Command.DEPOSIT_BATCH ||
+            command == Command.WITHDRAW_BATCH) {
+            Command single = command == Command.DEPOSIT_BATCH ?
+                Command.DEPOSIT :
+                Command.WITHDRAW;
+            for (int i = 0; i < message.getAmounts().length; i++) {
+                record(
+                    single,
+                    message.getAccountIds().get(i),
+                    message.getAmounts()[i]);
+            }
+        }
+    }
+
+    /**
+     * Check whether a message carries account updates.
+     *
+     * @param message message received on a channel
+     * @return true if the message is a deposit or withdrawal
+     */
+    public static boolean isUpdate(Message message) {
+        Command command = message.getCommand();
+        return command == Command.DEPOSIT ||
+            command == Command.WITHDRAW ||
+            command == Command.DEPOSIT_BATCH ||
+            command == Command.WITHDRAW_BATCH;
+    }
+
+    /**
+     * Retrieve the number of recorded tuples.
+     *
+     * @return the number of tuples
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     * Check whether any tuples have been spilled to disk.
+     *
+     * @return true if the recorder has a spill file
+     */
+    public boolean isSpilled() {
+        return spillFile != null;
+    }
+
+    /**
+     * Read back every tuple in the order it was recorded.
+     *
+     * @param visitor called with each tuple
+     * @throws IOException if unable to read the spill file
+     */
+    public void forEach(Visitor visitor) throws IOException {
+        if (spill != null) {
+            spill.flush();
+            try (InputStream file = new BufferedInputStream(
+                    new FileInputStream(spillFile))) {
+                read(new DataInputStream(file), spilled, visitor);
+            }
+        }
+        read(
+            new DataInputStream(new ByteArrayInputStream(memory.toByteArray())),
+            count - spilled,
+            visitor);
+    }
+
+    /**
+     * Delete the spill file, if there is one.
+     *
+     * @throws IOException if unable to close the spill file
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (spill != null) {
+                spill.close();
+                spill = null;
+            }
+        } finally {
+            if (spillFile != null) {
+                spillFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Append the buffer to the spill file and empty it.
+     *
+     * @throws IOException if unable to write to the spill file
+     */
+    private void spill() throws IOException {
+        if (spill == null) {
+            spillFile = File.createTempFile("channel", ".rec");
+            spill = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(spillFile, true)));
+        }
+        memory.writeTo(spill);
+        memory.reset();
+        spilled = count;
+    }
+
+    /**
+     * Read tuples from a stream.
+     *
+     * @param in      source of the tuples
+     * @param tuples  number of tuples to read
+     * @param visitor called with each tuple
+     * @throws IOException if unable to read the tuples
+     */
+    private static void read(DataInputStream in, long tuples, Visitor visitor)
+            throws IOException {
+        for (long i = 0; i < tuples; i++) {
+            Command command = COMMANDS[in.readUnsignedByte()];
+            String accountId = in.readUTF();
+            visitor.visit(command, accountId, in.readLong());
+        }
+    }
+}
@@ -0,0 +1,252 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Balances of the local accounts pinned together with the end of the
+ * write-ahead log at that moment, so every record before the end is
+ * reflected in the balances and no record after it is.
+ *
+ * <p>
+ * A checkpoint is written to the log directory as a header, each account
+ * in index order as its ID, balance and whether it is contended, and a
+ * CRC32 of everything before it. The file is written under a temporary
+ * name, forced and then renamed, and the directory forced after the
+ * rename, so a checkpoint is either complete or absent. The latest
+ * {@link #KEPT} checkpoints are kept, so a damaged checkpoint can fall back
+ * to the one before it, and the log only has to be kept from the oldest of
+ * them.
+ */
+public class Checkpoint {
+    public static final int KEPT = 2;
+
+    private static final int MAGIC = 0x43484b50;
+    private static final String PREFIX = "checkpoint-";
+    private static final String SUFFIX = ".bin";
+    private static final String TEMPORARY = ".tmp";
+
+    private final AccountStore.Version version;
+    private final long lsn;
+
+    /**
+     * Create a checkpoint of a pinned version.
+     *
+     * @param version the pinned balances of the local accounts
+     * @param lsn     end of the write-ahead log when the version was pinned
+     */
+    public Checkpoint(AccountStore.Version version, long lsn) {
+        this.version = version;
+        this.lsn = lsn;
+    }
+
+    /**
+     * Retrieve the pinned balances of the local accounts.
+     *
+     * @return the pinned version
+     */
+    public AccountStore.Version getVersion() {
+        return version;
+    }
+
+    /**
+     * Retrieve the end of the write-ahead log when the balances were pinned.
+     *
+     * @return the LSN the checkpoint covers the log up to
+     */
+    public long getLsn() {
+        return lsn;
+    }
+
+    /**
+     * Write the checkpoint to a directory and release the pinned version,
+     * then delete all but the latest checkpoints.
+     *
+     * @param directory the log directory
+     * @return the LSN of the oldest checkpoint kept, below which the log is
+     *         no longer needed
+     * @throws IOException if unable to write the checkpoint
+     */
+    public long write(File directory) throws IOException {
+        File file = new File(directory, name(lsn));
+        File temporary = new File(directory, name(lsn) + TEMPORARY);
+        try (FileOutputStream out = new FileOutputStream(temporary)) {
+            CRC32 crc = new CRC32();
+            DataOutputStream data = new DataOutputStream(
+                new BufferedOutputStream(
+                    new CheckedOutputStream(out, crc),
+                    1 << 16));
+            AccountStore store = version.getStore();
+            data.writeInt(MAGIC);
+            data.writeLong(lsn);
+            data.writeInt(version.size());
+            for (int index = 0; index < version.size(); index++) {
+                byte[] id = version.getAccountId(index)
+                        .getBytes(StandardCharsets.UTF_8);
+                data.writeInt(id.length);
+                data.write(id);
+                data.writeLong(version.getBalance(index));
+                data.writeBoolean(store.isContended(index));
+            }
+            data.flush();
+            data.writeInt((int) crc.getValue());
+            data.flush();
+            out.getChannel().force(true);
+        } finally {
+            version.release();
+        }
+        Files.move(
+            temporary.toPath(),
+            file.toPath(),
+            StandardCopyOption.ATOMIC_MOVE);
+        // the log is truncated below the checkpoint, so the rename has to
+        // be durable before it is
+        forceDirectory(directory);
+
+        File[] checkpoints = list(directory);
+        for (int i = 0; i < checkpoints.length - KEPT; i++) {
+            if (!checkpoints[i].delete()) {
+                throw new IOException("Unable to delete " + checkpoints[i]);
+            }
+        }
+        return lsnOf(checkpoints[Math.max(0, checkpoints.length - KEPT)]);
+    }
+
+    /**
+     * Restore the latest intact checkpoint in a directory into an empty
+     * store, opening the accounts in the same order so they keep their
+     * indices.
+     *
+     * @param directory the log directory
+     * @param store     the empty store to restore the accounts into
+     * @return the LSN the log has to be replayed from, 0 if there is no
+     *         intact checkpoint
+     * @throws IOException if unable to read a checkpoint
+     */
+    public static long load(File directory, AccountStore store)
+            throws IOException {
+        File[] checkpoints = list(directory);
+        for (int i = checkpoints.length - 1; i >= 0; i--) {
+            try (FileChannel in = FileChannel.open(
+                    checkpoints[i].toPath(),
+                    StandardOpenOption.READ)) {
+                ByteBuffer buffer = in.map(
+                    FileChannel.MapMode.READ_ONLY,
+                    0,
+                    in.size());
+                if (isIntact(buffer)) {
+                    return restore(buffer, store);
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Check the magic number and checksum of a checkpoint.
+     *
+     * @param buffer the mapped checkpoint
+     * @return true if the checkpoint is complete and undamaged
+     */
+    private static boolean isIntact(ByteBuffer buffer) {
+        if (buffer.limit() < 4 + 8 + 4 + 4 || buffer.getInt(0) != MAGIC) {
+            return false;
+        }
+        ByteBuffer body = buffer.duplicate();
+        body.limit(buffer.limit() - 4);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue() == buffer.getInt(buffer.limit() - 4);
+    }
+
+    /**
+     * Open every account of an intact checkpoint in a store.
+     *
+     * @param buffer the mapped checkpoint
+     * @param store  the empty store to restore the accounts into
+     * @return the LSN the checkpoint covers the log up to
+     */
+    private static long restore(ByteBuffer buffer, AccountStore store) {
+        buffer.position(4);
+        long lsn = buffer.getLong();
+        int count = buffer.getInt();
+        byte[] id = new byte[64];
+        for (int index = 0; index < count; index++) {
+            int length = buffer.getInt();
+            if (length > id.length) {
+                id = new byte[Math.max(length, id.length * 2)];
+            }
+            buffer.get(id, 0, length);
+            store.open(
+                new String(id, 0, length, StandardCharsets.UTF_8),
+                buffer.getLong(),
+                buffer.get() != 0);
+        }
+        return lsn;
+    }
+
+    /**
+     * Force the entries of a directory to disk, such as a file just renamed
+     * into it.
+     *
+     * @param directory the directory
+     * @throws IOException if unable to force the directory
+     */
+    private static void forceDirectory(File directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(
+                directory.toPath(),
+                StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * List the checkpoints in a directory, oldest first.
+     *
+     * @param directory the log directory
+     * @return the checkpoint files
+     */
+    private static File[] list(File directory) {
+        File[] files = directory.listFiles((dir, name) ->
+            name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        // the zero padded LSNs sort in the same order as their values
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Name the checkpoint file covering the log up to an LSN.
+     *
+     * @param lsn the LSN covered
+     * @return the file name
+     */
+    private static String name(long lsn) {
+        return String.format("%s%020d%s", PREFIX, lsn, SUFFIX);
+    }
+
+    /**
+     * Find the LSN a checkpoint covers from its name.
+     *
+     * @param file the checkpoint file
+     * @return the LSN covered
+     */
+    private static long lsnOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(
+            PREFIX.length(),
+            name.length() - SUFFIX.length()));
+    }
+}
@@ -0,0 +1,15 @@
+/**
+ * Ways in which a bank can send its vector clock to remote banks.
+ */
+public enum ClockEncoding {
+    /**
+     * Every message carries the whole vector clock, understood by every bank.
+     */
+    FULL,
+
+    /**
+     * Messages carry only the clock values that changed since the previous
+     * message to the same bank, used when the remote bank supports it.
+     */
+    DELTA
+}
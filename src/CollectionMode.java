@@ -0,0 +1,18 @@
+/**
+ * Ways in which the snapshots and white messages of a Mattern round reach
+ * its initiator.
+ */
+public enum CollectionMode {
+    /**
+     * Every bank sends its snapshot and each white message straight to the
+     * initiator.
+     */
+    DIRECT,
+
+    /**
+     * Banks form a tree rooted at the initiator. Each bank merges the
+     * reports of its children with its own, and totals white messages by
+     * account, before passing a single report to its parent.
+     */
+    TREE
+}
@@ -14,5 +14,11 @@ public enum Command {
     SNAPSHOT,
     WHITE_MESSAGE,
     CHANDY_LAMPORT_MARKER,
-    CHANDY_LAMPORT_RESET
+    CHANDY_LAMPORT_RESET,
+    DEPOSIT_BATCH,
+    WITHDRAW_BATCH,
+    SNAPSHOT_COMPLETE,
+    CHANDY_LAMPORT_STATE,
+    CHANDY_LAMPORT_CHANNEL,
+    LAI_YANG_REPORT
 }
@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread servicing many remote bank connections.
+ */
+public class EventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<EventLoop> CURRENT = new ThreadLocal<>();
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final Thread thread;
+
+    /**
+     * Create an event loop.
+     *
+     * @param name name of the selector thread
+     * @throws IOException if unable to open a selector
+     */
+    public EventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Start the selector thread.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Run a task on the selector thread.
+     *
+     * @param task the task to run
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Check whether the calling thread is the selector thread of an event
+     * loop, which must never wait on anything only a selector thread can
+     * bring about.
+     *
+     * @return true if called from a selector thread
+     */
+    public static boolean inEventLoop() {
+        return CURRENT.get() != null;
+    }
+
+    /**
+     * Retrieve the selector of this event loop.
+     *
+     * @return the selector
+     */
+    public Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Retrieve the buffer shared by every read on this event loop. Must only
+     * be used from the selector thread.
+     *
+     * @return the read buffer
+     */
+    public ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    /**
+     * Stop the selector thread and close the selector.
+     *
+     * @throws IOException if unable to close the selector
+     */
+    public void shutdown() throws IOException {
+        thread.interrupt();
+        selector.close();
+    }
+
+    @Override
+    public void run() {
+        CURRENT.set(this);
+        try {
+            while (!Thread.interrupted()) {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        // a failed task must not stop every connection
+                        e.printStackTrace();
+                        System.out.print("> ");
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys()
+                        .iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioPeerConnection connection =
+                        (NioPeerConnection) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        connection.handleRead();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.handleWrite();
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // do nothing
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.print("> ");
+        }
+    }
+}
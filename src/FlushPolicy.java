@@ -0,0 +1,95 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when messages queued for a remote bank are flushed to its socket.
+ *
+ * <p>
+ * Queued messages are encoded into a buffer as soon as a writer gets to
+ * them, and the buffer is written with a single call once it holds at least
+ * {@link #getSizeThreshold()} bytes, or once its oldest message has waited
+ * {@link #getMaxDelayNanos()}.
+ */
+public final class FlushPolicy {
+    public static final long DEFAULT_SIZE_DELAY_MILLIS = 5;
+
+    private final int sizeThreshold;
+    private final long maxDelayNanos;
+
+    private FlushPolicy(int sizeThreshold, long maxDelayNanos) {
+        this.sizeThreshold = sizeThreshold;
+        this.maxDelayNanos = maxDelayNanos;
+    }
+
+    /**
+     * Flush as soon as the writer has drained the queue. Messages queued
+     * while a write is in progress still share the next flush.
+     *
+     * @return the policy
+     */
+    public static FlushPolicy immediate() {
+        return new FlushPolicy(0, 0);
+    }
+
+    /**
+     * Flush once enough bytes are buffered. A quiet channel is still flushed
+     * after {@link #DEFAULT_SIZE_DELAY_MILLIS} so messages are never stranded.
+     *
+     * @param bytes number of buffered bytes that triggers a flush
+     * @return the policy
+     */
+    public static FlushPolicy sizeThreshold(int bytes) {
+        return new FlushPolicy(
+            bytes,
+            TimeUnit.MILLISECONDS.toNanos(DEFAULT_SIZE_DELAY_MILLIS));
+    }
+
+    /**
+     * Flush once the oldest buffered message has waited for a while.
+     *
+     * @param millis longest time a message may wait to be flushed
+     * @return the policy
+     */
+    public static FlushPolicy maxLatency(long millis) {
+        return new FlushPolicy(
+            Integer.MAX_VALUE,
+            TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * Parse a policy of the form immediate, size:&lt;bytes&gt; or
+     * latency:&lt;millis&gt;.
+     *
+     * @param policy the policy to parse
+     * @return the policy
+     * @throws IllegalArgumentException if the policy is not recognised
+     */
+    public static FlushPolicy parse(String policy) {
+        String[] parts = policy.split(":", 2);
+        if (parts[0].equals("immediate") && parts.length == 1) {
+            return immediate();
+        } else if (parts[0].equals("size") && parts.length == 2) {
+            return sizeThreshold(Integer.parseInt(parts[1]));
+        } else if (parts[0].equals("latency") && parts.length == 2) {
+            return maxLatency(Long.parseLong(parts[1]));
+        }
+        throw new IllegalArgumentException("Unknown flush policy " + policy);
+    }
+
+    /**
+     * Retrieve the number of buffered bytes that triggers a flush.
+     *
+     * @return the size threshold in bytes
+     */
+    public int getSizeThreshold() {
+        return sizeThreshold;
+    }
+
+    /**
+     * Retrieve the longest time a buffered message waits to be flushed.
+     *
+     * @return the maximum delay in nanoseconds
+     */
+    public long getMaxDelayNanos() {
+        return maxDelayNanos;
+    }
+}
@@ -0,0 +1,218 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Result of a completed run of Mattern's algorithm, the snapshot of every
+ * bank along with the messages that were in transit when it was taken.
+ * When the snapshot was collected through a {@link SnapshotTree}, each
+ * snapshot covers a branch of the tree, and messages seen below the children
+ * of the initiator are only kept as amounts in transit per account.
+ *
+ * <p>
+ * A snapshot put together by a {@link SnapshotAssembler} keeps no white
+ * messages, only amounts in transit, and carries the totals the assembler
+ * kept as the parts arrived. Other snapshots total their parts when first
+ * asked. Closing the snapshot deletes any parts the assembler spilled to
+ * disk, after which they can no longer be read.
+ */
+public class GlobalSnapshot implements Closeable {
+    private final InitiatorInfo initiatorInfo;
+    private final Collection<Snapshot> snapshots;
+    private final Collection<Message> whiteMessages;
+    private final Map<String, Long> amountsInTransit;
+    private final SnapshotAssembler assembler;
+    // guarded by this until totalled
+    private boolean totalled;
+    private long accountCount;
+    private long totalBalance;
+    private long totalInTransit;
+    private Map<UUID, Long> branchTotals;
+
+    /**
+     * Create a global snapshot.
+     *
+     * @param initiatorInfo    info on the initiator of the algorithm
+     * @param snapshots        snapshot of every bank
+     * @param whiteMessages    messages in transit
+     * @param amountsInTransit amounts in transit totalled by a snapshot tree,
+     *                         indexed by account ID
+     */
+    public GlobalSnapshot(
+            InitiatorInfo initiatorInfo,
+            Collection<Snapshot> snapshots,
+            Collection<Message> whiteMessages,
+            Map<String, Long> amountsInTransit) {
+        this.initiatorInfo = initiatorInfo;
+        this.snapshots = Collections.unmodifiableCollection(snapshots);
+        this.whiteMessages = Collections.unmodifiableCollection(whiteMessages);
+        this.amountsInTransit = Collections.unmodifiableMap(amountsInTransit);
+        this.assembler = null;
+    }
+
+    /**
+     * Create a global snapshot from the parts an assembler has put
+     * together.
+     *
+     * @param initiatorInfo info on the initiator of the algorithm
+     * @param assembler     the assembler holding every part
+     */
+    public GlobalSnapshot(
+            InitiatorInfo initiatorInfo,
+            SnapshotAssembler assembler) {
+        this.initiatorInfo = initiatorInfo;
+        this.snapshots = assembler.getSnapshots();
+        this.whiteMessages = Collections.emptyList();
+        this.amountsInTransit = Collections.unmodifiableMap(
+            assembler.getAmountsInTransit());
+        this.assembler = assembler;
+        this.accountCount = assembler.getAccountCount();
+        this.totalBalance = assembler.getTotalBalance();
+        this.totalInTransit = assembler.getTotalInTransit();
+        this.branchTotals = assembler.getBranchTotals();
+        this.totalled = true;
+    }
+
+    /**
+     * Retrieve the ID of the bank that initiated the snapshot.
+     *
+     * @return ID of the initiator
+     */
+    public UUID getInitiatorId() {
+        return initiatorInfo.getInitiatorId();
+    }
+
+    /**
+     * Retrieve the number of the snapshot at its initiator.
+     *
+     * @return the epoch of the snapshot
+     */
+    public long getEpoch() {
+        return initiatorInfo.getEpoch();
+    }
+
+    /**
+     * Retrieve the tick of the initiator at which the snapshot was taken.
+     *
+     * @return the future tick of the snapshot
+     */
+    public long getFutureTick() {
+        return initiatorInfo.getFutureTick();
+    }
+
+    /**
+     * Retrieve the snapshot of every bank.
+     *
+     * @return snapshots for all processes
+     */
+    public Collection<Snapshot> getSnapshots() {
+        return snapshots;
+    }
+
+    /**
+     * Retrieve the messages that were in transit.
+     *
+     * @return white messages
+     */
+    public Collection<Message> getWhiteMessages() {
+        return whiteMessages;
+    }
+
+    /**
+     * Retrieve the amounts in transit that were totalled on the way up a
+     * snapshot tree, rather than collected as white messages.
+     *
+     * @return net amount in transit to each account, indexed by account ID
+     */
+    public Map<String, Long> getAmountsInTransit() {
+        return amountsInTransit;
+    }
+
+    /**
+     * Retrieve the number of accounts in the snapshot.
+     *
+     * @return the number of accounts
+     */
+    public long getAccountCount() {
+        total();
+        return accountCount;
+    }
+
+    /**
+     * Retrieve the sum of every balance in the snapshot.
+     *
+     * @return the total balance
+     */
+    public long getTotalBalance() {
+        total();
+        return totalBalance;
+    }
+
+    /**
+     * Retrieve the sum of every amount in transit, whether kept as white
+     * messages or as amounts.
+     *
+     * @return the total amount in transit
+     */
+    public long getTotalInTransit() {
+        total();
+        return totalInTransit;
+    }
+
+    /**
+     * Retrieve the total balance of the snapshot of each bank, or of each
+     * branch of a snapshot tree.
+     *
+     * @return total balance indexed by the ID of the bank the snapshot is
+     *         for
+     */
+    public Map<UUID, Long> getBranchTotals() {
+        total();
+        return branchTotals;
+    }
+
+    /**
+     * Delete any parts the assembler spilled to disk.
+     *
+     * @throws IOException if unable to close the spill file
+     */
+    @Override
+    public void close() throws IOException {
+        if (assembler != null) {
+            assembler.close();
+        }
+    }
+
+    /**
+     * Total the parts of the snapshot, if that has not happened yet.
+     */
+    private synchronized void total() {
+        if (totalled) {
+            return;
+        }
+        Map<UUID, Long> totals = new LinkedHashMap<>();
+        for (Snapshot snapshot : snapshots) {
+            long balance = 0;
+            for (int i = 0; i < snapshot.size(); i++) {
+                balance += snapshot.getBalance(i);
+            }
+            accountCount += snapshot.size();
+            totalBalance += balance;
+            totals.merge(snapshot.getBankId(), balance, Long::sum);
+        }
+        for (long amount : amountsInTransit.values()) {
+            totalInTransit += amount;
+        }
+        for (Message message : whiteMessages) {
+            for (long amount : MAlgorithm.amountsOf(message).values()) {
+                totalInTransit += amount;
+            }
+        }
+        branchTotals = Collections.unmodifiableMap(totals);
+        totalled = true;
+    }
+}
@@ -0,0 +1,84 @@
+import java.util.function.IntFunction;
+
+/**
+ * Sorts accounts held in parallel arrays, or anything else indexed by
+ * position, by their IDs through an index of positions, so they need not
+ * be copied into {@link Account} objects to be sorted.
+ *
+ * <p>
+ * The index is merge sorted, with short ranges sorted by insertion, so the
+ * sort is stable and takes a single scratch array the size of the index.
+ */
+public final class IndexSort {
+    // ranges shorter than this are sorted by insertion
+    private static final int INSERTION_SORT = 16;
+
+    private IndexSort() {
+    }
+
+    /**
+     * Sort positions by the IDs at them.
+     *
+     * @param ids  the ID at each position
+     * @param size the number of positions
+     * @return the positions from 0 to size - 1 in order of ID, positions
+     *         with equal IDs in their original order
+     */
+    public static int[] sort(IntFunction<String> ids, int size) {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        sort(ids, order, new int[size], 0, size);
+        return order;
+    }
+
+    /**
+     * Merge sort part of an index by the IDs it points at.
+     *
+     * @param ids     the ID at each position
+     * @param order   the positions, sorted in place
+     * @param scratch space for merging, as long as the index
+     * @param from    first position of the range to sort
+     * @param to      position just past the range to sort
+     */
+    private static void sort(
+            IntFunction<String> ids,
+            int[] order,
+            int[] scratch,
+            int from,
+            int to) {
+        if (to - from < INSERTION_SORT) {
+            for (int i = from + 1; i < to; i++) {
+                int position = order[i];
+                String id = ids.apply(position);
+                int j = i;
+                while (j > from && ids.apply(order[j - 1]).compareTo(id) > 0) {
+                    order[j] = order[j - 1];
+                    j--;
+                }
+                order[j] = position;
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sort(ids, order, scratch, from, middle);
+        sort(ids, order, scratch, middle, to);
+        if (ids.apply(order[middle - 1]).compareTo(
+                ids.apply(order[middle])) <= 0) {
+            return;
+        }
+        System.arraycopy(order, from, scratch, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int k = from; k < to; k++) {
+            if (right == to || left < middle &&
+                ids.apply(scratch[left]).compareTo(
+                    ids.apply(scratch[right])) <= 0) {
+                order[k] = scratch[left++];
+            } else {
+                order[k] = scratch[right++];
+            }
+        }
+    }
+}
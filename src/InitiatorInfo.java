@@ -1,20 +1,26 @@
 import java.util.UUID;
 
 /**
- * A class to store the info of initiator of Mattern's algorithm.
+ * A class to store the info of initiator of Mattern's algorithm. Each round
+ * of the algorithm is identified by its initiator and epoch, so that rounds
+ * started by different banks, or by the same bank, can run side by side.
  */
 public class InitiatorInfo {
     private final UUID initiatorId;
+    private final long epoch;
     private final long futureTick;
 
     /**
      * Create an instance of InitiatorInfo.
      *
      * @param initiatorId ID of the initiator process
+     * @param epoch       number of the round at the initiator, or 0 if the
+     *                    initiator does not number its rounds
      * @param futureTick  time the snapshot will be recorded
      */
-    public InitiatorInfo(UUID initiatorId, long futureTick) {
+    public InitiatorInfo(UUID initiatorId, long epoch, long futureTick) {
         this.initiatorId = initiatorId;
+        this.epoch = epoch;
         this.futureTick = futureTick;
     }
 
@@ -27,6 +33,15 @@ public class InitiatorInfo {
         return initiatorId;
     }
 
+    /**
+     * Retrieve the epoch of the round.
+     *
+     * @return the epoch of the round
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
     /**
      * Retrieve the future tick.
      *
@@ -35,4 +50,39 @@ public class InitiatorInfo {
     public long getFutureTick() {
         return futureTick;
     }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + (int) (epoch ^ (epoch >>> 32));
+        result = prime * result +
+            ((initiatorId == null) ? 0 : initiatorId.hashCode());
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        InitiatorInfo other = (InitiatorInfo) obj;
+        if (epoch != other.epoch) {
+            return false;
+        }
+        if (initiatorId == null) {
+            if (other.initiatorId != null) {
+                return false;
+            }
+        } else if (!initiatorId.equals(other.initiatorId)) {
+            return false;
+        }
+        return true;
+    }
 }
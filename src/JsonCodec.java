@@ -0,0 +1,522 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.UUID;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Line delimited JSON encoding of {@link Message}.
+ *
+ * <p>
+ * One Gson instance is shared by every connection, with hand written
+ * streaming adapters for the message classes so that no reflection is
+ * involved. The JSON produced matches what Gson's reflective adapters
+ * produce, so banks running older versions can still read it.
+ */
+public final class JsonCodec {
+    private static final TypeAdapter<Account> ACCOUNT_ADAPTER =
+        new AccountAdapter().nullSafe();
+    private static final TypeAdapter<Snapshot> SNAPSHOT_ADAPTER =
+        new SnapshotAdapter().nullSafe();
+    private static final TypeAdapter<VectorClock> VECTOR_CLOCK_ADAPTER =
+        new VectorClockAdapter().nullSafe();
+    private static final TypeAdapter<Message> MESSAGE_ADAPTER =
+        new MessageAdapter().nullSafe();
+
+    private static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(Account.class, ACCOUNT_ADAPTER)
+            .registerTypeAdapter(Snapshot.class, SNAPSHOT_ADAPTER)
+            .registerTypeAdapter(VectorClock.class, VECTOR_CLOCK_ADAPTER)
+            .registerTypeAdapter(Message.class, MESSAGE_ADAPTER)
+            .create();
+
+    private JsonCodec() {
+    }
+
+    /**
+     * Retrieve the shared Gson instance.
+     *
+     * @return Gson configured with the message adapters
+     */
+    public static Gson getGson() {
+        return GSON;
+    }
+
+    /**
+     * Write a message followed by a new line.
+     *
+     * @param message the message to write
+     * @param out     destination of the JSON
+     * @throws IOException if unable to write the message
+     */
+    public static void write(Message message, Writer out) throws IOException {
+        write(message, null, out);
+    }
+
+    /**
+     * Write a message followed by a new line, sending only the clock values
+     * that changed since the previous message on the connection. The delta
+     * is written as "vectorClockDelta", which only banks that asked for
+     * delta clocks understand.
+     *
+     * @param message the message to write
+     * @param delta   clock values to send in place of the whole clock, or
+     *                null to send the whole clock
+     * @param out     destination of the JSON
+     * @throws IOException if unable to write the message
+     */
+    public static void write(Message message, VectorClock delta, Writer out)
+            throws IOException {
+        MessageAdapter.write(new JsonWriter(out), message, delta);
+        out.write('\n');
+    }
+
+    /**
+     * Read a single message.
+     *
+     * @param in source of the JSON
+     * @return the message
+     * @throws IOException if the JSON is malformed
+     */
+    public static Message read(Reader in) throws IOException {
+        return MESSAGE_ADAPTER.read(new JsonReader(in));
+    }
+
+    /**
+     * Write a list of strings.
+     *
+     * @param out     destination of the JSON
+     * @param strings the strings to write
+     * @throws IOException if unable to write the strings
+     */
+    private static void writeStrings(
+            JsonWriter out,
+            Collection<String> strings) throws IOException {
+        out.beginArray();
+        for (String string : strings) {
+            out.value(string);
+        }
+        out.endArray();
+    }
+
+    /**
+     * Read a list of strings.
+     *
+     * @param in source of the JSON
+     * @return the strings
+     * @throws IOException if the JSON is malformed
+     */
+    private static ArrayList<String> readStrings(JsonReader in)
+            throws IOException {
+        ArrayList<String> strings = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            strings.add(in.nextString());
+        }
+        in.endArray();
+        return strings;
+    }
+
+    /**
+     * Read a list of longs.
+     *
+     * @param in source of the JSON
+     * @return the longs
+     * @throws IOException if the JSON is malformed
+     */
+    private static long[] readLongs(JsonReader in) throws IOException {
+        long[] longs = new long[16];
+        int size = 0;
+        in.beginArray();
+        while (in.hasNext()) {
+            if (size == longs.length) {
+                longs = Arrays.copyOf(longs, size * 2);
+            }
+            longs[size++] = in.nextLong();
+        }
+        in.endArray();
+        return Arrays.copyOf(longs, size);
+    }
+
+    /**
+     * Read a UUID written as a string.
+     *
+     * @param in source of the JSON
+     * @return the UUID, or null if the value is null
+     * @throws IOException if the JSON is malformed
+     */
+    private static UUID readUuid(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return UUID.fromString(in.nextString());
+    }
+
+    /**
+     * Streaming adapter for {@link Account}.
+     */
+    private static final class AccountAdapter extends TypeAdapter<Account> {
+        @Override
+        public void write(JsonWriter out, Account account) throws IOException {
+            out.beginObject();
+            out.name("accountId").value(account.getAccountId());
+            out.name("balance").value(account.getBalance());
+            out.endObject();
+        }
+
+        @Override
+        public Account read(JsonReader in) throws IOException {
+            String accountId = null;
+            long balance = 0;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (name.equals("accountId")) {
+                    accountId = in.nextString();
+                } else if (name.equals("balance")) {
+                    balance = in.nextLong();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Account(accountId, balance);
+        }
+    }
+
+    /**
+     * Streaming adapter for {@link Snapshot}.
+     */
+    private static final class SnapshotAdapter extends TypeAdapter<Snapshot> {
+        @Override
+        public void write(JsonWriter out, Snapshot snapshot)
+                throws IOException {
+            out.beginObject();
+            out.name("bankId").value(snapshot.getBankId().toString());
+            out.name("accounts").beginArray();
+            for (int i = 0; i < snapshot.size(); i++) {
+                out.beginObject();
+                out.name("accountId").value(snapshot.getAccountId(i));
+                out.name("balance").value(snapshot.getBalance(i));
+                out.endObject();
+            }
+            out.endArray();
+            if (snapshot.isBase()) {
+                out.name("base").value(true);
+            }
+            if (snapshot.isDelta()) {
+                out.name("positions").beginArray();
+                for (int i = 0; i < snapshot.size(); i++) {
+                    out.value(snapshot.getPosition(i));
+                }
+                out.endArray();
+                out.name("fullSize").value(snapshot.getFullSize());
+            }
+            out.endObject();
+        }
+
+        @Override
+        public Snapshot read(JsonReader in) throws IOException {
+            UUID bankId = null;
+            String[] accountIds = new String[16];
+            long[] balances = new long[16];
+            int size = 0;
+            boolean base = false;
+            long[] positions = null;
+            int fullSize = 0;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (name.equals("bankId")) {
+                    bankId = readUuid(in);
+                } else if (name.equals("accounts")) {
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        if (size == accountIds.length) {
+                            accountIds = Arrays.copyOf(accountIds, size * 2);
+                            balances = Arrays.copyOf(balances, size * 2);
+                        }
+                        // read in place rather than through an Account
+                        in.beginObject();
+                        while (in.hasNext()) {
+                            String field = in.nextName();
+                            if (field.equals("accountId")) {
+                                accountIds[size] = in.nextString();
+                            } else if (field.equals("balance")) {
+                                balances[size] = in.nextLong();
+                            } else {
+                                in.skipValue();
+                            }
+                        }
+                        in.endObject();
+                        size++;
+                    }
+                    in.endArray();
+                } else if (name.equals("base")) {
+                    base = in.nextBoolean();
+                } else if (name.equals("positions")) {
+                    positions = readLongs(in);
+                } else if (name.equals("fullSize")) {
+                    fullSize = in.nextInt();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+
+            accountIds = Arrays.copyOf(accountIds, size);
+            balances = Arrays.copyOf(balances, size);
+            Snapshot snapshot;
+            if (positions != null) {
+                int[] indices = new int[positions.length];
+                for (int i = 0; i < indices.length; i++) {
+                    indices[i] = (int) positions[i];
+                }
+                snapshot = Snapshot.delta(
+                    bankId,
+                    indices,
+                    accountIds,
+                    balances,
+                    fullSize);
+            } else {
+                snapshot = new Snapshot(bankId, accountIds, balances);
+            }
+            if (base) {
+                snapshot.markBase();
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Streaming adapter for {@link VectorClock}.
+     */
+    private static final class VectorClockAdapter
+            extends TypeAdapter<VectorClock> {
+        @Override
+        public void write(JsonWriter out, VectorClock vectorClock)
+                throws IOException {
+            out.beginObject();
+            out.name("vc").beginObject();
+            for (int i = 0; i < vectorClock.getCapacity(); i++) {
+                UUID pid = vectorClock.findProcess(i);
+                if (pid != null) {
+                    out.name(pid.toString()).value(vectorClock.getTick(i));
+                }
+            }
+            out.endObject();
+            out.endObject();
+        }
+
+        @Override
+        public VectorClock read(JsonReader in) throws IOException {
+            VectorClock vectorClock = new VectorClock();
+            in.beginObject();
+            while (in.hasNext()) {
+                if (in.nextName().equals("vc")) {
+                    in.beginObject();
+                    while (in.hasNext()) {
+                        UUID pid = UUID.fromString(in.nextName());
+                        vectorClock.set(pid, in.nextLong());
+                    }
+                    in.endObject();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return vectorClock;
+        }
+    }
+
+    /**
+     * Streaming adapter for {@link Message}. Zero and empty fields are left
+     * out, the reflective adapter of older banks reads them back as zero.
+     */
+    private static final class MessageAdapter extends TypeAdapter<Message> {
+        @Override
+        public void write(JsonWriter out, Message message) throws IOException {
+            write(out, message, null);
+        }
+
+        /**
+         * Write a message, optionally with only part of its vector clock.
+         *
+         * @param out     destination of the JSON
+         * @param message the message to write
+         * @param delta   clock values to write in place of the whole clock,
+         *                or null to write the whole clock
+         * @throws IOException if unable to write the message
+         */
+        private static void write(
+                JsonWriter out,
+                Message message,
+                VectorClock delta) throws IOException {
+            out.beginObject();
+            out.name("command").value(message.getCommand().name());
+            out.name("sourceId").value(message.getSourceId().toString());
+            if (delta != null) {
+                out.name("vectorClockDelta");
+                VECTOR_CLOCK_ADAPTER.write(out, delta);
+            } else {
+                out.name("vectorClock");
+                VECTOR_CLOCK_ADAPTER.write(out, message.getVectorClock());
+            }
+            if (message.getFutureTick() != 0) {
+                out.name("futureTick").value(message.getFutureTick());
+            }
+            // older banks expect the account IDs to always be present
+            out.name("accountIds");
+            writeStrings(out, message.getAccountIds());
+            if (message.getAmount() != 0) {
+                out.name("amount").value(message.getAmount());
+            }
+            if (message.getAmounts() != null) {
+                out.name("amounts").beginArray();
+                for (long amount : message.getAmounts()) {
+                    out.value(amount);
+                }
+                out.endArray();
+            }
+            if (message.getSnapshot() != null) {
+                out.name("snapshot");
+                SNAPSHOT_ADAPTER.write(out, message.getSnapshot());
+            }
+            if (message.getWhiteMessage() != null) {
+                out.name("whiteMessage");
+                write(out, message.getWhiteMessage(), null);
+            }
+            if (message.getMsgCounter() != 0) {
+                out.name("msgCounter").value(message.getMsgCounter());
+            }
+            if (message.getEpoch() != 0) {
+                out.name("epoch").value(message.getEpoch());
+            }
+            if (message.getParentId() != null) {
+                out.name("parentId").value(message.getParentId().toString());
+                out.name("childCount").value(message.getChildCount());
+            }
+            if (message.getInitiatorId() != null) {
+                out.name("initiatorId")
+                        .value(message.getInitiatorId().toString());
+            }
+            if (message.getChannelId() != null) {
+                out.name("channelId").value(message.getChannelId().toString());
+            }
+            if (message.getColour() != 0) {
+                out.name("colour").value(message.getColour());
+            }
+            if (message.getFeatures() != null) {
+                out.name("features");
+                writeStrings(out, message.getFeatures());
+            }
+            out.endObject();
+        }
+
+        @Override
+        public Message read(JsonReader in) throws IOException {
+            Command command = null;
+            UUID sourceId = null;
+            VectorClock vectorClock = null;
+            boolean deltaClock = false;
+            long futureTick = 0;
+            ArrayList<String> accountIds = null;
+            long amount = 0;
+            long[] amounts = null;
+            Snapshot snapshot = null;
+            Message whiteMessage = null;
+            int msgCounter = 0;
+            long epoch = 0;
+            UUID parentId = null;
+            int childCount = 0;
+            UUID initiatorId = null;
+            UUID channelId = null;
+            long colour = 0;
+            ArrayList<String> features = null;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if (name.equals("command")) {
+                    command = Command.valueOf(in.nextString());
+                } else if (name.equals("sourceId")) {
+                    sourceId = readUuid(in);
+                } else if (name.equals("vectorClock")) {
+                    vectorClock = VECTOR_CLOCK_ADAPTER.read(in);
+                } else if (name.equals("vectorClockDelta")) {
+                    vectorClock = VECTOR_CLOCK_ADAPTER.read(in);
+                    deltaClock = true;
+                } else if (name.equals("futureTick")) {
+                    futureTick = in.nextLong();
+                } else if (name.equals("accountIds")) {
+                    accountIds = readStrings(in);
+                } else if (name.equals("amount")) {
+                    amount = in.nextLong();
+                } else if (name.equals("amounts")) {
+                    amounts = readLongs(in);
+                } else if (name.equals("snapshot")) {
+                    snapshot = SNAPSHOT_ADAPTER.read(in);
+                } else if (name.equals("whiteMessage")) {
+                    whiteMessage = read(in);
+                } else if (name.equals("msgCounter")) {
+                    msgCounter = in.nextInt();
+                } else if (name.equals("epoch")) {
+                    epoch = in.nextLong();
+                } else if (name.equals("parentId")) {
+                    parentId = readUuid(in);
+                } else if (name.equals("childCount")) {
+                    childCount = in.nextInt();
+                } else if (name.equals("initiatorId")) {
+                    initiatorId = readUuid(in);
+                } else if (name.equals("channelId")) {
+                    channelId = readUuid(in);
+                } else if (name.equals("colour")) {
+                    colour = in.nextLong();
+                } else if (name.equals("features")) {
+                    features = readStrings(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+
+            Message message = new Message(command, sourceId, vectorClock);
+            message.setDeltaClock(deltaClock);
+            message.setFutureTick(futureTick);
+            if (accountIds != null) {
+                for (String accountId : accountIds) {
+                    message.addAccountId(accountId);
+                }
+            }
+            message.setAmount(amount);
+            message.setAmounts(amounts);
+            message.setSnapshot(snapshot);
+            message.setWhiteMessage(whiteMessage);
+            message.setMsgCounter(msgCounter);
+            message.setEpoch(epoch);
+            message.setParentId(parentId);
+            message.setChildCount(childCount);
+            message.setInitiatorId(initiatorId);
+            message.setChannelId(channelId);
+            message.setColour(colour);
+            if (features != null) {
+                for (String feature : features) {
+                    message.addFeature(feature);
+                }
+            }
+            return message;
+        }
+    }
+}
@@ -0,0 +1,551 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lai-Yang snapshot algorithm, with the colour of each bank carried on the
+ * deposits and withdrawals it already sends rather than on markers.
+ *
+ * <p>
+ * Snapshots are numbered, and the colour of a bank is the number of the last
+ * snapshot it has taken. Every account update sent to a bank that supports
+ * the algorithm carries the colour of its sender, and the first one sent on
+ * a channel after a snapshot also carries the ID of the snapshot's
+ * initiator. A bank takes its snapshot before applying the first message
+ * with a colour greater than its own, so a message sent after a snapshot is
+ * never part of it. Messages of an older colour that arrive after the
+ * snapshot were in transit, and their amounts are added up per account.
+ * Channels are FIFO, so once a message of the new colour has arrived on a
+ * channel, nothing more is in transit on it; when that has happened on
+ * every channel the bank sends its snapshot and amounts in transit to the
+ * initiator.
+ *
+ * <p>
+ * A bank that has sent nothing coloured to a remote bank within
+ * {@link BankConfig#getNudgeDelayMillis()} of taking a snapshot sends it a
+ * dummy message of the new colour instead, so on a busy network a snapshot
+ * costs little more than one report per bank.
+ *
+ * <p>
+ * Two banks may start a snapshot with the same number at once. Every bank
+ * still takes one snapshot for the number, so together the reports make up
+ * one consistent cut, but each goes to whichever initiator the bank heard of
+ * first. An initiator that hears of another with a smaller ID forwards
+ * every report for the number to it, and leaves it to complete the
+ * snapshot.
+ */
+public class LaiYang {
+    public static final String FEATURE = "lai-yang";
+
+    private final UUID bankId;
+    private final Bank bank;
+    // all guarded by the bank's monitor
+    private long colour;
+    private final TreeMap<Long, UUID> initiators = new TreeMap<>();
+    private final Map<UUID, Long> announced = new HashMap<>();
+    private final TreeMap<Long, Cut> cuts = new TreeMap<>();
+    // snapshots started here and handed over to another initiator, while
+    // reports for them may still arrive
+    private final Map<Long, Cut> forwards = new HashMap<>();
+
+    /**
+     * Create an instance of LaiYang.
+     *
+     * @param bank bank the algorithm is for
+     */
+    public LaiYang(Bank bank) {
+        this.bankId = bank.getBankId();
+        this.bank = bank;
+    }
+
+    /**
+     * Start a snapshot. Returns straight away, the snapshot carries on as
+     * coloured messages and reports arrive, alongside any others in
+     * progress.
+     *
+     * @return future completed with the global snapshot once every bank has
+     *         reported, or completed exceptionally if the snapshot cannot be
+     *         taken
+     */
+    public CompletableFuture<GlobalSnapshot> initSnapshot() {
+        CompletableFuture<GlobalSnapshot> result = new CompletableFuture<>();
+        synchronized (bank) {
+            if (!supported()) {
+                result.completeExceptionally(new IllegalStateException(
+                    "Lai-Yang snapshots need every bank to support them"));
+                return result;
+            }
+            colour++;
+            initiators.put(colour, bankId);
+            Cut cut = new Cut(colour, bankId, bank.takeSnapshot());
+            cut.result = result;
+            cuts.put(colour, cut);
+            scheduleNudges(colour);
+            result.whenComplete((snapshot, e) -> {
+                if (e != null) {
+                    // given up on by the caller, or handed over
+                    synchronized (bank) {
+                        cut.abandon();
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Take the snapshot if a message turns this bank red, and count the
+     * message as in transit for every snapshot it is too old for. Must be
+     * called before the message is applied, holding the bank's monitor.
+     *
+     * @param message message received from another bank
+     * @throws IOException if unable to send a report
+     */
+    public void receive(Message message) throws IOException {
+        long messageColour = message.getColour();
+        UUID initiatorId = message.getInitiatorId();
+        if (messageColour > colour) {
+            if (initiatorId != null) {
+                initiators.put(messageColour, initiatorId);
+            }
+            // snapshots whose initiator is unknown started before this
+            // bank was connected, and are not waiting for it
+            Snapshot snapshot = null;
+            for (Map.Entry<Long, UUID> entry : initiators
+                    .subMap(colour, false, messageColour, true).entrySet()) {
+                if (snapshot == null) {
+                    snapshot = bank.takeSnapshot();
+                }
+                cuts.put(
+                    entry.getKey(),
+                    new Cut(entry.getKey(), entry.getValue(), snapshot));
+            }
+            colour = messageColour;
+            if (snapshot != null) {
+                scheduleNudges(colour);
+            }
+        } else if (initiatorId != null && messageColour > 0) {
+            Cut cut = cuts.get(messageColour);
+            if (cut != null && cut.result != null &&
+                initiatorId.compareTo(bankId) < 0 &&
+                !forwards.containsKey(messageColour)) {
+                cut.handOver(initiatorId);
+            }
+        }
+
+        UUID sourceId = message.getSourceId();
+        for (Cut cut : new ArrayList<>(cuts.values())) {
+            if (messageColour < cut.epoch) {
+                cut.inTransit(sourceId, message);
+            } else {
+                cut.close(sourceId);
+            }
+        }
+    }
+
+    /**
+     * Tell a remote bank about every snapshot it has not heard of, except
+     * the latest, which the message about to be sent to it will carry. Must
+     * hold the bank's monitor.
+     *
+     * @param remoteBank the bank a message is about to be sent to
+     * @throws IOException if unable to send a dummy message
+     */
+    public void announce(RemoteBank remoteBank) throws IOException {
+        if (!remoteBank.supportsLaiYang()) {
+            return;
+        }
+        Map<Long, UUID> unheard = initiators.subMap(
+            announcedTo(remoteBank), false, colour, false);
+        for (Map.Entry<Long, UUID> entry : unheard.entrySet()) {
+            announced.put(remoteBank.getBankId(), entry.getKey());
+            remoteBank.sendLaiYangNudge(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Colour a message about to be sent to a remote bank. Must hold the
+     * bank's monitor, and follow {@link #announce(RemoteBank)}.
+     *
+     * @param remoteBank the bank the message is for
+     * @param message    the message to colour
+     */
+    public void paint(RemoteBank remoteBank, Message message) {
+        if (!remoteBank.supportsLaiYang() || colour == 0) {
+            return;
+        }
+        message.setColour(colour);
+        if (announcedTo(remoteBank) < colour) {
+            message.setInitiatorId(initiators.get(colour));
+            announced.put(remoteBank.getBankId(), colour);
+        }
+    }
+
+    /**
+     * Collect the report of a bank for a snapshot started by this bank. Must
+     * hold the bank's monitor.
+     *
+     * @param remoteBankId ID of the bank the report came from
+     * @param report       LAI_YANG_REPORT message
+     * @throws IOException if unable to forward the report
+     */
+    public void receiveReport(UUID remoteBankId, Message report)
+            throws IOException {
+        Cut cut = cuts.get(report.getEpoch());
+        Cut handedOver = forwards.get(report.getEpoch());
+        if (handedOver == null && (cut == null || cut.result == null)) {
+            return;
+        }
+        Map<String, Long> amounts = new HashMap<>();
+        if (report.getAmounts() != null) {
+            for (int i = 0; i < report.getAmounts().length; i++) {
+                amounts.put(
+                    report.getAccountIds().get(i),
+                    report.getAmounts()[i]);
+            }
+        }
+        if (handedOver != null) {
+            forward(
+                handedOver.forwardTo,
+                report.getSnapshot(),
+                amounts,
+                report.getEpoch());
+            handedOver.passedOn(report.getSnapshot() == null ?
+                remoteBankId :
+                report.getSnapshot().getBankId());
+        } else {
+            cut.collect(remoteBankId, report.getSnapshot(), amounts);
+        }
+    }
+
+    /**
+     * Start colouring messages to a newly registered bank. Snapshots taken
+     * before it registered are not announced to it. Must hold the bank's
+     * monitor.
+     *
+     * @param remoteBankId ID of the remote bank
+     */
+    public void addBank(UUID remoteBankId) {
+        announced.put(remoteBankId, colour);
+    }
+
+    /**
+     * Stop waiting for a bank that has disconnected. Must hold the bank's
+     * monitor.
+     *
+     * @param remoteBankId ID of the remote bank
+     * @throws IOException if unable to send a report
+     */
+    public void removeBank(UUID remoteBankId) throws IOException {
+        announced.remove(remoteBankId);
+        for (Cut cut : new ArrayList<>(cuts.values())) {
+            cut.members.remove(remoteBankId);
+            cut.close(remoteBankId);
+            cut.checkComplete();
+        }
+        for (Cut cut : new ArrayList<>(forwards.values())) {
+            cut.passedOn(remoteBankId);
+        }
+    }
+
+    /**
+     * Check whether every remote bank takes part in Lai-Yang snapshots.
+     *
+     * @return true if a snapshot can be started
+     */
+    private boolean supported() {
+        if (bank.getRemoteBanks().isEmpty()) {
+            return false;
+        }
+        for (RemoteBank remoteBank : bank.getRemoteBanks().values()) {
+            if (!remoteBank.supportsLaiYang()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Retrieve the latest snapshot a remote bank has been told about.
+     *
+     * @param remoteBank the remote bank
+     * @return epoch of the snapshot
+     */
+    private long announcedTo(RemoteBank remoteBank) {
+        Long epoch = announced.get(remoteBank.getBankId());
+        return epoch == null ? 0 : epoch;
+    }
+
+    /**
+     * Send a dummy message of the current colour to every remote bank that
+     * has not been sent a coloured message once the nudge delay is up.
+     *
+     * @param epoch the snapshot just taken
+     */
+    private void scheduleNudges(long epoch) {
+        bank.getScheduler().schedule(() -> {
+            try {
+                synchronized (bank) {
+                    nudgeIdle(epoch);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.print("> ");
+            }
+        }, bank.getConfig().getNudgeDelayMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send a dummy message of the current colour to every remote bank that
+     * has not been told about a snapshot. Must hold the bank's monitor.
+     *
+     * @param epoch the snapshot remote banks must have been told about
+     * @throws IOException if unable to send a dummy message
+     */
+    private void nudgeIdle(long epoch) throws IOException {
+        for (RemoteBank remoteBank : bank.getRemoteBanks().values()) {
+            if (remoteBank.supportsLaiYang() &&
+                announcedTo(remoteBank) < epoch) {
+                announce(remoteBank);
+                announced.put(remoteBank.getBankId(), colour);
+                remoteBank.sendLaiYangNudge(colour, initiators.get(colour));
+            }
+        }
+    }
+
+    /**
+     * Send a report on to the initiator that took over a snapshot.
+     *
+     * @param initiatorId ID of the initiator collecting the snapshot
+     * @param snapshot    snapshot of the bank the report belongs to
+     * @param amounts     amounts in transit, indexed by account ID
+     * @param epoch       number of the snapshot
+     * @throws IOException if unable to send the report
+     */
+    private void forward(
+            UUID initiatorId,
+            Snapshot snapshot,
+            Map<String, Long> amounts,
+            long epoch) throws IOException {
+        RemoteBank initiator = bank.getRemoteBanks().get(initiatorId);
+        if (initiator != null) {
+            initiator.sendLaiYangReport(snapshot.passOn(), amounts, epoch);
+        }
+    }
+
+    /**
+     * Forget initiators every remote bank has already been told about.
+     */
+    private void pruneInitiators() {
+        long keep = colour;
+        for (Long epoch : announced.values()) {
+            keep = Math.min(keep, epoch);
+        }
+        initiators.headMap(keep, false).clear();
+    }
+
+    /**
+     * The part of a snapshot taken by this bank. Guarded by the bank's
+     * monitor.
+     */
+    private class Cut {
+        private final long epoch;
+        private final UUID initiatorId;
+        private final Snapshot snapshot;
+        private final Set<UUID> awaiting;
+        private final Map<String, Long> amounts = new HashMap<>();
+        // only used by the initiator
+        private final Set<UUID> members;
+        private final Map<UUID, Snapshot> snapshots = new HashMap<>();
+        private final Map<String, Long> amountsInTransit = new HashMap<>();
+        private CompletableFuture<GlobalSnapshot> result;
+        private UUID forwardTo;
+
+        /**
+         * Create a cut.
+         *
+         * @param epoch       number of the snapshot
+         * @param initiatorId ID of the initiator of the snapshot
+         * @param snapshot    state of the local bank
+         */
+        private Cut(long epoch, UUID initiatorId, Snapshot snapshot) {
+            this.epoch = epoch;
+            this.initiatorId = initiatorId;
+            this.snapshot = snapshot;
+            this.awaiting = new HashSet<>(bank.getRemoteBanks().keySet());
+            this.members = new HashSet<>(awaiting);
+            members.add(bankId);
+        }
+
+        /**
+         * Count a message that was sent before the snapshot, if its channel
+         * is still open.
+         *
+         * @param sourceId ID of the bank the message came from
+         * @param message  the message
+         */
+        private void inTransit(UUID sourceId, Message message) {
+            if (awaiting.contains(sourceId)) {
+                for (Map.Entry<String, Long> entry :
+                        MAlgorithm.amountsOf(message).entrySet()) {
+                    amounts.merge(entry.getKey(), entry.getValue(), Long::sum);
+                }
+            }
+        }
+
+        /**
+         * Close a channel, and report once every channel is closed.
+         *
+         * @param sourceId ID of the bank at the far end of the channel
+         * @throws IOException if unable to send the report
+         */
+        private void close(UUID sourceId) throws IOException {
+            if (!awaiting.remove(sourceId) || !awaiting.isEmpty()) {
+                return;
+            }
+            if (initiatorId.equals(bankId) && !forwards.containsKey(epoch)) {
+                collect(bankId, snapshot, amounts);
+                return;
+            }
+            cuts.remove(epoch);
+            pruneInitiators();
+            forward(
+                forwardTo != null ? forwardTo : initiatorId,
+                snapshot,
+                amounts,
+                epoch);
+            if (forwardTo != null) {
+                passedOn(bankId);
+            }
+        }
+
+        /**
+         * Collect the report of a bank at the initiator. Reports are keyed
+         * by the bank whose snapshot they carry, as forwarded reports come
+         * from another initiator.
+         *
+         * @param reportBankId ID of the bank the report came from
+         * @param bankState    recorded state of the bank
+         * @param bankAmounts  amounts in transit to the bank's accounts
+         */
+        private void collect(
+                UUID reportBankId,
+                Snapshot bankState,
+                Map<String, Long> bankAmounts) {
+            snapshots.put(
+                bankState == null ? reportBankId : bankState.getBankId(),
+                bankState);
+            for (Map.Entry<String, Long> entry : bankAmounts.entrySet()) {
+                amountsInTransit.merge(
+                    entry.getKey(),
+                    entry.getValue(),
+                    Long::sum);
+            }
+            checkComplete();
+        }
+
+        /**
+         * Complete the snapshot at the initiator once every bank has
+         * reported.
+         */
+        private void checkComplete() {
+            if (result == null || forwardTo != null ||
+                !snapshots.keySet().containsAll(members)) {
+                return;
+            }
+            cuts.remove(epoch);
+            pruneInitiators();
+            GlobalSnapshot globalSnapshot = new GlobalSnapshot(
+                new InitiatorInfo(bankId, epoch, 0),
+                snapshots.values(),
+                new ArrayList<>(),
+                amountsInTransit);
+            bank.completeSnapshot(result, globalSnapshot);
+        }
+
+        /**
+         * Stop collecting the snapshot at the initiator before every bank
+         * has reported, as no one is waiting for it any more. Reports that
+         * arrive later are ignored. A snapshot handed over to another
+         * initiator is left alone, as its reports are still forwarded.
+         */
+        private void abandon() {
+            if (cuts.get(epoch) != this || forwards.containsKey(epoch)) {
+                return;
+            }
+            cuts.remove(epoch);
+            pruneInitiators();
+        }
+
+        /**
+         * Note that the report of a bank has been passed on to the
+         * initiator the snapshot was handed over to, or will never come,
+         * and stop forwarding once no more reports can arrive.
+         *
+         * @param reportBankId ID of the bank the report is for
+         */
+        private void passedOn(UUID reportBankId) {
+            members.remove(reportBankId);
+            if (members.isEmpty() && forwards.get(epoch) == this) {
+                forwards.remove(epoch);
+            }
+        }
+
+        /**
+         * Stop forwarding reports once the other initiator has given up on
+         * the snapshot, if it was scheduled. Banks that heard of the other
+         * initiator first report to it directly, so there is no telling
+         * whether every report that would come here has come.
+         */
+        private void scheduleForget() {
+            bank.getScheduler().schedule(() -> {
+                synchronized (bank) {
+                    if (forwards.get(epoch) == this) {
+                        forwards.remove(epoch);
+                    }
+                }
+            }, SnapshotScheduler.ROUND_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Hand the snapshot over to another bank that started it with the
+         * same number, forwarding every report collected so far. The
+         * amounts in transit go along with the first report.
+         *
+         * @param otherId ID of the other initiator
+         * @throws IOException if unable to forward a report
+         */
+        private void handOver(UUID otherId) throws IOException {
+            forwards.put(epoch, this);
+            forwardTo = otherId;
+            Map<String, Long> amounts = amountsInTransit;
+            for (Snapshot bankState : snapshots.values()) {
+                forward(otherId, bankState, amounts, epoch);
+                amounts = new HashMap<>();
+            }
+            members.removeAll(snapshots.keySet());
+            snapshots.clear();
+            if (awaiting.isEmpty()) {
+                cuts.remove(epoch);
+            }
+            if (members.isEmpty()) {
+                forwards.remove(epoch);
+            } else {
+                scheduleForget();
+            }
+            IllegalStateException e = new IllegalStateException(
+                "Snapshot " + epoch + " was also started by " + otherId +
+                ", which collects it");
+            ForkJoinPool.commonPool()
+                    .execute(() -> result.completeExceptionally(e));
+        }
+    }
+}
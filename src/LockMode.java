@@ -0,0 +1,15 @@
+/**
+ * Ways in which a bank can serialise operations on its local accounts.
+ */
+public enum LockMode {
+    /**
+     * Every operation holds the bank's monitor.
+     */
+    GLOBAL,
+
+    /**
+     * Operations on local accounts lock only the stripes of the accounts
+     * involved. Snapshots and vector clock updates still hold the monitor.
+     */
+    STRIPED
+}
@@ -1,26 +1,72 @@
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Mattern's algorithm.
+ *
+ * <p>
+ * Initiating a snapshot never blocks. A round counts down acknowledgements
+ * and snapshots with atomic counters as the messages arrive, and checks for
+ * termination whenever it collects a snapshot or white message, so no thread
+ * is tied up while a round is in progress. The result is handed to whoever
+ * is waiting on the future returned by {@link #initSnapshot()}.
+ *
+ * <p>
+ * A round keeps nothing it does not need. Each snapshot and white message
+ * is folded into a {@link SnapshotAssembler} the moment it is collected,
+ * which keeps the totals and amounts in transit and spills snapshots to
+ * disk past the memory limit of the round, so the initiator never holds
+ * every snapshot and message until the round ends.
+ *
+ * <p>
+ * Rounds are identified by their initiator and an epoch the initiator
+ * numbers them with, and every message belonging to a round carries its
+ * epoch. Each round colours processes and messages against its own future
+ * tick, so any number of rounds, started here or elsewhere, can overlap.
+ * A bank records its local state for its own rounds in epoch order, so the
+ * clock jump that ends one round never skips over an earlier one.
+ *
+ * <p>
+ * In {@link CollectionMode#TREE} the initiator lays the other banks out in
+ * a {@link SnapshotTree}. Each bank then holds a branch for the round which
+ * merges the snapshots of its children with its own, and totals the white
+ * messages it and its children see by account, sending a single report to
+ * its parent once every child has reported. The initiator so only hears
+ * from its own children. White messages that arrive after a branch has
+ * reported are passed up as totals straight away. A bank that is not
+ * connected to its parent sends its reports to the initiator, which passes
+ * them on.
  */
 public class MAlgorithm {
     public static final long BROADCAST_INTERVAL = 100;
     public static final int SEND = 1;
     public static final int RECEIVE = -1;
+    public static final String ROUNDS_FEATURE = "rounds";
+    public static final String TREE_FEATURE = "tree";
+    public static final int TREE_FANOUT = 4;
 
     private final Bank bank;
-    private InitiatorInfo initiatorInfo;
-    private final HashMap<UUID, Boolean> acknowledgements = new HashMap<>();
-    private final Set<Snapshot> globalSnapshots = new HashSet<>();
-    private final Set<Message> whiteMessages = new HashSet<>();
+    private final List<InitiatorInfo> activeRounds =
+        new CopyOnWriteArrayList<>();
+    private final ConcurrentSkipListMap<Long, Round> rounds =
+        new ConcurrentSkipListMap<>();
+    // guarded by the bank's monitor
+    private final Map<InitiatorInfo, Branch> branches = new HashMap<>();
+    private long nextEpoch = 1; // guarded by the bank's monitor
+    private long lastFutureTick; // guarded by the bank's monitor
     public int msgCounter = 0; // out minus in
-    private int globalCounter = 0;
-    private int numSnapshot = 0; // num of snapshots collected
-    private TerminationDetector terminationDetector;
 
     /**
      * Create an instance of MAlgorithm.
@@ -32,200 +78,550 @@ public class MAlgorithm {
     }
 
     /**
-     * Initialize mattern's algorithm.
+     * Initialize mattern's algorithm. Returns straight away, the round
+     * carries on as acknowledgements, snapshots and white messages arrive,
+     * alongside any other rounds in progress.
      *
-     * @throws InterruptedException if interrupted
+     * @return future completed with the global snapshot once the algorithm
+     *         terminates
      */
-    public synchronized void initSnapshot() throws InterruptedException {
-        acknowledgements.clear();
-        globalSnapshots.clear();
-        whiteMessages.clear();
-        globalCounter = 0;
-        numSnapshot = 0;
-
-        // define a future tick for global snapshot
-        long futureTick = VectorClock.getInstance()
-                .findTick(this.bank.getBankId()) +
-            BROADCAST_INTERVAL;
-        initiatorInfo = new InitiatorInfo(bank.getBankId(), futureTick);
-
-        initAcknowledgementMap();
-        this.bank.broadcastFutureTick(futureTick);
+    public CompletableFuture<GlobalSnapshot> initSnapshot() {
+        synchronized (bank) {
+            Round round = new Round(nextEpoch++);
+            rounds.put(round.epoch, round);
+            round.result.whenComplete((snapshot, e) -> {
+                if (e != null) {
+                    // given up on by the caller, or unable to spill
+                    synchronized (bank) {
+                        round.abandon();
+                    }
+                }
+            });
+            round.begin();
+            return round.result;
+        }
+    }
 
-        // wait for all acknowledgments
-        while (acknowledgements.values().contains(false)) {
-            wait();
+    /**
+     * Handle receive an acknowledgement from other processed.
+     *
+     * @param processId the source process of the acknowledgement
+     * @param epoch     the round being acknowledged, or 0 if the process
+     *                  does not number rounds
+     */
+    public void receiveAcknowledgement(UUID processId, long epoch) {
+        Round round = null;
+        if (epoch != 0) {
+            round = rounds.get(epoch);
+        } else {
+            // acknowledgements arrive in the order the rounds were started
+            for (Round candidate : rounds.values()) {
+                if (candidate.awaiting.contains(processId)) {
+                    round = candidate;
+                    break;
+                }
+            }
+        }
+        if (round != null && round.awaiting.remove(processId) &&
+            round.pendingAcks.decrementAndGet() == 0) {
+            recordLocalStates();
         }
+    }
 
-        // save local state
+    /**
+     * Called when the initiator receives the register response message from
+     * another process.
+     */
+    public void notifyInitAck() {
         synchronized (bank) {
-            globalSnapshots.add(bank.takeSnapshot());
-            globalCounter += msgCounter;
-            numSnapshot += 1;
-            VectorClock.getInstance().set(bank.getBankId(), futureTick);
+            for (Round round : rounds.values()) {
+                if (round.info == null) {
+                    round.begin();
+                }
+            }
         }
-
-        terminationDetector = new TerminationDetector();
-        terminationDetector.start();
-
-        // broadcast dummy data
-        this.bank.broadcastDummyMsg();
     }
 
     /**
-     * Initialize an acknowledgement map.
+     * Collect the snapshot of a remote bank.
      *
-     * @throws InterruptedException if interrupted
+     * @param epoch      the round the snapshot belongs to, or 0 if the remote
+     *                   bank does not number rounds
+     * @param snapshot   the snapshot of the remote bank
+     * @param msgCounter messages sent minus messages received by the remote
+     *                   bank when it took the snapshot
      */
-    private void initAcknowledgementMap() throws InterruptedException {
-        while (bank.getRemoteBanks().size() < bank.getRemoteBankThreads()
-                .size()) {
-            wait();
+    public void receiveSnapshot(long epoch, Snapshot snapshot, int msgCounter) {
+        Round round = findRound(epoch);
+        if (round == null) {
+            return;
         }
+        round.collect(snapshot);
+        round.globalCounter.addAndGet(msgCounter);
+        round.pendingSnapshots.decrementAndGet();
+        round.checkTermination();
+    }
 
-        for (Map.Entry<UUID, RemoteBank> rb : bank.getRemoteBanks()
-                .entrySet()) {
-            acknowledgements.put(rb.getKey(), false);
+    /**
+     * Collect a message that was in transit when the snapshot was taken.
+     *
+     * @param epoch        the round the message was in transit for, or 0 if
+     *                     the remote bank does not number rounds
+     * @param whiteMessage the white message
+     */
+    public void receiveWhiteMessage(long epoch, Message whiteMessage) {
+        Round round = findRound(epoch);
+        if (round == null) {
+            return;
         }
+        round.assembler.add(whiteMessage);
+        round.globalCounter.addAndGet(RECEIVE);
+        round.checkTermination();
     }
 
     /**
-     * Handle receive an acknowledgement from other processed.
+     * Collect a report passed up the snapshot tree by a child of this bank,
+     * either the first report of its branch or white messages totalled after
+     * it, or pass one on for a child that is not connected to its parent.
+     * Must hold the bank's monitor.
      *
-     * @param processId the source process of the acknowledgement
+     * @param report SNAPSHOT or WHITE_MESSAGE message naming the initiator
+     * @throws IOException if unable to pass the report on
      */
-    public synchronized void receiveAcknowledgement(UUID processId) {
-        this.acknowledgements.put(processId, true);
-        notify();
+    public void receiveReport(Message report) throws IOException {
+        Map<String, Long> amounts = new HashMap<>();
+        if (report.getAmounts() != null) {
+            for (int i = 0; i < report.getAmounts().length; i++) {
+                amounts.merge(
+                    report.getAccountIds().get(i),
+                    report.getAmounts()[i],
+                    Long::sum);
+            }
+        }
+
+        if (report.getParentId() != null &&
+            !bank.getBankId().equals(report.getParentId())) {
+            // a child with no connection to its parent reports through us
+            bank.sendReport(
+                report.getParentId(),
+                report.getSnapshot(),
+                report.getMsgCounter(),
+                amounts,
+                new InitiatorInfo(
+                    report.getInitiatorId(),
+                    report.getEpoch(),
+                    0));
+            return;
+        }
+
+        if (!bank.getBankId().equals(report.getInitiatorId())) {
+            Branch branch = branches.get(new InitiatorInfo(
+                report.getInitiatorId(),
+                report.getEpoch(),
+                0));
+            if (branch != null) {
+                branch.add(report.getSnapshot(), report.getMsgCounter(),
+                    amounts);
+            }
+            return;
+        }
+
+        Round round = rounds.get(report.getEpoch());
+        if (round == null) {
+            return;
+        }
+        round.assembler.add(amounts);
+        if (report.getSnapshot() != null) {
+            round.collect(report.getSnapshot());
+            round.pendingSnapshots.decrementAndGet();
+        }
+        round.globalCounter.addAndGet(report.getMsgCounter());
+        round.checkTermination();
     }
 
     /**
-     * Called when the initiator receives the register response message from
-     * another process.
+     * Hand over the snapshot this bank took for a round started elsewhere,
+     * either straight to the initiator or to its branch of the snapshot
+     * tree. Must hold the bank's monitor.
+     *
+     * @param info       the round the snapshot was taken for
+     * @param snapshot   the snapshot
+     * @param msgCounter messages sent minus messages received when the
+     *                   snapshot was taken
+     * @throws IOException if unable to send the snapshot
      */
-    public synchronized void notifyInitAck() {
-        notify();
+    public void collectSnapshot(
+            InitiatorInfo info,
+            Snapshot snapshot,
+            int msgCounter) throws IOException {
+        Branch branch = branches.get(info);
+        if (branch == null) {
+            bank.sendSnapshotToInitiator(snapshot, msgCounter, info);
+        } else {
+            branch.add(snapshot, msgCounter, new HashMap<>());
+        }
     }
 
     /**
-     * Update global counter.
+     * Hand over a message that was in transit for a round, either straight
+     * to the initiator or to its branch of the snapshot tree. Must hold the
+     * bank's monitor.
      *
-     * @param count value of the counter
+     * @param info         the round the message was in transit for
+     * @param whiteMessage the white message
+     * @throws IOException if unable to send the message
      */
-    public void updateCounter(int count) {
-        globalCounter += count;
-        terminationDetector.notifyNewMsg();
+    public void collectWhiteMessage(InitiatorInfo info, Message whiteMessage)
+            throws IOException {
+        if (bank.getBankId().equals(info.getInitiatorId())) {
+            receiveWhiteMessage(info.getEpoch(), whiteMessage);
+            return;
+        }
+        Branch branch = branches.get(info);
+        if (branch == null) {
+            bank.sendWhiteMessageToInitiator(whiteMessage, info);
+        } else {
+            branch.add(null, RECEIVE, amountsOf(whiteMessage));
+        }
     }
 
     /**
-     * Update the number of received snapshots.
+     * Take part in a round started by another bank. A round from the same
+     * initiator with the same epoch is replaced. Must hold the bank's
+     * monitor.
+     *
+     * @param info       the initiator and epoch of the round
+     * @param parentId   the bank to report to, or null to report straight
+     *                   to the initiator
+     * @param childCount the number of banks that report to this one
      */
-    public void updateNumSnapshot() {
-        numSnapshot += 1;
-        terminationDetector.notifyNewMsg();
+    public void joinRound(InitiatorInfo info, UUID parentId, int childCount) {
+        activeRounds.remove(info);
+        activeRounds.add(info);
+        if (parentId != null) {
+            branches.put(info, new Branch(info, parentId, childCount));
+        } else {
+            branches.remove(info);
+        }
     }
 
     /**
-     * Retrieve the bank.
+     * Stop taking part in a round once it has completed. Must hold the
+     * bank's monitor.
      *
-     * @return the bank this algorithm is for
+     * @param info the initiator and epoch of the round
      */
-    public Bank getBank() {
-        return bank;
+    public void leaveRound(InitiatorInfo info) {
+        activeRounds.remove(info);
+        branches.remove(info);
     }
 
     /**
-     * Retrieve the initiator info.
+     * Retrieve every round this bank is taking part in, including its own.
      *
-     * @return info on the initiator of the algorithm
+     * @return the rounds in progress
      */
-    public InitiatorInfo getInitiatorInfo() {
-        return initiatorInfo;
+    public List<InitiatorInfo> getActiveRounds() {
+        return activeRounds;
     }
 
     /**
-     * Set the initiator info.
+     * Retrieve the bank.
      *
-     * @param initiatorInfo info on the initiator of the algorithm
+     * @return the bank this algorithm is for
      */
-    public void setInitiatorInfo(InitiatorInfo initiatorInfo) {
-        this.initiatorInfo = initiatorInfo;
+    public Bank getBank() {
+        return bank;
     }
 
     /**
-     * Get global snapshots.
+     * Find a round started by this bank. Banks that do not number rounds
+     * only know about the latest round they were told of.
      *
-     * @return Snapshots for all processes.
+     * @param epoch the epoch of the round, or 0 for the latest round
+     * @return the round, or null if it is not in progress
      */
-    public Set<Snapshot> getGlobalSnapshots() {
-        return globalSnapshots;
+    private Round findRound(long epoch) {
+        if (epoch != 0) {
+            return rounds.get(epoch);
+        }
+        for (Round round : rounds.descendingMap().values()) {
+            if (round.info != null) {
+                return round;
+            }
+        }
+        return null;
     }
 
     /**
-     * Retrieve white messages.
+     * Check whether every remote bank can take part in a snapshot tree.
      *
-     * @return white messages
+     * @return true if a round may be collected through a tree
      */
-    public Set<Message> getWhiteMessages() {
-        return whiteMessages;
+    private boolean treesSupported() {
+        for (RemoteBank remoteBank : bank.getRemoteBanks().values()) {
+            if (!remoteBank.supportsTrees()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
-     * Retrieve the global counter.
+     * Find the net amount a message in transit moves into each account.
      *
-     * @return the global counter.
+     * @param whiteMessage the message in transit
+     * @return amounts indexed by account ID, empty if the message moves no
+     *         money
      */
-    public int getGlobalCounter() {
-        return globalCounter;
+    public static Map<String, Long> amountsOf(Message whiteMessage) {
+        Map<String, Long> amounts = new HashMap<>();
+        Command command = whiteMessage.getCommand();
+        long sign = command == Command.WITHDRAW ||
+            command == Command.WITHDRAW_BATCH ? -1 : 1;
+        if (command == Command.DEPOSIT || command == Command.WITHDRAW) {
+            amounts.put(
+                whiteMessage.getAccountIds().get(0),
+                sign * whiteMessage.getAmount());
+        } else if (command == Command.DEPOSIT_BATCH ||
+            command == Command.WITHDRAW_BATCH) {
+            for (int i = 0; i < whiteMessage.getAmounts().length; i++) {
+                amounts.merge(
+                    whiteMessage.getAccountIds().get(i),
+                    sign * whiteMessage.getAmounts()[i],
+                    Long::sum);
+            }
+        }
+        return amounts;
     }
 
     /**
-     * Set the global counter.
-     *
-     * @param globalCounter value to set the global counter to
+     * Save the local state of every round that has been acknowledged by all
+     * remote banks, stopping at the first round that has not, and push the
+     * other banks past the future tick of each.
      */
-    public void setGlobalCounter(int globalCounter) {
-        this.globalCounter = globalCounter;
+    private void recordLocalStates() {
+        synchronized (bank) {
+            for (Round round : rounds.values()) {
+                if (round.recorded) {
+                    continue;
+                }
+                if (round.info == null || round.pendingAcks.get() != 0) {
+                    break;
+                }
+                round.recordLocalState();
+            }
+        }
     }
 
-    private class TerminationDetector extends Thread {
-        @Override
-        public void run() {
-            try {
-                checkAlgorithmTermination();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                System.out.print("> ");
+    /**
+     * State of a snapshot initiated by this bank.
+     */
+    private class Round {
+        private final long epoch;
+        private final CompletableFuture<GlobalSnapshot> result =
+            new CompletableFuture<>();
+        private final Set<UUID> awaiting = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger pendingAcks = new AtomicInteger();
+        private final AtomicInteger pendingSnapshots = new AtomicInteger();
+        private final AtomicInteger globalCounter = new AtomicInteger();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private final SnapshotAssembler assembler = new SnapshotAssembler(
+            bank.getConfig().getSnapshotMemory());
+        private volatile InitiatorInfo info;
+        private boolean recorded; // guarded by the bank's monitor
+
+        /**
+         * Create a round.
+         *
+         * @param epoch number of the round at this bank
+         */
+        private Round(long epoch) {
+            this.epoch = epoch;
+        }
+
+        /**
+         * Broadcast the future tick, unless some connections have not
+         * finished registering, in which case this is tried again when they
+         * have. Must hold the bank's monitor.
+         */
+        private void begin() {
+            if (bank.getRemoteBanks().size() < bank.getConnections().size()) {
+                return;
             }
 
-            bank.printSnapshots(globalSnapshots);
-            System.out.println();
-            bank.printWhiteMessages(whiteMessages);
-            // reset
-            initiatorInfo = null;
+            // define a future tick for global snapshot, after that of any
+            // earlier round so that rounds end in the order they started
+            long futureTick = Math.max(
+                bank.getVectorClock().findTick(bank.getBankId()),
+                lastFutureTick) + BROADCAST_INTERVAL;
+            lastFutureTick = futureTick;
+
+            awaiting.addAll(bank.getRemoteBanks().keySet());
+            SnapshotTree tree = null;
+            if (bank.getConfig().getCollectionMode() == CollectionMode.TREE &&
+                treesSupported()) {
+                tree = new SnapshotTree(
+                    bank.getBankId(),
+                    awaiting,
+                    TREE_FANOUT);
+            }
+            pendingAcks.set(awaiting.size());
+            // only the children of the initiator report to it in a tree
+            pendingSnapshots.set(1 + (tree == null ? awaiting.size() :
+                tree.getChildCount(bank.getBankId())));
+            InitiatorInfo started = new InitiatorInfo(
+                bank.getBankId(),
+                epoch,
+                futureTick);
+            info = started;
+            activeRounds.add(started);
+            bank.broadcastFutureTick(started, tree);
+            if (awaiting.isEmpty()) {
+                recordLocalStates();
+            }
         }
 
         /**
-         * Check the termination of mattern's algorithm.
-         *
-         * @throws InterruptedException if interrupted
+         * Save the local state once every remote bank has acknowledged the
+         * future tick, and push the other banks past it. Must hold the bank's
+         * monitor.
          */
-        public synchronized void checkAlgorithmTermination()
-                throws InterruptedException {
-            while (true) {
-                if (globalCounter == 0 &&
-                    numSnapshot == bank.getRemoteBanks().size() + 1) {
-                    break;
+        private void recordLocalState() {
+            recorded = true;
+            globalCounter.addAndGet(msgCounter);
+            if (bank.getVectorClock().findTick(bank.getBankId()) <
+                info.getFutureTick()) {
+                bank.getVectorClock().set(
+                    bank.getBankId(),
+                    info.getFutureTick());
+            }
+
+            // broadcast dummy data
+            bank.broadcastDummyMsg();
+
+            // fold the local snapshot in once it has been read out, away
+            // from the monitor
+            Snapshot snapshot = bank.takeSnapshot();
+            ForkJoinPool.commonPool().execute(() -> {
+                collect(snapshot);
+                synchronized (bank) {
+                    pendingSnapshots.decrementAndGet();
+                    checkTermination();
                 }
-                wait();
+            });
+        }
+
+        /**
+         * Fold a snapshot into the global snapshot as it arrives. The round
+         * fails if the snapshot cannot be spilled to disk.
+         *
+         * @param snapshot the snapshot of a bank or branch
+         */
+        private void collect(Snapshot snapshot) {
+            try {
+                assembler.add(snapshot);
+            } catch (IOException e) {
+                ForkJoinPool.commonPool()
+                        .execute(() -> result.completeExceptionally(e));
             }
         }
 
         /**
-         * Notify whenever receive a snapshot or forwarded white message.
+         * Complete the round if every snapshot has been collected and no
+         * white messages are still in transit.
          */
-        public synchronized void notifyNewMsg() {
-            notify();
+        private void checkTermination() {
+            if (pendingSnapshots.get() != 0 || globalCounter.get() != 0 ||
+                !finished.compareAndSet(false, true)) {
+                return;
+            }
+            rounds.remove(epoch);
+            leaveRound(info);
+            bank.broadcastSnapshotComplete(info);
+            GlobalSnapshot globalSnapshot = new GlobalSnapshot(
+                info,
+                assembler);
+            bank.completeSnapshot(result, globalSnapshot);
+        }
+
+        /**
+         * Stop the round before it terminates, as no one is waiting for it
+         * any more. The other banks are told it is over, and whatever the
+         * round has collected is dropped. Must hold the bank's monitor.
+         */
+        private void abandon() {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            rounds.remove(epoch);
+            if (info != null) {
+                leaveRound(info);
+                bank.broadcastSnapshotComplete(info);
+            }
+            assembler.close();
+        }
+    }
+
+    /**
+     * Part of the snapshot tree of a round started elsewhere, rooted at this
+     * bank. Guarded by the bank's monitor.
+     */
+    private class Branch {
+        private final InitiatorInfo info;
+        private final UUID parentId;
+        private final List<Snapshot> snapshots = new ArrayList<>();
+        private final Map<String, Long> amounts = new HashMap<>();
+        private int pendingReports;
+        private int counter;
+        private boolean reported;
+
+        /**
+         * Create a branch.
+         *
+         * @param info       the round the branch belongs to
+         * @param parentId   the bank the branch reports to
+         * @param childCount the number of banks that report to this one
+         */
+        private Branch(InitiatorInfo info, UUID parentId, int childCount) {
+            this.info = info;
+            this.parentId = parentId;
+            this.pendingReports = childCount + 1;
+        }
+
+        /**
+         * Fold a snapshot or white messages into the branch, and report to
+         * the parent once the snapshots of the whole branch are in.
+         *
+         * @param snapshot   snapshot of this bank or of a child's branch, or
+         *                   null for white messages only
+         * @param msgCounter messages sent minus messages received
+         * @param inTransit  amounts in transit indexed by account ID
+         * @throws IOException if unable to send the report
+         */
+        private void add(
+                Snapshot snapshot,
+                int msgCounter,
+                Map<String, Long> inTransit) throws IOException {
+            if (snapshot != null) {
+                snapshots.add(snapshot);
+                pendingReports--;
+            }
+            counter += msgCounter;
+            inTransit.forEach((accountId, amount) ->
+                amounts.merge(accountId, amount, Long::sum));
+            if (pendingReports != 0) {
+                return;
+            }
+
+            // the first report carries the branch, later ones only totals
+            Snapshot merged = reported ? null :
+                Snapshot.merge(bank.getBankId(), snapshots);
+            bank.sendReport(parentId, merged, counter, amounts, info);
+            reported = true;
+            snapshots.clear();
+            amounts.clear();
+            counter = 0;
         }
     }
 }
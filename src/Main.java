@@ -1,4 +1,7 @@
+import java.io.File;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.UUID;
 
@@ -11,11 +14,12 @@ public class Main implements Runnable {
     /**
      * Create a bank, and initialise algorithms.
      *
-     * @param port port to start listening socket on
+     * @param port   port to start listening socket on
+     * @param config startup configuration of the bank
      * @throws IOException if unable to open socket
      */
-    public Main(int port) throws IOException {
-        bank = new Bank(UUID.randomUUID(), port);
+    public Main(int port, BankConfig config) throws IOException {
+        bank = new Bank(UUID.randomUUID(), port, config);
     }
 
     /**
@@ -29,10 +33,136 @@ public class Main implements Runnable {
             System.out.println("Port number must be provided");
             System.exit(1);
         }
-        Main main = new Main(Integer.parseInt(args[0]));
+        Main main = new Main(Integer.parseInt(args[0]), parseOptions(args));
         new Thread(main).start();
     }
 
+    /**
+     * Parse the options following the port number.
+     *
+     * @param args command line arguments
+     * @return the configuration described by the options
+     */
+    private static BankConfig parseOptions(String[] args) {
+        BankConfig config = new BankConfig();
+        for (int i = 1; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            try {
+                if (option[0].equals("--transport") && option.length == 2) {
+                    config.setTransportMode(
+                        TransportMode.valueOf(option[1].toUpperCase()));
+                } else if (option[0].equals("--io-threads") &&
+                    option.length == 2) {
+                    config.setIoThreads(Integer.parseInt(option[1]));
+                } else if (option[0].equals("--flush") &&
+                    option.length == 2) {
+                    config.setFlushPolicy(FlushPolicy.parse(option[1]));
+                } else if (option[0].equals("--outbound-capacity") &&
+                    option.length == 2) {
+                    config.setOutboundCapacity(Integer.parseInt(option[1]));
+                } else if (option[0].equals("--wire-format") &&
+                    option.length == 2) {
+                    config.setWireFormat(
+                        WireFormat.valueOf(option[1].toUpperCase()));
+                } else if (option[0].equals("--locking") &&
+                    option.length == 2) {
+                    config.setLockMode(
+                        LockMode.valueOf(option[1].toUpperCase()));
+                } else if (option[0].equals("--clock-encoding") &&
+                    option.length == 2) {
+                    config.setClockEncoding(
+                        ClockEncoding.valueOf(option[1].toUpperCase()));
+                } else if (option[0].equals("--snapshot-encoding") &&
+                    option.length == 2) {
+                    config.setSnapshotEncoding(
+                        SnapshotEncoding.valueOf(option[1].toUpperCase()));
+                } else if (option[0].equals("--channel-memory") &&
+                    option.length == 2) {
+                    config.setChannelMemory(Long.parseLong(option[1]));
+                } else if (option[0].equals("--snapshot-memory") &&
+                    option.length == 2) {
+                    config.setSnapshotMemory(Long.parseLong(option[1]));
+                } else if (option[0].equals("--snapshot-retention") &&
+                    option.length == 2) {
+                    config.setSnapshotRetentionMillis(
+                        Long.parseLong(option[1]));
+                } else if (option[0].equals("--nudge-delay") &&
+                    option.length == 2) {
+                    config.setNudgeDelayMillis(Long.parseLong(option[1]));
+                } else if (option[0].equals("--snapshot-interval") &&
+                    option.length == 2) {
+                    config.setSnapshotIntervalMillis(
+                        Long.parseLong(option[1]));
+                } else if (option[0].equals("--snapshot-algorithm") &&
+                    option.length == 2) {
+                    config.setSnapshotAlgorithm(
+                        SnapshotAlgorithm.valueOf(
+                            option[1].toUpperCase().replace('-', '_')));
+                } else if (option[0].equals("--snapshot-budget") &&
+                    option.length == 2) {
+                    config.setSnapshotBudget(Double.parseDouble(option[1]));
+                } else if (option[0].equals("--wal-dir") &&
+                    option.length == 2) {
+                    config.setWalDirectory(new File(option[1]));
+                } else if (option[0].equals("--wal-sync") &&
+                    option.length == 2) {
+                    config.setWalSyncPolicy(SyncPolicy.parse(option[1]));
+                } else if (option[0].equals("--wal-segment-size") &&
+                    option.length == 2) {
+                    config.setWalSegmentSize(Integer.parseInt(option[1]));
+                } else if (option[0].equals("--checkpoint-interval") &&
+                    option.length == 2) {
+                    config.setCheckpointIntervalMillis(
+                        Long.parseLong(option[1]));
+                } else if (option[0].equals("--archive-dir") &&
+                    option.length == 2) {
+                    config.setArchiveDirectory(new File(option[1]));
+                } else if (option[0].equals("--verify") &&
+                    option.length == 2) {
+                    config.setVerifySnapshots(true);
+                    if (!option[1].equals("any")) {
+                        config.setExpectedIssuance(Long.parseLong(option[1]));
+                    }
+                } else if (option[0].equals("--collection") &&
+                    option.length == 2) {
+                    config.setCollectionMode(
+                        CollectionMode.valueOf(option[1].toUpperCase()));
+                } else {
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(1);
+                }
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid option " + args[i]);
+                System.exit(1);
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Parse the &lt;account-id&gt;:&lt;amount&gt; pairs of a batch command.
+     *
+     * @param tokens the command followed by its pairs
+     * @return amounts indexed by account ID, or null if a pair is invalid
+     */
+    private static Map<String, Long> parseBatch(String[] tokens) {
+        Map<String, Long> amounts = new LinkedHashMap<>();
+        for (int i = 1; i < tokens.length; i++) {
+            String[] pair = tokens[i].split(":", 2);
+            try {
+                amounts.merge(
+                    pair[0],
+                    Long.parseLong(pair[1]),
+                    Long::sum);
+            } catch (ArrayIndexOutOfBoundsException |
+                    NumberFormatException e) {
+                System.out.println("Invalid entry " + tokens[i]);
+                return null;
+            }
+        }
+        return amounts;
+    }
+
     /**
      * Run the banking system.
      */
@@ -55,7 +185,7 @@ public class Main implements Runnable {
                 }
 
                 String accountId = tokens[1];
-                int amount = Integer.parseInt(tokens[2]);
+                long amount = Long.parseLong(tokens[2]);
                 try {
                     bank.deposit(accountId, amount);
                 } catch (IOException e) {
@@ -75,7 +205,7 @@ public class Main implements Runnable {
                 }
 
                 String accountId = tokens[1];
-                int amount = Integer.parseInt(tokens[2]);
+                long amount = Long.parseLong(tokens[2]);
                 try {
                     bank.withdraw(accountId, amount);
                 } catch (IOException e) {
@@ -87,6 +217,29 @@ public class Main implements Runnable {
                 } catch (UnknownAccountException e) {
                     System.out.println(e.getMessage());
                 }
+            } else if (command.equals("deposit-all") ||
+                    command.equals("withdraw-all")) {
+                if (tokens.length < 2) {
+                    System.out.println(
+                        "Please provide at least one <account-id>:<amount>");
+                    continue;
+                }
+
+                Map<String, Long> amounts = parseBatch(tokens);
+                if (amounts == null) {
+                    continue;
+                }
+                try {
+                    if (command.equals("deposit-all")) {
+                        bank.depositAll(amounts);
+                    } else {
+                        bank.withdrawAll(amounts);
+                    }
+                } catch (IOException e) {
+                    System.out.println("Unable to perform " + command);
+                } catch (UnknownAccountException e) {
+                    System.out.println(e.getMessage());
+                }
             } else if (command.equals("transfer")) {
                 if (tokens.length < 4) {
                     System.out.println(
@@ -97,7 +250,7 @@ public class Main implements Runnable {
 
                 String sourceId = tokens[1];
                 String destId = tokens[2];
-                int amount = Integer.parseInt(tokens[3]);
+                long amount = Long.parseLong(tokens[3]);
                 try {
                     bank.transfer(sourceId, destId, amount);
                 } catch (IOException e) {
@@ -118,8 +271,10 @@ public class Main implements Runnable {
                 }
 
                 String accountId = tokens[1];
+                boolean contended = tokens.length > 2 &&
+                    tokens[2].equals("contended");
                 try {
-                    bank.open(accountId);
+                    bank.open(accountId, contended);
                 } catch (IOException e) {
                     System.out.println("Unable to open account " + accountId);
                 }
@@ -173,11 +328,95 @@ public class Main implements Runnable {
                     }
                 }
             } else if (command.equals("mattern")) {
+                bank.getmAlgorithm().initSnapshot().whenComplete(
+                    (snapshot, e) -> {
+                        if (e != null) {
+                            System.out.println("\n" + e.getMessage());
+                            System.out.print("> ");
+                            return;
+                        }
+                        bank.printSnapshots(snapshot.getSnapshots());
+                        System.out.println();
+                        bank.printAmountsInTransit(
+                            snapshot.getAmountsInTransit());
+                        bank.printTotals(snapshot);
+                        System.out.print("> ");
+                        try {
+                            snapshot.close();
+                        } catch (IOException ex) {
+                            ex.printStackTrace();
+                            System.out.print("> ");
+                        }
+                    });
+            } else if (command.equals("lai-yang")) {
+                bank.getLaiYang().initSnapshot().whenComplete(
+                    (snapshot, e) -> {
+                        if (e != null) {
+                            System.out.println("\n" + e.getMessage());
+                            System.out.print("> ");
+                            return;
+                        }
+                        bank.printSnapshots(snapshot.getSnapshots());
+                        System.out.println();
+                        bank.printAmountsInTransit(
+                            snapshot.getAmountsInTransit());
+                        System.out.print("> ");
+                    });
+            } else if (command.equals("schedule")) {
+                bank.getSnapshotScheduler().printStatus();
+            } else if (command.equals("checkpoint")) {
                 try {
-                    bank.getmAlgorithm().initSnapshot();
-                } catch (InterruptedException e) {
-                    System.out
-                            .println("Unable to initiate Mattern's algorithm");
+                    if (!bank.checkpoint()) {
+                        System.out.println("No write-ahead log is kept");
+                    }
+                } catch (IOException e) {
+                    System.out.println("Unable to write a checkpoint");
+                }
+            } else if (command.equals("verify")) {
+                SnapshotVerifier verifier = bank.getSnapshotVerifier();
+                if (verifier == null) {
+                    System.out.println("Snapshots are not verified");
+                } else if (verifier.getLastReport() == null) {
+                    System.out.println("No snapshot has been verified");
+                } else {
+                    verifier.getLastReport().print();
+                }
+            } else if (command.equals("archive") ||
+                command.equals("history") ||
+                command.equals("diff")) {
+                SnapshotArchive archive = bank.getSnapshotArchive();
+                if (archive == null) {
+                    System.out.println("No snapshot archive is kept");
+                    continue;
+                }
+                try {
+                    if (command.equals("archive")) {
+                        archive.printIndex();
+                    } else if (command.equals("history")) {
+                        if (tokens.length < 2) {
+                            System.out.println(
+                                "Please provide an account ID");
+                            continue;
+                        }
+                        archive.printHistory(
+                            tokens[1],
+                            tokens.length > 2 ?
+                                Long.parseLong(tokens[2]) :
+                                -1);
+                    } else {
+                        if (tokens.length < 3) {
+                            System.out.println(
+                                "Please provide two snapshot numbers");
+                            continue;
+                        }
+                        archive.printDiff(
+                            Long.parseLong(tokens[1]),
+                            Long.parseLong(tokens[2]));
+                    }
+                } catch (IllegalArgumentException e) {
+                    System.out.println(e.getMessage());
+                } catch (IOException e) {
+                    System.out.println("Unable to read the snapshot archive");
                 }
             } else if (command.equals("chandy-lamport")) {
                 try {
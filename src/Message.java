@@ -1,4 +1,6 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Set;
 import java.util.UUID;
 
@@ -9,12 +11,21 @@ public class Message {
     private final Command command;
     private final UUID sourceId;
     private final VectorClock vectorClock;
+    private boolean deltaClock;
     private long futureTick;
     private ArrayList<String> accountIds = new ArrayList<>();
-    private int amount;
+    private long amount;
+    private long[] amounts;
     private Snapshot snapshot;
     private Message whiteMessage;
     private int msgCounter;
+    private long epoch;
+    private UUID initiatorId;
+    private UUID parentId;
+    private int childCount;
+    private UUID channelId;
+    private long colour;
+    private ArrayList<String> features;
 
     /**
      * Create a message to send to another process.
@@ -56,6 +67,26 @@ public class Message {
         return vectorClock;
     }
 
+    /**
+     * Check whether the vector clock holds only the values that changed since
+     * the previous message on the same connection.
+     *
+     * @return true if the vector clock is a delta
+     */
+    public boolean isDeltaClock() {
+        return deltaClock;
+    }
+
+    /**
+     * Mark whether the vector clock holds only the values that changed since
+     * the previous message on the same connection.
+     *
+     * @param deltaClock true if the vector clock is a delta
+     */
+    public void setDeltaClock(boolean deltaClock) {
+        this.deltaClock = deltaClock;
+    }
+
     /**
      * Retrieve the account IDs contained in the message.
      *
@@ -70,7 +101,7 @@ public class Message {
      *
      * @return the amount contained in the message
      */
-    public int getAmount() {
+    public long getAmount() {
         return amount;
     }
 
@@ -79,10 +110,28 @@ public class Message {
      *
      * @param amount the amount to set
      */
-    public void setAmount(int amount) {
+    public void setAmount(long amount) {
         this.amount = amount;
     }
 
+    /**
+     * Retrieve the amounts of a batch, one for each account ID.
+     *
+     * @return the amounts of the batch, or null if this is not a batch
+     */
+    public long[] getAmounts() {
+        return amounts;
+    }
+
+    /**
+     * Set the amounts of a batch, one for each account ID.
+     *
+     * @param amounts the amounts to set
+     */
+    public void setAmounts(long[] amounts) {
+        this.amounts = amounts;
+    }
+
     /**
      * Add an account ID to the message.
      *
@@ -97,7 +146,7 @@ public class Message {
      *
      * @param ids the account IDs to add
      */
-    public void addAccountIds(Set<String> ids) {
+    public void addAccountIds(Collection<String> ids) {
         this.accountIds.addAll(ids);
     }
 
@@ -173,16 +222,179 @@ public class Message {
         this.msgCounter = msgCounter;
     }
 
+    /**
+     * Retrieve the epoch of the snapshot round the message belongs to.
+     *
+     * @return the epoch, or 0 if the message names no round
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Set the epoch of the snapshot round the message belongs to.
+     *
+     * @param epoch the epoch of the round
+     */
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
+
+    /**
+     * Retrieve the initiator of the snapshot round a branch report belongs
+     * to.
+     *
+     * @return ID of the initiator, or null if the message is not a report
+     *         passed up a snapshot tree
+     */
+    public UUID getInitiatorId() {
+        return initiatorId;
+    }
+
+    /**
+     * Set the initiator of the snapshot round a branch report belongs to.
+     *
+     * @param initiatorId ID of the initiator
+     */
+    public void setInitiatorId(UUID initiatorId) {
+        this.initiatorId = initiatorId;
+    }
+
+    /**
+     * Retrieve the bank the receiver of a future tick reports to, or the
+     * bank the receiver of a report is to pass it on to.
+     *
+     * @return ID of the parent in the snapshot tree, or null if the round
+     *         is collected directly by the initiator or the report is for
+     *         the receiver
+     */
+    public UUID getParentId() {
+        return parentId;
+    }
+
+    /**
+     * Set the bank the receiver of a future tick reports to, or the bank
+     * the receiver of a report is to pass it on to.
+     *
+     * @param parentId ID of the parent in the snapshot tree
+     */
+    public void setParentId(UUID parentId) {
+        this.parentId = parentId;
+    }
+
+    /**
+     * Retrieve the number of banks that report to the receiver of a future
+     * tick.
+     *
+     * @return the number of children in the snapshot tree
+     */
+    public int getChildCount() {
+        return childCount;
+    }
+
+    /**
+     * Set the number of banks that report to the receiver of a future tick.
+     *
+     * @param childCount the number of children in the snapshot tree
+     */
+    public void setChildCount(int childCount) {
+        this.childCount = childCount;
+    }
+
+    /**
+     * Retrieve the far end of the channel whose recorded state the message
+     * carries.
+     *
+     * @return ID of the bank that sent the recorded messages, or null if
+     *         the message carries no channel state
+     */
+    public UUID getChannelId() {
+        return channelId;
+    }
+
+    /**
+     * Set the far end of the channel whose recorded state the message
+     * carries.
+     *
+     * @param channelId ID of the bank that sent the recorded messages
+     */
+    public void setChannelId(UUID channelId) {
+        this.channelId = channelId;
+    }
+
+    /**
+     * Retrieve the colour of the message, the last Lai-Yang snapshot its
+     * sender had taken when it was sent.
+     *
+     * @return the epoch of the snapshot, or 0 if the message is uncoloured
+     */
+    public long getColour() {
+        return colour;
+    }
+
+    /**
+     * Set the colour of the message.
+     *
+     * @param colour epoch of the last Lai-Yang snapshot taken by the sender
+     */
+    public void setColour(long colour) {
+        this.colour = colour;
+    }
+
+    /**
+     * Retrieve the protocol features advertised in the message.
+     *
+     * @return the advertised features, or null if there are none
+     */
+    public ArrayList<String> getFeatures() {
+        return features;
+    }
+
+    /**
+     * Advertise a protocol feature in the message.
+     *
+     * @param feature the feature to advertise
+     */
+    public void addFeature(String feature) {
+        if (features == null) {
+            features = new ArrayList<>();
+        }
+        features.add(feature);
+    }
+
+    /**
+     * Check whether the message advertises a protocol feature. Messages from
+     * older banks advertise no features.
+     *
+     * @param feature the feature to look for
+     * @return true if the feature is advertised
+     */
+    public boolean hasFeature(String feature) {
+        return features != null && features.contains(feature);
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
         int result = 1;
         result = prime * result +
             ((accountIds == null) ? 0 : accountIds.hashCode());
-        result = prime * result + amount;
+        result = prime * result + (int) (amount ^ (amount >>> 32));
+        result = prime * result + Arrays.hashCode(amounts);
         result = prime * result + ((command == null) ? 0 : command.hashCode());
+        result = prime * result +
+            ((features == null) ? 0 : features.hashCode());
         result = prime * result + (int) (futureTick ^ (futureTick >>> 32));
         result = prime * result + msgCounter;
+        result = prime * result + (int) (epoch ^ (epoch >>> 32));
+        result = prime * result +
+            ((initiatorId == null) ? 0 : initiatorId.hashCode());
+        result = prime * result +
+            ((parentId == null) ? 0 : parentId.hashCode());
+        result = prime * result + childCount;
+        result = prime * result +
+            ((channelId == null) ? 0 : channelId.hashCode());
+        result = prime * result + (int) (colour ^ (colour >>> 32));
         result = prime * result +
             ((snapshot == null) ? 0 : snapshot.hashCode());
         result = prime * result +
@@ -216,15 +428,55 @@ public class Message {
         if (amount != other.amount) {
             return false;
         }
+        if (!Arrays.equals(amounts, other.amounts)) {
+            return false;
+        }
         if (command != other.command) {
             return false;
         }
+        if (features == null) {
+            if (other.features != null) {
+                return false;
+            }
+        } else if (!features.equals(other.features)) {
+            return false;
+        }
         if (futureTick != other.futureTick) {
             return false;
         }
         if (msgCounter != other.msgCounter) {
             return false;
         }
+        if (epoch != other.epoch) {
+            return false;
+        }
+        if (initiatorId == null) {
+            if (other.initiatorId != null) {
+                return false;
+            }
+        } else if (!initiatorId.equals(other.initiatorId)) {
+            return false;
+        }
+        if (parentId == null) {
+            if (other.parentId != null) {
+                return false;
+            }
+        } else if (!parentId.equals(other.parentId)) {
+            return false;
+        }
+        if (childCount != other.childCount) {
+            return false;
+        }
+        if (channelId == null) {
+            if (other.channelId != null) {
+                return false;
+            }
+        } else if (!channelId.equals(other.channelId)) {
+            return false;
+        }
+        if (colour != other.colour) {
+            return false;
+        }
         if (snapshot == null) {
             if (other.snapshot != null) {
                 return false;
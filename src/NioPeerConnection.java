@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Connection to a remote bank multiplexed onto an {@link EventLoop}.
+ *
+ * <p>
+ * Writes are attempted directly from the writer thread. Anything the socket
+ * does not accept straight away is kept and finished by the event loop once
+ * the channel becomes writable, and no further messages are drained from the
+ * outbound queue until then.
+ */
+public class NioPeerConnection extends PeerConnection {
+    private final SocketChannel channel;
+    private final EventLoop eventLoop;
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    private SelectionKey key;
+
+    /**
+     * Wrap a connected channel.
+     *
+     * @param channel   channel connected to the remote bank
+     * @param eventLoop event loop that will service the channel
+     * @param writer    pool of threads that drain outbound queues
+     * @param config    configuration of the local bank
+     * @throws IOException if unable to make the channel non-blocking
+     */
+    public NioPeerConnection(
+            SocketChannel channel,
+            EventLoop eventLoop,
+            ScheduledExecutorService writer,
+            BankConfig config) throws IOException {
+        super(writer, config);
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        channel.configureBlocking(false);
+    }
+
+    @Override
+    public void start() {
+        eventLoop.execute(() -> {
+            try {
+                key = channel.register(
+                    eventLoop.getSelector(),
+                    SelectionKey.OP_READ,
+                    this);
+                enableWrite();
+            } catch (ClosedChannelException e) {
+                closed();
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (key != null) {
+            key.cancel();
+        }
+        channel.close();
+    }
+
+    @Override
+    protected void write(byte[] bytes, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+        synchronized (pending) {
+            channel.write(buffer);
+            if (!buffer.hasRemaining()) {
+                return;
+            }
+            // the caller reuses its buffer, so keep a copy of what is left
+            ByteBuffer remaining = ByteBuffer.allocate(buffer.remaining());
+            remaining.put(buffer);
+            remaining.flip();
+            pending.add(remaining);
+        }
+        eventLoop.execute(this::enableWrite);
+    }
+
+    @Override
+    protected boolean isWriteBlocked() {
+        synchronized (pending) {
+            return !pending.isEmpty();
+        }
+    }
+
+    /**
+     * Read whatever is available from the channel. Called by the event loop.
+     * Anything that goes wrong shuts down this connection only, never the
+     * event loop it shares with other connections.
+     */
+    void handleRead() {
+        ByteBuffer buffer = eventLoop.getReadBuffer();
+        buffer.clear();
+        try {
+            int read = channel.read(buffer);
+            if (read == -1) {
+                shutdown();
+            } else if (read > 0) {
+                receive(buffer.array(), 0, read);
+            }
+        } catch (IOException | UnknownAccountException | RuntimeException e) {
+            e.printStackTrace();
+            System.out.print("> ");
+            shutdown();
+        }
+    }
+
+    /**
+     * Write queued frames to the channel. Called by the event loop, and like
+     * a read shuts down only this connection if anything goes wrong.
+     */
+    void handleWrite() {
+        try {
+            synchronized (pending) {
+                while (!pending.isEmpty()) {
+                    ByteBuffer buffer = pending.peek();
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        return;
+                    }
+                    pending.poll();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            scheduleDrain();
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            System.out.print("> ");
+            shutdown();
+        }
+    }
+
+    /**
+     * Register interest in writability if there are queued frames.
+     */
+    private void enableWrite() {
+        synchronized (pending) {
+            if (key != null && key.isValid() && !pending.isEmpty()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+}
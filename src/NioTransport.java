@@ -0,0 +1,73 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transport which multiplexes every remote bank onto a fixed pool of
+ * selector threads.
+ */
+public class NioTransport implements Transport {
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] eventLoops;
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+    private final ScheduledExecutorService writer;
+    private final BankConfig config;
+
+    /**
+     * Listen for remote banks on a port.
+     *
+     * @param port   port to listen on
+     * @param config configuration of the local bank
+     * @throws IOException if unable to open socket
+     */
+    public NioTransport(int port, BankConfig config) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        writer = Transport.newWriterPool(config);
+        this.config = config;
+        int ioThreads = config.getIoThreads();
+        eventLoops = new EventLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            eventLoops[i] = new EventLoop("bank-io-" + i);
+            eventLoops[i].start();
+        }
+    }
+
+    @Override
+    public PeerConnection accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        return new NioPeerConnection(channel, nextEventLoop(), writer, config);
+    }
+
+    @Override
+    public PeerConnection connect(String hostname, int port)
+            throws IOException {
+        SocketChannel channel = SocketChannel.open(
+            new InetSocketAddress(hostname, port));
+        return new NioPeerConnection(channel, nextEventLoop(), writer, config);
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+        writer.shutdownNow();
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+    }
+
+    /**
+     * Pick the event loop for a new connection, round robin.
+     *
+     * @return the event loop to use
+     */
+    private EventLoop nextEventLoop() {
+        int index = Math.floorMod(
+            nextEventLoop.getAndIncrement(),
+            eventLoops.length);
+        return eventLoops[index];
+    }
+}
@@ -0,0 +1,230 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals of what a bank spends on snapshots next to what it spends
+ * on everything else, read by the {@link SnapshotScheduler} to work out
+ * what each scheduled snapshot costs.
+ *
+ * <p>
+ * Every message sent is counted, with its encoded size, as either snapshot
+ * traffic or other traffic going by its command. The time the snapshot
+ * lock is held exclusively is counted too, as account operations wait on
+ * it. Totals only ever grow, so costs are found by subtracting one
+ * {@link Reading} from another.
+ */
+public class OverheadMeter {
+    private final LongAdder snapshotMessages = new LongAdder();
+    private final LongAdder snapshotBytes = new LongAdder();
+    private final LongAdder otherMessages = new LongAdder();
+    private final LongAdder otherBytes = new LongAdder();
+    private final LongAdder lockHeldNanos = new LongAdder();
+
+    /**
+     * Check whether a command belongs to a snapshot algorithm.
+     *
+     * @param command the command of a message
+     * @return true if the message is only sent to take snapshots
+     */
+    public static boolean isSnapshotTraffic(Command command) {
+        switch (command) {
+            case TAKE_SNAPSHOT:
+            case ACKNOWLEDGEMENT:
+            case DUMMY:
+            case SNAPSHOT:
+            case WHITE_MESSAGE:
+            case CHANDY_LAMPORT_MARKER:
+            case CHANDY_LAMPORT_RESET:
+            case SNAPSHOT_COMPLETE:
+            case CHANDY_LAMPORT_STATE:
+            case CHANDY_LAMPORT_CHANNEL:
+            case LAI_YANG_REPORT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Count a message sent to a remote bank.
+     *
+     * @param message the message sent
+     * @param bytes   size of the message once encoded
+     */
+    public void sent(Message message, int bytes) {
+        if (isSnapshotTraffic(message.getCommand())) {
+            snapshotMessages.increment();
+            snapshotBytes.add(bytes);
+        } else {
+            otherMessages.increment();
+            otherBytes.add(bytes);
+        }
+    }
+
+    /**
+     * Count time the snapshot lock was held exclusively.
+     *
+     * @param nanos time the lock was held in nanoseconds
+     */
+    public void lockHeld(long nanos) {
+        lockHeldNanos.add(nanos);
+    }
+
+    /**
+     * Read the totals so far.
+     *
+     * @return the current totals
+     */
+    public Reading read() {
+        return new Reading(
+            System.nanoTime(),
+            snapshotMessages.sum(),
+            snapshotBytes.sum(),
+            otherMessages.sum(),
+            otherBytes.sum(),
+            lockHeldNanos.sum());
+    }
+
+    /**
+     * Totals of an {@link OverheadMeter} at one point in time.
+     */
+    public static class Reading {
+        private final long time;
+        private final long snapshotMessages;
+        private final long snapshotBytes;
+        private final long otherMessages;
+        private final long otherBytes;
+        private final long lockHeldNanos;
+
+        /**
+         * Create a reading.
+         *
+         * @param time             when the reading was taken, from
+         *                         {@link System#nanoTime()}
+         * @param snapshotMessages snapshot messages sent
+         * @param snapshotBytes    bytes of snapshot messages sent
+         * @param otherMessages    other messages sent
+         * @param otherBytes       bytes of other messages sent
+         * @param lockHeldNanos    time the snapshot lock was held
+         */
+        private Reading(
+                long time,
+                long snapshotMessages,
+                long snapshotBytes,
+                long otherMessages,
+                long otherBytes,
+                long lockHeldNanos) {
+            this.time = time;
+            this.snapshotMessages = snapshotMessages;
+            this.snapshotBytes = snapshotBytes;
+            this.otherMessages = otherMessages;
+            this.otherBytes = otherBytes;
+            this.lockHeldNanos = lockHeldNanos;
+        }
+
+        /**
+         * Find what was spent between an earlier reading and this one.
+         *
+         * @param earlier a reading taken before this one
+         * @return the difference between the readings
+         */
+        public Reading since(Reading earlier) {
+            return new Reading(
+                time - earlier.time,
+                snapshotMessages - earlier.snapshotMessages,
+                snapshotBytes - earlier.snapshotBytes,
+                otherMessages - earlier.otherMessages,
+                otherBytes - earlier.otherBytes,
+                lockHeldNanos - earlier.lockHeldNanos);
+        }
+
+        /**
+         * Work out the share taken up by snapshots: the largest of their
+         * share of messages sent, of bytes sent, and of time spent with the
+         * snapshot lock held. Only meaningful for a difference between
+         * readings.
+         *
+         * @return the overhead of snapshots, from 0 to 1
+         */
+        public double overhead() {
+            double overhead = share(snapshotMessages, otherMessages);
+            overhead = Math.max(
+                overhead,
+                share(snapshotBytes, otherBytes));
+            if (time > 0) {
+                overhead = Math.max(
+                    overhead,
+                    Math.min(1, (double) lockHeldNanos / time));
+            }
+            return overhead;
+        }
+
+        /**
+         * Work out the share of a total spent on snapshots.
+         *
+         * @param snapshot amount spent on snapshots
+         * @param other    amount spent on everything else
+         * @return the share spent on snapshots, 0 if nothing was spent
+         */
+        private static double share(long snapshot, long other) {
+            if (snapshot + other == 0) {
+                return 0;
+            }
+            return (double) snapshot / (snapshot + other);
+        }
+
+        /**
+         * Retrieve when the reading was taken, or the time between readings
+         * for a difference.
+         *
+         * @return the time in nanoseconds
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Retrieve the number of snapshot messages sent.
+         *
+         * @return the number of snapshot messages
+         */
+        public long getSnapshotMessages() {
+            return snapshotMessages;
+        }
+
+        /**
+         * Retrieve the bytes of snapshot messages sent.
+         *
+         * @return the bytes of snapshot messages
+         */
+        public long getSnapshotBytes() {
+            return snapshotBytes;
+        }
+
+        /**
+         * Retrieve the number of other messages sent.
+         *
+         * @return the number of other messages
+         */
+        public long getOtherMessages() {
+            return otherMessages;
+        }
+
+        /**
+         * Retrieve the bytes of other messages sent.
+         *
+         * @return the bytes of other messages
+         */
+        public long getOtherBytes() {
+            return otherBytes;
+        }
+
+        /**
+         * Retrieve the time the snapshot lock was held exclusively.
+         *
+         * @return the lock hold time in nanoseconds
+         */
+        public long getLockHeldNanos() {
+            return lockHeldNanos;
+        }
+    }
+}
@@ -0,0 +1,452 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Connection to a remote bank, responsible for framing messages on the wire.
+ *
+ * <p>
+ * Messages are sent as line delimited JSON until both sides have agreed to
+ * use {@link BinaryCodec} during registration. Incoming frames of either kind
+ * are always accepted.
+ *
+ * <p>
+ * Sending only places a message on a bounded outbound queue. A writer thread
+ * drains the queue, encoding every waiting message into one buffer that is
+ * handed to {@link #write(byte[], int)} when the {@link FlushPolicy} says
+ * so, so a slow remote bank never holds up the thread that sent to it.
+ * Subclasses hand whatever they read to {@link #receive(byte[], int, int)}
+ * which decodes complete messages in place and passes them to the remote
+ * bank.
+ *
+ * <p>
+ * Only a full queue makes a sender wait, except on the selector thread of
+ * an {@link EventLoop}: that thread is the one that lets a write-blocked
+ * connection drain its queue again, so what it sends to a full queue goes
+ * to an overflow list instead. Once anything has overflowed, every message
+ * goes after it until the overflow is drained, so messages still leave in
+ * the order they were sent.
+ *
+ * <p>
+ * Once the remote bank has asked for delta clocks, each message carries only
+ * the clock values that changed since the previous message on the
+ * connection. Messages are encoded and decoded in the order they are sent,
+ * so the receiving side rebuilds every clock exactly from the last one it
+ * saw before handing the message on.
+ *
+ * <p>
+ * Snapshots of the local bank are sent the same way once the remote bank
+ * has asked for delta snapshots, carrying only the accounts written since
+ * the previous snapshot on the connection. A delta is taken against the
+ * last snapshot encoded, and the remote bank decodes in the same order, so
+ * it always holds the base a delta was taken against.
+ */
+public abstract class PeerConnection {
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    private final ByteRangeReader frameReader = new ByteRangeReader();
+    private final BlockingQueue<Message> outbound;
+    // guarded by itself
+    private final ArrayDeque<Message> overflow = new ArrayDeque<>();
+    private final ScheduledExecutorService writer;
+    private final FlushPolicy flushPolicy;
+    private final AtomicBoolean drainQueued = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final FrameBuffer buffered = new FrameBuffer();
+    private final Writer jsonWriter = new OutputStreamWriter(
+        buffered,
+        StandardCharsets.UTF_8);
+    private long firstBufferedAt;
+    private ScheduledFuture<?> flushTimer;
+    private byte[] inbound = new byte[INITIAL_BUFFER_SIZE];
+    private int inboundLength = 0;
+    private int scanned = 0;
+    private RemoteBank remoteBank;
+    private OverheadMeter meter;
+    private volatile boolean binary = false;
+    private volatile boolean deltaClocks = false;
+    private VectorClock lastSent;
+    private VectorClock lastReceived;
+    private volatile boolean deltaSnapshots = false;
+    private Snapshot lastSentSnapshot;
+    private Snapshot lastReceivedSnapshot;
+
+    /**
+     * Create a connection whose outbound queue is drained by a shared pool
+     * of writer threads.
+     *
+     * @param writer pool of threads that drain outbound queues
+     * @param config configuration of the local bank
+     */
+    protected PeerConnection(
+            ScheduledExecutorService writer,
+            BankConfig config) {
+        this.writer = writer;
+        this.flushPolicy = config.getFlushPolicy();
+        this.outbound = new ArrayBlockingQueue<>(config.getOutboundCapacity());
+    }
+
+    /**
+     * Set the remote bank that decoded messages are delivered to.
+     *
+     * @param remoteBank the remote bank using this connection
+     */
+    public void setRemoteBank(RemoteBank remoteBank) {
+        this.remoteBank = remoteBank;
+    }
+
+    /**
+     * Set the meter that counts every message sent on this connection.
+     *
+     * @param meter the overhead meter of the local bank
+     */
+    public void setOverheadMeter(OverheadMeter meter) {
+        this.meter = meter;
+    }
+
+    /**
+     * Queue a message for the remote bank, waiting only if its queue is full
+     * and the caller is not a selector thread. The message must not be
+     * modified afterwards.
+     *
+     * @param message the message to send
+     * @throws IOException if interrupted while waiting for space in the queue
+     */
+    public void send(Message message) throws IOException {
+        boolean queued = false;
+        synchronized (overflow) {
+            if (!overflow.isEmpty()) {
+                overflow.add(message);
+                queued = true;
+            } else if (EventLoop.inEventLoop()) {
+                if (!outbound.offer(message)) {
+                    overflow.add(message);
+                }
+                queued = true;
+            }
+        }
+        if (!queued) {
+            try {
+                outbound.put(message);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                    "Interrupted while queueing message");
+            }
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * Ask a writer thread to drain the outbound queue, unless one has already
+     * been asked.
+     */
+    protected void scheduleDrain() {
+        if (drainQueued.compareAndSet(false, true)) {
+            writer.execute(this::drain);
+        }
+    }
+
+    /**
+     * Encode queued messages into the buffer and flush it if the flush policy
+     * allows. Runs on a writer thread.
+     */
+    private void drain() {
+        drainQueued.set(false);
+        synchronized (buffered) {
+            try {
+                Message message;
+                while (!isWriteBlocked() && (message = next()) != null) {
+                    if (buffered.size() == 0) {
+                        firstBufferedAt = System.nanoTime();
+                    }
+                    encode(message);
+                }
+                if (buffered.size() == 0) {
+                    return;
+                }
+
+                long waited = System.nanoTime() - firstBufferedAt;
+                if (buffered.size() >= flushPolicy.getSizeThreshold() ||
+                    waited >= flushPolicy.getMaxDelayNanos()) {
+                    write(buffered.array(), buffered.size());
+                    buffered.reset();
+                } else if (flushTimer == null || flushTimer.isDone()) {
+                    flushTimer = writer.schedule(
+                        this::drain,
+                        flushPolicy.getMaxDelayNanos() - waited,
+                        TimeUnit.NANOSECONDS);
+                }
+            } catch (IOException e) {
+                if (!closed.get()) {
+                    e.printStackTrace();
+                    System.out.print("> ");
+                }
+                shutdown();
+            }
+        }
+    }
+
+    /**
+     * Take the next message to encode, from the queue and then from the
+     * overflow, which only holds messages sent after everything queued.
+     *
+     * @return the next message, or null if there is none
+     */
+    private Message next() {
+        Message message = outbound.poll();
+        if (message != null) {
+            return message;
+        }
+        synchronized (overflow) {
+            return overflow.poll();
+        }
+    }
+
+    /**
+     * Encode a message into the outbound buffer, using the format agreed with
+     * the remote bank.
+     *
+     * @param message the message to encode
+     * @throws IOException if unable to encode the message
+     */
+    private void encode(Message message) throws IOException {
+        VectorClock clock = message.getVectorClock();
+        VectorClock delta = deltaClocks ? clock.diff(lastSent) : null;
+        lastSent = clock;
+        Snapshot snapshot = message.getSnapshot();
+        if (deltaSnapshots && snapshot != null && snapshot.isLocal()) {
+            // the message is only read from here on, so it can carry the
+            // delta in place of the snapshot
+            message.setSnapshot(snapshot.diff(lastSentSnapshot));
+            lastSentSnapshot = snapshot;
+        }
+        int start = buffered.size();
+        if (binary) {
+            BinaryCodec.encode(message, delta, buffered);
+        } else {
+            JsonCodec.write(message, delta, jsonWriter);
+            jsonWriter.flush();
+        }
+        if (meter != null) {
+            meter.sent(message, buffered.size() - start);
+        }
+    }
+
+    /**
+     * Switch outgoing messages to the binary encoding, once the remote bank
+     * has shown that it understands it.
+     *
+     * @param binary true to send binary frames, false to send JSON
+     */
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * Switch outgoing messages to delta clocks, once the remote bank has
+     * shown that it can rebuild them.
+     *
+     * @param deltaClocks true to send only changed clock values, false to
+     *                    send whole clocks
+     */
+    public void setDeltaClocks(boolean deltaClocks) {
+        this.deltaClocks = deltaClocks;
+    }
+
+    /**
+     * Switch outgoing snapshots to deltas, once the remote bank has shown
+     * that it can rebuild them.
+     *
+     * @param deltaSnapshots true to send only changed accounts, false to
+     *                       send whole snapshots
+     */
+    public void setDeltaSnapshots(boolean deltaSnapshots) {
+        this.deltaSnapshots = deltaSnapshots;
+    }
+
+    /**
+     * Start delivering messages received on this connection.
+     */
+    public abstract void start();
+
+    /**
+     * Close the connection.
+     *
+     * @throws IOException if unable to close the connection
+     */
+    public abstract void close() throws IOException;
+
+    /**
+     * Write a buffer of encoded messages to the remote bank in one go. Only
+     * ever called by one writer thread at a time.
+     *
+     * @param bytes  the encoded messages
+     * @param length number of bytes to write
+     * @throws IOException if unable to write
+     */
+    protected abstract void write(byte[] bytes, int length) throws IOException;
+
+    /**
+     * Check whether earlier writes are still waiting for the socket, in which
+     * case the outbound queue is left alone until {@link #scheduleDrain()} is
+     * called again.
+     *
+     * @return true if no more messages should be encoded yet
+     */
+    protected boolean isWriteBlocked() {
+        return false;
+    }
+
+    /**
+     * Decode bytes read from the remote bank, processing every complete
+     * message.
+     *
+     * @param bytes  buffer holding the bytes read
+     * @param offset offset of the first byte read
+     * @param length number of bytes read
+     * @throws IOException             if unable to respond to a message
+     * @throws UnknownAccountException if a message refers to an unknown
+     *                                 account
+     */
+    protected void receive(byte[] bytes, int offset, int length)
+            throws IOException,
+            UnknownAccountException {
+        if (inboundLength + length > inbound.length) {
+            inbound = Arrays.copyOf(
+                inbound,
+                Math.max(inbound.length * 2, inboundLength + length));
+        }
+        System.arraycopy(bytes, offset, inbound, inboundLength, length);
+        inboundLength += length;
+
+        int start = 0;
+        while (start < inboundLength) {
+            Message message;
+            if (inbound[start] == BinaryCodec.FRAME_MARKER) {
+                int frameLength = BinaryCodec.frameLength(
+                    inbound,
+                    start,
+                    inboundLength);
+                if (frameLength < 0 || start + frameLength > inboundLength) {
+                    break;
+                }
+                message = BinaryCodec.decode(inbound, start, frameLength);
+                start += frameLength;
+            } else {
+                int end = Math.max(start, scanned);
+                while (end < inboundLength && inbound[end] != '\n') {
+                    end++;
+                }
+                if (end == inboundLength) {
+                    scanned = end;
+                    break;
+                }
+                message = JsonCodec.read(
+                    frameReader.reset(inbound, start, end - start));
+                start = end + 1;
+                scanned = 0;
+            }
+            rebuildClock(message);
+            rebuildSnapshot(message);
+            remoteBank.process(message);
+        }
+
+        // keep the incomplete tail for the next read
+        System.arraycopy(inbound, start, inbound, 0, inboundLength - start);
+        inboundLength -= start;
+        scanned = Math.max(0, scanned - start);
+    }
+
+    /**
+     * Rebuild the whole vector clock of a message that carries only the
+     * values changed since the previous message, and remember the clock for
+     * the next message.
+     *
+     * @param message a message just decoded
+     */
+    private void rebuildClock(Message message) {
+        VectorClock clock = message.getVectorClock();
+        if (clock == null) {
+            return;
+        }
+        if (message.isDeltaClock()) {
+            if (lastReceived != null) {
+                clock.fill(lastReceived);
+            }
+            message.setDeltaClock(false);
+        }
+        lastReceived = clock;
+    }
+
+    /**
+     * Rebuild the whole snapshot carried by a message that holds only the
+     * accounts changed since the previous snapshot, and remember snapshots
+     * the remote bank will take later deltas against.
+     *
+     * @param message a message just decoded
+     * @throws IOException if the message holds a delta with nothing to
+     *                     rebuild it from
+     */
+    private void rebuildSnapshot(Message message) throws IOException {
+        Snapshot snapshot = message.getSnapshot();
+        if (snapshot == null || !snapshot.isBase()) {
+            return;
+        }
+        if (snapshot.isDelta()) {
+            if (lastReceivedSnapshot == null) {
+                throw new IOException("Delta snapshot without a base");
+            }
+            snapshot = lastReceivedSnapshot.apply(snapshot);
+            message.setSnapshot(snapshot);
+        }
+        lastReceivedSnapshot = snapshot;
+    }
+
+    /**
+     * Called once the connection has been closed by either side.
+     */
+    protected void closed() {
+        if (closed.compareAndSet(false, true)) {
+            outbound.clear();
+            synchronized (overflow) {
+                overflow.clear();
+            }
+            remoteBank.disconnected();
+        }
+    }
+
+    /**
+     * Close the connection after it has failed or the remote bank has gone
+     * away.
+     */
+    protected void shutdown() {
+        closed();
+        try {
+            close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.print("> ");
+        }
+    }
+
+    /**
+     * Buffer exposing its backing array, so it can be written without a copy.
+     */
+    private static final class FrameBuffer extends ByteArrayOutputStream {
+        private byte[] array() {
+            return buf;
+        }
+    }
+}
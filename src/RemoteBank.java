@@ -1,63 +1,50 @@
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.Socket;
-import java.net.SocketException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-
-import com.google.gson.Gson;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Class to interact with remote banks.
  */
-public class RemoteBank implements Runnable {
-    private final Socket socket;
-    private final BufferedWriter out;
-    private final BufferedReader in;
+public class RemoteBank {
+    public static final String BATCH_FEATURE = "batch";
+    public static final String DELTA_CLOCK_FEATURE = "delta-clock";
+    public static final String DELTA_SNAPSHOT_FEATURE = "delta-snapshot";
+
+    private final PeerConnection connection;
     private final Bank bank;
     private UUID bankId;
     private final Set<String> accountIds = new HashSet<>();
+    private volatile boolean batchSupported;
+    private volatile boolean roundsSupported;
+    private volatile boolean treeSupported;
+    private volatile boolean lightMarkersSupported;
+    private volatile boolean laiYangSupported;
 
     /**
-     * Initialize a remote bank instance, called when making a connection
-     * request to another process.
+     * Initialize a remote bank instance on top of a connection, made either
+     * by or to another process.
      *
-     * @param hostname host name of the other process
-     * @param port     port of the other process
-     * @param bank     local bank reference
-     * @throws IOException if unable to connect to the remote bank
+     * @param connection connection to the other process
+     * @param bank       local bank reference
      */
-    public RemoteBank(String hostname, int port, Bank bank) throws IOException {
-        synchronized (bank) {
-            this.socket = new Socket(hostname, port);
-            this.out = new BufferedWriter(
-                new OutputStreamWriter(socket.getOutputStream()));
-            this.in = new BufferedReader(
-                new InputStreamReader(socket.getInputStream()));
-            this.bank = bank;
-            register();
-        }
+    public RemoteBank(PeerConnection connection, Bank bank) {
+        this.connection = connection;
+        this.bank = bank;
+        connection.setRemoteBank(this);
+        connection.setOverheadMeter(bank.getOverheadMeter());
     }
 
     /**
-     * Initialize a remote bank instance, called when there is a connection
-     * request from another process.
-     *
-     * @param socket socket this remote bank will listen to
-     * @param bank   local bank reference
-     * @throws IOException if unable to connect to the remote bank
+     * Start receiving messages from the remote bank.
      */
-    public RemoteBank(Socket socket, Bank bank) throws IOException {
-        this.socket = socket;
-        this.out = new BufferedWriter(
-            new OutputStreamWriter(socket.getOutputStream()));
-        this.in = new BufferedReader(
-            new InputStreamReader(socket.getInputStream()));
-        this.bank = bank;
+    public void start() {
+        connection.start();
     }
 
     /**
@@ -67,17 +54,29 @@ public class RemoteBank implements Runnable {
      */
     public void register() throws IOException {
         synchronized (bank) {
-            VectorClock.getInstance().tick(bank.getBankId());
+            bank.getVectorClock().tick(bank.getBankId());
             bank.getmAlgorithm().msgCounter += MAlgorithm.SEND;
             Message message = new Message(
                 Command.REGISTER,
                 bank.getBankId(),
-                VectorClock.getInstance());
+                bank.getVectorClock().copy());
 
             message.addAccountIds(bank.getLocalAccountIds());
-            out.write(new Gson().toJson(message));
-            out.newLine();
-            out.flush();
+            message.addFeature(BATCH_FEATURE);
+            message.addFeature(MAlgorithm.ROUNDS_FEATURE);
+            message.addFeature(MAlgorithm.TREE_FEATURE);
+            message.addFeature(ChandyLamport.LIGHT_MARKER_FEATURE);
+            message.addFeature(LaiYang.FEATURE);
+            if (offersBinary()) {
+                message.addFeature(BinaryCodec.FEATURE);
+            }
+            if (offersDeltaClocks()) {
+                message.addFeature(DELTA_CLOCK_FEATURE);
+            }
+            if (offersDeltaSnapshots()) {
+                message.addFeature(DELTA_SNAPSHOT_FEATURE);
+            }
+            connection.send(message);
         }
     }
 
@@ -89,20 +88,20 @@ public class RemoteBank implements Runnable {
      * @param amount    amount to be deposited
      * @throws IOException if unable to send message
      */
-    public void deposit(String accountId, int amount) throws IOException {
+    public void deposit(String accountId, long amount) throws IOException {
         synchronized (bank) {
-            VectorClock.getInstance().tick(bank.getBankId());
+            bank.getLaiYang().announce(this);
+            bank.getVectorClock().tick(bank.getBankId());
             bank.getmAlgorithm().msgCounter += MAlgorithm.SEND;
             Message message = new Message(
                 Command.DEPOSIT,
                 bank.getBankId(),
-                VectorClock.getInstance());
+                bank.getVectorClock().copy());
 
             message.addAccountId(accountId);
             message.setAmount(amount);
-            out.write(new Gson().toJson(message));
-            out.newLine();
-            out.flush();
+            bank.getLaiYang().paint(this, message);
+            connection.send(message);
         }
     }
 
@@ -114,20 +113,83 @@ public class RemoteBank implements Runnable {
      * @param amount    amount to be withdrawn
      * @throws IOException if unable to send message
      */
-    public void withdraw(String accountId, int amount) throws IOException {
+    public void withdraw(String accountId, long amount) throws IOException {
         synchronized (bank) {
-            VectorClock.getInstance().tick(bank.getBankId());
+            bank.getLaiYang().announce(this);
+            bank.getVectorClock().tick(bank.getBankId());
             bank.getmAlgorithm().msgCounter += MAlgorithm.SEND;
             Message message = new Message(
                 Command.WITHDRAW,
                 bank.getBankId(),
-                VectorClock.getInstance());
+                bank.getVectorClock().copy());
 
             message.addAccountId(accountId);
             message.setAmount(amount);
-            out.write(new Gson().toJson(message));
-            out.newLine();
-            out.flush();
+            bank.getLaiYang().paint(this, message);
+            connection.send(message);
+        }
+    }
+
+    /**
+     * Deposit to many accounts owned by the remote bank in one message.
+     *
+     * @param amounts amount to be deposited, indexed by account ID
+     * @throws IOException if unable to send message
+     */
+    public void depositAll(Map<String, Long> amounts) throws IOException {
+        if (!batchSupported) {
+            for (Map.Entry<String, Long> entry : amounts.entrySet()) {
+                deposit(entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+        sendBatch(Command.DEPOSIT_BATCH, amounts);
+    }
+
+    /**
+     * Withdraw from many accounts owned by the remote bank in one message.
+     *
+     * @param amounts amount to be withdrawn, indexed by account ID
+     * @throws IOException if unable to send message
+     */
+    public void withdrawAll(Map<String, Long> amounts) throws IOException {
+        if (!batchSupported) {
+            for (Map.Entry<String, Long> entry : amounts.entrySet()) {
+                withdraw(entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+        sendBatch(Command.WITHDRAW_BATCH, amounts);
+    }
+
+    /**
+     * Send a batch of operations as a single message, with a single tick of
+     * the vector clock.
+     *
+     * @param command DEPOSIT_BATCH or WITHDRAW_BATCH
+     * @param amounts amounts indexed by account ID
+     * @throws IOException if unable to send message
+     */
+    private void sendBatch(Command command, Map<String, Long> amounts)
+            throws IOException {
+        synchronized (bank) {
+            bank.getLaiYang().announce(this);
+            bank.getVectorClock().tick(bank.getBankId());
+            bank.getmAlgorithm().msgCounter += MAlgorithm.SEND;
+            Message message = new Message(
+                command,
+                bank.getBankId(),
+                bank.getVectorClock().copy());
+
+            long[] batchAmounts = new long[amounts.size()];
+            int i = 0;
+            for (Map.Entry<String, Long> entry : amounts.entrySet()) {
+                message.addAccountId(entry.getKey());
+                batchAmounts[i++] = entry.getValue();
+            }
+            message.setAmounts(batchAmounts);
+            bank.getLaiYang().paint(this, message);
+            connection.send(message);
         }
     }
 
@@ -139,39 +201,43 @@ public class RemoteBank implements Runnable {
      */
     public void printBalance(String accountId) throws IOException {
         synchronized (bank) {
-            VectorClock.getInstance().tick(bank.getBankId());
+            bank.getVectorClock().tick(bank.getBankId());
             bank.getmAlgorithm().msgCounter += MAlgorithm.SEND;
             Message message = new Message(
                 Command.GET_BALANCE,
                 bank.getBankId(),
-                VectorClock.getInstance());
+                bank.getVectorClock().copy());
 
             message.addAccountId(accountId);
-            out.write(new Gson().toJson(message));
-            out.newLine();
-            out.flush();
+            connection.send(message);
         }
     }
 
     /**
      * Send a tick to another process.
      *
-     * @param tick the vector clock time of snapshot
+     * @param info the initiator, epoch and future tick of the snapshot
+     * @param tree the tree the snapshot is collected through, or null if
+     *             the process reports to the initiator
      * @throws IOException if unable to send message
      */
-    public void sendFutureTick(long tick) throws IOException {
+    public void sendFutureTick(InitiatorInfo info, SnapshotTree tree)
+            throws IOException {
         synchronized (bank) {
-            VectorClock.getInstance().tick(bank.getBankId());
+            bank.getVectorClock().tick(bank.getBankId());
             bank.getmAlgorithm().msgCounter += MAlgorithm.SEND;
             Message message = new Message(
                 Command.TAKE_SNAPSHOT,
                 bank.getBankId(),
-                VectorClock.getInstance());
+                bank.getVectorClock().copy());
 
-            message.setFutureTick(tick);
-            out.write(new Gson().toJson(message));
-            out.newLine();
-            out.flush();
+            message.setFutureTick(info.getFutureTick());
+            message.setEpoch(info.getEpoch());
+            if (tree != null) {
+                message.setParentId(tree.getParent(bankId));
+                message.setChildCount(tree.getChildCount(bankId));
+            }
+            connection.send(message);
         }
     }
 
@@ -182,39 +248,42 @@ public class RemoteBank implements Runnable {
      */
     public void sendDummyMsg() throws IOException {
         synchronized (bank) {
-            VectorClock.getInstance().tick(bank.getBankId());
+            bank.getVectorClock().tick(bank.getBankId());
             bank.getmAlgorithm().msgCounter += MAlgorithm.SEND;
             Message message = new Message(
                 Command.DUMMY,
                 bank.getBankId(),
-                VectorClock.getInstance());
+                bank.getVectorClock().copy());
 
-            out.write(new Gson().toJson(message));
-            out.newLine();
-            out.flush();
+            connection.send(message);
         }
     }
 
     /**
      * Send the local snapshot to initiator after record the local states.
      *
-     * @param snapshot the snapshot to be sent
+     * @param snapshot   the snapshot to be sent
+     * @param msgCounter messages sent minus messages received when the
+     *                   snapshot was taken
+     * @param info       the round the snapshot was taken for
      * @throws IOException if unable to send message
      */
-    public void sendSnapshotToInitiator(Snapshot snapshot) throws IOException {
+    public void sendSnapshotToInitiator(
+            Snapshot snapshot,
+            int msgCounter,
+            InitiatorInfo info) throws IOException {
         synchronized (bank) {
-            VectorClock.getInstance().tick(bank.getBankId());
+            bank.getVectorClock().tick(bank.getBankId());
             bank.getmAlgorithm().msgCounter += MAlgorithm.SEND;
             Message message = new Message(
                 Command.SNAPSHOT,
                 bank.getBankId(),
-                VectorClock.getInstance());
+                bank.getVectorClock().copy());
 
             message.setSnapshot(snapshot);
-            message.setMsgCounter(bank.getmAlgorithm().msgCounter);
-            out.write(new Gson().toJson(message));
-            out.newLine();
-            out.flush();
+            message.setMsgCounter(msgCounter);
+            message.setEpoch(info.getEpoch());
+            connection.send(message);
         }
     }
 
@@ -222,22 +291,95 @@ public class RemoteBank implements Runnable {
      * Send a white message to initiator.
      *
      * @param whiteMessage the white message to be sent
+     * @param info         the round the message was in transit for
      * @throws IOException if unable to send message
      */
-    public void sendWhiteMessageToInitiator(Message whiteMessage)
-            throws IOException {
+    public void sendWhiteMessageToInitiator(
+            Message whiteMessage,
+            InitiatorInfo info) throws IOException {
         synchronized (bank) {
-            VectorClock.getInstance().tick(bank.getBankId());
+            bank.getVectorClock().tick(bank.getBankId());
             bank.getmAlgorithm().msgCounter += MAlgorithm.SEND;
             Message message = new Message(
                 Command.WHITE_MESSAGE,
                 bank.getBankId(),
-                VectorClock.getInstance());
+                bank.getVectorClock().copy());
 
             message.setWhiteMessage(whiteMessage);
-            out.write(new Gson().toJson(message));
-            out.newLine();
-            out.flush();
+            message.setEpoch(info.getEpoch());
+            connection.send(message);
+        }
+    }
+
+    /**
+     * Send a report on a branch of a snapshot tree to the parent, as a
+     * SNAPSHOT message for the first report and a WHITE_MESSAGE message for
+     * white messages totalled after it.
+     *
+     * @param snapshot   merged snapshot of the branch, or null if only white
+     *                   messages are reported
+     * @param msgCounter messages sent minus messages received by the branch
+     * @param amounts    amounts in transit indexed by account ID
+     * @param info       the round being reported on
+     * @param relayTo    ID of the parent the remote bank is to pass the
+     *                   report on to, or null if it is the parent
+     * @throws IOException if unable to send message
+     */
+    public void sendReport(
+            Snapshot snapshot,
+            int msgCounter,
+            Map<String, Long> amounts,
+            InitiatorInfo info,
+            UUID relayTo) throws IOException {
+        synchronized (bank) {
+            bank.getVectorClock().tick(bank.getBankId());
+            bank.getmAlgorithm().msgCounter += MAlgorithm.SEND;
+            Message message = new Message(
+                snapshot != null ? Command.SNAPSHOT : Command.WHITE_MESSAGE,
+                bank.getBankId(),
+                bank.getVectorClock().copy());
+
+            message.setSnapshot(snapshot);
+            message.setMsgCounter(msgCounter);
+            if (!amounts.isEmpty()) {
+                long[] totals = new long[amounts.size()];
+                int i = 0;
+                for (Map.Entry<String, Long> entry : amounts.entrySet()) {
+                    message.addAccountId(entry.getKey());
+                    totals[i++] = entry.getValue();
+                }
+                message.setAmounts(totals);
+            }
+            message.setEpoch(info.getEpoch());
+            message.setInitiatorId(info.getInitiatorId());
+            message.setParentId(relayTo);
+            connection.send(message);
+        }
+    }
+
+    /**
+     * Tell another process that a snapshot round has completed, so that it
+     * stops checking messages against it. Banks that do not number rounds
+     * are not told.
+     *
+     * @param info the initiator and epoch of the completed round
+     * @throws IOException if unable to send message
+     */
+    public void sendSnapshotComplete(InitiatorInfo info) throws IOException {
+        if (!roundsSupported) {
+            return;
+        }
+        synchronized (bank) {
+            bank.getVectorClock().tick(bank.getBankId());
+            bank.getmAlgorithm().msgCounter += MAlgorithm.SEND;
+            Message message = new Message(
+                Command.SNAPSHOT_COMPLETE,
+                bank.getBankId(),
+                bank.getVectorClock().copy());
+
+            message.setFutureTick(info.getFutureTick());
+            message.setEpoch(info.getEpoch());
+            connection.send(message);
         }
     }
 
@@ -249,17 +391,162 @@ public class RemoteBank implements Runnable {
      */
     public void sendChandyLamportMarker(Snapshot snapshot) throws IOException {
         synchronized (bank) {
-            VectorClock.getInstance().tick(bank.getBankId());
+            bank.getVectorClock().tick(bank.getBankId());
             bank.getmAlgorithm().msgCounter += MAlgorithm.SEND;
             Message message = new Message(
                 Command.CHANDY_LAMPORT_MARKER,
                 bank.getBankId(),
-                VectorClock.getInstance());
+                bank.getVectorClock().copy());
 
             message.setSnapshot(snapshot);
-            out.write(new Gson().toJson(message));
-            out.newLine();
-            out.flush();
+            connection.send(message);
+        }
+    }
+
+    /**
+     * Send a marker carrying only the ID of its snapshot to another process.
+     *
+     * @param initiatorId ID of the initiator of the snapshot
+     * @param epoch       number of the snapshot at the initiator
+     * @throws IOException if unable to send message
+     */
+    public void sendChandyLamportMarker(UUID initiatorId, long epoch)
+            throws IOException {
+        synchronized (bank) {
+            bank.getVectorClock().tick(bank.getBankId());
+            bank.getmAlgorithm().msgCounter += MAlgorithm.SEND;
+            Message message = new Message(
+                Command.CHANDY_LAMPORT_MARKER,
+                bank.getBankId(),
+                bank.getVectorClock().copy());
+
+            message.setInitiatorId(initiatorId);
+            message.setEpoch(epoch);
+            connection.send(message);
+        }
+    }
+
+    /**
+     * Send the state recorded for a Chandy-Lamport snapshot to its
+     * initiator.
+     *
+     * @param state       the recorded state
+     * @param initiatorId ID of the initiator of the snapshot
+     * @param epoch       number of the snapshot at the initiator
+     * @throws IOException if unable to send message
+     */
+    public void sendChandyLamportState(
+            Snapshot state,
+            UUID initiatorId,
+            long epoch) throws IOException {
+        synchronized (bank) {
+            bank.getVectorClock().tick(bank.getBankId());
+            bank.getmAlgorithm().msgCounter += MAlgorithm.SEND;
+            Message message = new Message(
+                Command.CHANDY_LAMPORT_STATE,
+                bank.getBankId(),
+                bank.getVectorClock().copy());
+
+            message.setSnapshot(state);
+            message.setInitiatorId(initiatorId);
+            message.setEpoch(epoch);
+            connection.send(message);
+        }
+    }
+
+    /**
+     * Send part of the state recorded for a channel to the initiator of a
+     * Chandy-Lamport snapshot.
+     *
+     * @param channelId   ID of the bank at the far end of the channel
+     * @param accountIds  accounts updated by messages on the channel
+     * @param amounts     amount of each update, negative for withdrawals
+     * @param initiatorId ID of the initiator of the snapshot
+     * @param epoch       number of the snapshot at the initiator
+     * @throws IOException if unable to send message
+     */
+    public void sendChandyLamportChannel(
+            UUID channelId,
+            List<String> accountIds,
+            long[] amounts,
+            UUID initiatorId,
+            long epoch) throws IOException {
+        synchronized (bank) {
+            bank.getVectorClock().tick(bank.getBankId());
+            bank.getmAlgorithm().msgCounter += MAlgorithm.SEND;
+            Message message = new Message(
+                Command.CHANDY_LAMPORT_CHANNEL,
+                bank.getBankId(),
+                bank.getVectorClock().copy());
+
+            message.addAccountIds(accountIds);
+            message.setAmounts(amounts);
+            message.setChannelId(channelId);
+            message.setInitiatorId(initiatorId);
+            message.setEpoch(epoch);
+            connection.send(message);
+        }
+    }
+
+    /**
+     * Send a dummy message of a Lai-Yang colour, to tell the remote bank
+     * about a snapshot when there is no account update to carry it.
+     *
+     * @param colour      epoch of the snapshot
+     * @param initiatorId ID of the initiator of the snapshot
+     * @throws IOException if unable to send message
+     */
+    public void sendLaiYangNudge(long colour, UUID initiatorId)
+            throws IOException {
+        synchronized (bank) {
+            bank.getVectorClock().tick(bank.getBankId());
+            bank.getmAlgorithm().msgCounter += MAlgorithm.SEND;
+            Message message = new Message(
+                Command.DUMMY,
+                bank.getBankId(),
+                bank.getVectorClock().copy());
+
+            message.setColour(colour);
+            message.setInitiatorId(initiatorId);
+            connection.send(message);
+        }
+    }
+
+    /**
+     * Send the snapshot this bank took for a Lai-Yang snapshot, along with
+     * the amounts that were in transit to it, to the initiator.
+     *
+     * @param snapshot the local snapshot
+     * @param amounts  amounts in transit, indexed by account ID
+     * @param epoch    number of the snapshot
+     * @throws IOException if unable to send message
+     */
+    public void sendLaiYangReport(
+            Snapshot snapshot,
+            Map<String, Long> amounts,
+            long epoch) throws IOException {
+        synchronized (bank) {
+            bank.getLaiYang().announce(this);
+            bank.getVectorClock().tick(bank.getBankId());
+            bank.getmAlgorithm().msgCounter += MAlgorithm.SEND;
+            Message message = new Message(
+                Command.LAI_YANG_REPORT,
+                bank.getBankId(),
+                bank.getVectorClock().copy());
+
+            long[] reportAmounts = new long[amounts.size()];
+            int i = 0;
+            for (Map.Entry<String, Long> entry : amounts.entrySet()) {
+                message.addAccountId(entry.getKey());
+                reportAmounts[i++] = entry.getValue();
+            }
+            message.setAmounts(reportAmounts);
+            message.setSnapshot(snapshot);
+            bank.getLaiYang().paint(this, message);
+            // the report names its snapshot even if it does not carry the
+            // colour of a newer one
+            message.setEpoch(epoch);
+            connection.send(message);
         }
     }
 
@@ -270,72 +557,46 @@ public class RemoteBank implements Runnable {
      */
     public void resetChandyLamportAlgorithm() throws IOException {
         synchronized (bank) {
-            VectorClock.getInstance().tick(bank.getBankId());
+            bank.getVectorClock().tick(bank.getBankId());
             bank.getmAlgorithm().msgCounter += MAlgorithm.SEND;
             Message message = new Message(
                 Command.CHANDY_LAMPORT_RESET,
                 bank.getBankId(),
-                VectorClock.getInstance());
-            out.write(new Gson().toJson(message));
-            out.newLine();
-            out.flush();
+                bank.getVectorClock().copy());
+            connection.send(message);
         }
     }
 
-    @Override
-    public void run() {
-        String input;
-        try {
-            while ((input = in.readLine()) != null && !Thread.interrupted()) {
-                process(input);
-            }
-        } catch (SocketException e) {
-            // do nothing
-        } catch (IOException | UnknownAccountException e) {
-            e.printStackTrace();
-            System.out.print("> ");
-        } finally {
-            try {
-                for (String accountId : accountIds) {
-                    bank.removeRemoteAccount(accountId);
-                }
-                bank.removeBank(bankId);
-                in.close();
-                out.close();
-                socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.out.print("> ");
-            }
+    /**
+     * Forget the remote bank and its accounts once its connection has closed.
+     */
+    public void disconnected() {
+        for (String accountId : accountIds) {
+            bank.removeRemoteAccount(accountId);
+        }
+        if (bankId != null) {
+            bank.removeBank(bankId);
         }
+        bank.removeConnection(this);
     }
 
     /**
-     * Receive and process messages from other processes.
+     * Process a message received from another process.
      *
-     * @param input JSON string from other processes
+     * @param message decoded message from the other process
      * @throws IOException             if the response message to the sender is
      *                                 unable to be sent
      * @throws UnknownAccountException if a message with an unknown account ID
      *                                 is processed
      */
-    public void process(String input) throws IOException,
+    public void process(Message message) throws IOException,
             UnknownAccountException {
+        if (bank.isStriped() && isLocalUpdate(message)) {
+            processLocalUpdate(message);
+            return;
+        }
         synchronized (bank) {
-            Gson gson = new Gson();
-            Message message = gson.fromJson(input, Message.class);
-            InitiatorInfo info = bank.getmAlgorithm().getInitiatorInfo();
-            bank.getmAlgorithm().msgCounter += MAlgorithm.RECEIVE;
-
-            // check only when there is an initiator
-            if (info != null) {
-                checkTakeSnapshot(message);
-                checkFwdWhiteMessage(message);
-            }
-
-            // update local vector clock
-            VectorClock.getInstance().merge(message.getVectorClock());
-            VectorClock.getInstance().tick(bank.getBankId());
+            receive(message);
 
             if (message.getCommand() == Command.REGISTER) {
                 // config this remoteBank
@@ -351,17 +612,47 @@ public class RemoteBank implements Runnable {
                     bank.registerRemoteAccount(accountId, this);
                 }
 
-                VectorClock.getInstance().tick(bank.getBankId());
+                bank.getVectorClock().tick(bank.getBankId());
                 bank.getmAlgorithm().msgCounter += MAlgorithm.SEND;
                 Message respMessage = new Message(
                     Command.REGISTER_RESPONSE,
                     bank.getBankId(),
-                    VectorClock.getInstance());
+                    bank.getVectorClock().copy());
 
                 respMessage.addAccountIds(bank.getLocalAccountIds());
-                out.write(gson.toJson(respMessage));
-                out.newLine();
-                out.flush();
+                respMessage.addFeature(BATCH_FEATURE);
+                respMessage.addFeature(MAlgorithm.ROUNDS_FEATURE);
+                respMessage.addFeature(MAlgorithm.TREE_FEATURE);
+                respMessage.addFeature(ChandyLamport.LIGHT_MARKER_FEATURE);
+                batchSupported = message.hasFeature(BATCH_FEATURE);
+                roundsSupported =
+                    message.hasFeature(MAlgorithm.ROUNDS_FEATURE);
+                treeSupported = message.hasFeature(MAlgorithm.TREE_FEATURE);
+                lightMarkersSupported =
+                    message.hasFeature(ChandyLamport.LIGHT_MARKER_FEATURE);
+                respMessage.addFeature(LaiYang.FEATURE);
+                laiYangSupported = message.hasFeature(LaiYang.FEATURE);
+                bank.getLaiYang().addBank(bankId);
+                // agree to binary frames if both sides support them
+                boolean binary = offersBinary() &&
+                    message.hasFeature(BinaryCodec.FEATURE);
+                if (binary) {
+                    respMessage.addFeature(BinaryCodec.FEATURE);
+                }
+                boolean deltaClocks = offersDeltaClocks() &&
+                    message.hasFeature(DELTA_CLOCK_FEATURE);
+                if (deltaClocks) {
+                    respMessage.addFeature(DELTA_CLOCK_FEATURE);
+                }
+                boolean deltaSnapshots = offersDeltaSnapshots() &&
+                    message.hasFeature(DELTA_SNAPSHOT_FEATURE);
+                if (deltaSnapshots) {
+                    respMessage.addFeature(DELTA_SNAPSHOT_FEATURE);
+                }
+                connection.send(respMessage);
+                connection.setBinary(binary);
+                connection.setDeltaClocks(deltaClocks);
+                connection.setDeltaSnapshots(deltaSnapshots);
             } else if (message.getCommand() == Command.DEPOSIT) {
                 bank.deposit(
                     message.getAccountIds().get(0),
@@ -370,69 +661,118 @@ public class RemoteBank implements Runnable {
                 bank.withdraw(
                     message.getAccountIds().get(0),
                     message.getAmount());
+            } else if (message.getCommand() == Command.DEPOSIT_BATCH) {
+                // the whole batch counts as one message for the snapshot
+                bank.depositAll(batchAmounts(message));
+            } else if (message.getCommand() == Command.WITHDRAW_BATCH) {
+                bank.withdrawAll(batchAmounts(message));
             } else if (message.getCommand() == Command.REGISTER_RESPONSE) {
                 // config this remoteBank
                 bank.getRemoteBanks().put(message.getSourceId(), this);
                 bank.getmAlgorithm().notifyInitAck();
                 bankId = message.getSourceId();
+                connection.setBinary(
+                    offersBinary() && message.hasFeature(BinaryCodec.FEATURE));
+                connection.setDeltaClocks(
+                    offersDeltaClocks() &&
+                    message.hasFeature(DELTA_CLOCK_FEATURE));
+                connection.setDeltaSnapshots(
+                    offersDeltaSnapshots() &&
+                    message.hasFeature(DELTA_SNAPSHOT_FEATURE));
+                batchSupported = message.hasFeature(BATCH_FEATURE);
+                roundsSupported =
+                    message.hasFeature(MAlgorithm.ROUNDS_FEATURE);
+                treeSupported = message.hasFeature(MAlgorithm.TREE_FEATURE);
+                lightMarkersSupported =
+                    message.hasFeature(ChandyLamport.LIGHT_MARKER_FEATURE);
+                laiYangSupported = message.hasFeature(LaiYang.FEATURE);
+                bank.getLaiYang().addBank(bankId);
                 // process this register_response message
                 for (String accountId : message.getAccountIds()) {
                     accountIds.add(accountId);
                     bank.registerRemoteAccount(accountId, this);
                 }
             } else if (message.getCommand() == Command.GET_BALANCE) {
-                VectorClock.getInstance().tick(bank.getBankId());
+                bank.getVectorClock().tick(bank.getBankId());
                 bank.getmAlgorithm().msgCounter += MAlgorithm.SEND;
                 Message responseMessage = new Message(
                     Command.GET_BALANCE_RESPONSE,
                     bank.getBankId(),
-                    VectorClock.getInstance());
+                    bank.getVectorClock().copy());
 
                 responseMessage.setAmount(
                     bank.getBalance(message.getAccountIds().get(0)));
-                out.write(gson.toJson(responseMessage));
-                out.newLine();
-                out.flush();
+                connection.send(responseMessage);
             } else if (message.getCommand() == Command.GET_BALANCE_RESPONSE) {
                 System.out.println("\n$" + message.getAmount());
                 System.out.print("> ");
             } else if (message.getCommand() == Command.TAKE_SNAPSHOT) {
                 // remember the information of the initiator
-                UUID initiatorId = message.getSourceId();
-                long futureTick = message.getFutureTick();
                 InitiatorInfo newInfo = new InitiatorInfo(
-                    initiatorId,
-                    futureTick);
-                bank.getmAlgorithm().setInitiatorInfo(newInfo);
-
-                VectorClock.getInstance().tick(bank.getBankId());
+                    message.getSourceId(),
+                    message.getEpoch(),
+                    message.getFutureTick());
+                bank.getmAlgorithm().joinRound(
+                    newInfo,
+                    message.getParentId(),
+                    message.getChildCount());
+
+                bank.getVectorClock().tick(bank.getBankId());
                 bank.getmAlgorithm().msgCounter += MAlgorithm.SEND;
                 // return an acknowledgement
                 Message respMessage = new Message(
                     Command.ACKNOWLEDGEMENT,
                     bank.getBankId(),
-                    VectorClock.getInstance());
+                    bank.getVectorClock().copy());
 
-                out.write(gson.toJson(respMessage));
-                out.newLine();
-                out.flush();
+                respMessage.setEpoch(newInfo.getEpoch());
+                connection.send(respMessage);
             } else if (message.getCommand() == Command.ACKNOWLEDGEMENT) {
-                bank.getmAlgorithm()
-                        .receiveAcknowledgement(message.getSourceId());
+                bank.getmAlgorithm().receiveAcknowledgement(
+                    message.getSourceId(),
+                    message.getEpoch());
+            } else if (message.getInitiatorId() != null &&
+                (message.getCommand() == Command.SNAPSHOT ||
+                message.getCommand() == Command.WHITE_MESSAGE)) {
+                // a report on a branch of a snapshot tree
+                bank.getmAlgorithm().receiveReport(message);
             } else if (message.getCommand() == Command.SNAPSHOT) {
-                Snapshot snapshot = message.getSnapshot();
-                int msgCounter = message.getMsgCounter();
-                bank.getmAlgorithm().getGlobalSnapshots().add(snapshot);
                 // update num of snapshots and counter to detect termination
-                bank.getmAlgorithm().updateCounter(msgCounter);
-                bank.getmAlgorithm().updateNumSnapshot();
+                bank.getmAlgorithm().receiveSnapshot(
+                    message.getEpoch(),
+                    message.getSnapshot(),
+                    message.getMsgCounter());
             } else if (message.getCommand() == Command.WHITE_MESSAGE) {
-                Message whiteMessage = message.getWhiteMessage();
-                bank.getmAlgorithm().getWhiteMessages().add(whiteMessage);
                 // update counter to detect termination
-                bank.getmAlgorithm().updateCounter(MAlgorithm.RECEIVE);
+                bank.getmAlgorithm().receiveWhiteMessage(
+                    message.getEpoch(),
+                    message.getWhiteMessage());
+            } else if (message.getCommand() == Command.SNAPSHOT_COMPLETE) {
+                bank.getmAlgorithm().leaveRound(new InitiatorInfo(
+                    message.getSourceId(),
+                    message.getEpoch(),
+                    message.getFutureTick()));
             } else if (message.getCommand() == Command.DUMMY) {
                 // do nothing
+            } else if (message.getCommand() == Command.CHANDY_LAMPORT_MARKER &&
+                message.getInitiatorId() != null) {
+                bank.handleChandyLamportMarker(
+                    message.getSourceId(),
+                    message.getInitiatorId(),
+                    message.getEpoch());
+            } else if (message.getCommand() == Command.CHANDY_LAMPORT_STATE) {
+                bank.receiveChandyLamportState(
+                    message.getSourceId(),
+                    message.getEpoch(),
+                    message.getSnapshot());
+            } else if (message.getCommand() == Command.LAI_YANG_REPORT) {
+                bank.getLaiYang().receiveReport(message.getSourceId(), message);
+            } else if (
+                message.getCommand() == Command.CHANDY_LAMPORT_CHANNEL) {
+                bank.receiveChandyLamportChannel(
+                    message.getSourceId(),
+                    message.getEpoch(),
+                    message);
             } else if (message.getCommand() == Command.CHANDY_LAMPORT_MARKER) {
                 bank.handleChandyLamportMarker(
                     message.getSourceId(),
@@ -449,61 +789,201 @@ public class RemoteBank implements Runnable {
     }
 
     /**
-     * Take snapshot when a white process receives a red message.
+     * Apply an update to local accounts without holding the bank's monitor
+     * for longer than the snapshot and vector clock bookkeeping. Snapshots
+     * are kept out until the update is applied, so the message cannot be
+     * counted as received by a snapshot which misses its effect.
+     *
+     * @param message a deposit or withdrawal on local accounts only
+     * @throws IOException             if unable to send snapshot messages
+     * @throws UnknownAccountException if a message with an unknown account ID
+     *                                 is processed
+     */
+    private void processLocalUpdate(Message message) throws IOException,
+            UnknownAccountException {
+        Lock snapshotLock = bank.getSnapshotLock().readLock();
+        synchronized (bank) {
+            receive(message);
+            snapshotLock.lock();
+        }
+        try {
+            String accountId = message.getAccountIds().get(0);
+            if (message.getCommand() == Command.DEPOSIT) {
+                bank.deposit(accountId, message.getAmount());
+            } else if (message.getCommand() == Command.WITHDRAW) {
+                bank.withdraw(accountId, message.getAmount());
+            } else if (message.getCommand() == Command.DEPOSIT_BATCH) {
+                bank.depositAll(batchAmounts(message));
+            } else {
+                bank.withdrawAll(batchAmounts(message));
+            }
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Check whether a message only updates accounts owned by this bank.
+     *
+     * @param message incoming message from other process
+     * @return true if the message is a deposit or withdrawal on local accounts
+     */
+    private boolean isLocalUpdate(Message message) {
+        Command command = message.getCommand();
+        boolean update = command == Command.DEPOSIT ||
+            command == Command.WITHDRAW ||
+            command == Command.DEPOSIT_BATCH ||
+            command == Command.WITHDRAW_BATCH;
+        return update && !message.getAccountIds().isEmpty() &&
+            bank.isLocal(message.getAccountIds());
+    }
+
+    /**
+     * Count a received message, check its colour against every snapshot in
+     * progress and merge its vector clock. Must hold the bank's monitor.
      *
      * @param message incoming message from other process
-     * @throws IOException if unable to send snapshot to the initiator
-     */
-    private void checkTakeSnapshot(Message message) throws IOException {
-        VectorClock clockInMessage = message.getVectorClock();
-        UUID initiatorId = bank.getmAlgorithm().getInitiatorInfo()
-                .getInitiatorId();
-
-        boolean whiteProcess = VectorClock.getInstance()
-                .findTick(initiatorId) < bank.getmAlgorithm().getInitiatorInfo()
-                        .getFutureTick();
-        boolean redMessage = clockInMessage.findTick(initiatorId) >= bank
-                .getmAlgorithm().getInitiatorInfo().getFutureTick();
-
-        if (whiteProcess && redMessage) {
-            Snapshot snapshot = bank.takeSnapshot();
-            // update local vector clock before send snapshot
-            VectorClock.getInstance().merge(message.getVectorClock());
-            VectorClock.getInstance().tick(bank.getBankId());
-            bank.sendSnapshotToInitiator(snapshot);
+     * @throws IOException if unable to send snapshot messages
+     */
+    private void receive(Message message) throws IOException {
+        // a snapshot taken now records the state from before this message
+        int counterAtCut = bank.getmAlgorithm().msgCounter;
+        bank.getmAlgorithm().msgCounter += MAlgorithm.RECEIVE;
+
+        // colour the message for every round before the clock moves on
+        List<InitiatorInfo> turnedRed = new ArrayList<>(0);
+        List<InitiatorInfo> inTransit = new ArrayList<>(0);
+        for (InitiatorInfo info : bank.getmAlgorithm().getActiveRounds()) {
+            if (checkTakeSnapshot(message, info)) {
+                turnedRed.add(info);
+            } else if (checkFwdWhiteMessage(message, info)) {
+                inTransit.add(info);
+            }
         }
+        // one snapshot serves every round the message turns this bank red for
+        Snapshot snapshot = turnedRed.isEmpty() ? null : bank.takeSnapshot();
+
+        // update local vector clock
+        bank.getVectorClock().merge(message.getVectorClock());
+        bank.getVectorClock().tick(bank.getBankId());
+
+        for (InitiatorInfo info : turnedRed) {
+            bank.getmAlgorithm().collectSnapshot(info, snapshot, counterAtCut);
+        }
+        for (InitiatorInfo info : inTransit) {
+            bank.getmAlgorithm().collectWhiteMessage(info, message);
+        }
+        bank.recordChandyLamportMessage(message);
+        bank.getLaiYang().receive(message);
     }
 
     /**
-     * Forward message to initiator when process is red and message is white.
+     * Check whether a white process has received a red message, in which
+     * case it takes a snapshot for the round.
+     *
+     * @param message incoming message from other process
+     * @param info    the round to check against
+     * @return true if a snapshot must be sent to the initiator
+     */
+    private boolean checkTakeSnapshot(Message message, InitiatorInfo info) {
+        UUID initiatorId = info.getInitiatorId();
+        boolean whiteProcess = bank.getVectorClock()
+                .findTick(initiatorId) < info.getFutureTick();
+        boolean redMessage = message.getVectorClock()
+                .findTick(initiatorId) >= info.getFutureTick();
+        return whiteProcess && redMessage &&
+            !bank.getBankId().equals(initiatorId);
+    }
+
+    /**
+     * Check whether a red process has received a white message, in which
+     * case the message was in transit for the round.
      *
      * @param message incoming message from other processes
-     * @throws IOException if unable to send white message to initiator
-     */
-    private void checkFwdWhiteMessage(Message message) throws IOException {
-        VectorClock clockInMessage = message.getVectorClock();
-        UUID initiatorId = bank.getmAlgorithm().getInitiatorInfo()
-                .getInitiatorId();
-
-        boolean redProcess = VectorClock.getInstance()
-                .findTick(initiatorId) >= bank.getmAlgorithm()
-                        .getInitiatorInfo().getFutureTick();
-        boolean whiteMessage = clockInMessage.findTick(initiatorId) < bank
-                .getmAlgorithm().getInitiatorInfo().getFutureTick();
-
-        if (redProcess && whiteMessage) {
-            // update local vector clock
-            VectorClock.getInstance().merge(message.getVectorClock());
-            VectorClock.getInstance().tick(bank.getBankId());
-
-            if (bank.getBankId() != initiatorId) {
-                bank.sendWhiteMessageToInitiator(message);
-            } else {
-                // this is the initiator, add white message to message history
-                bank.getmAlgorithm().getWhiteMessages().add(message);
-                bank.getmAlgorithm().updateCounter(MAlgorithm.RECEIVE);
-            }
+     * @param info    the round to check against
+     * @return true if the message must be forwarded to the initiator
+     */
+    private boolean checkFwdWhiteMessage(Message message, InitiatorInfo info) {
+        UUID initiatorId = info.getInitiatorId();
+        boolean redProcess = bank.getVectorClock()
+                .findTick(initiatorId) >= info.getFutureTick();
+        boolean whiteMessage = message.getVectorClock()
+                .findTick(initiatorId) < info.getFutureTick();
+        return redProcess && whiteMessage;
+    }
+
+    /**
+     * Pair the account IDs of a batch with their amounts.
+     *
+     * @param message a DEPOSIT_BATCH or WITHDRAW_BATCH message
+     * @return amounts indexed by account ID
+     */
+    private static Map<String, Long> batchAmounts(Message message) {
+        Map<String, Long> amounts = new LinkedHashMap<>();
+        long[] batchAmounts = message.getAmounts();
+        for (int i = 0; i < batchAmounts.length; i++) {
+            amounts.merge(
+                message.getAccountIds().get(i),
+                batchAmounts[i],
+                Long::sum);
         }
+        return amounts;
+    }
+
+    /**
+     * Check whether this bank is willing to exchange binary frames.
+     *
+     * @return true if binary frames should be offered to the remote bank
+     */
+    private boolean offersBinary() {
+        return bank.getConfig().getWireFormat() == WireFormat.BINARY;
+    }
+
+    /**
+     * Check whether the local bank wants to send delta vector clocks.
+     *
+     * @return true if delta clocks are preferred
+     */
+    private boolean offersDeltaClocks() {
+        return bank.getConfig().getClockEncoding() == ClockEncoding.DELTA;
+    }
+
+    /**
+     * Check whether the local bank wants to send delta snapshots.
+     *
+     * @return true if delta snapshots are preferred
+     */
+    private boolean offersDeltaSnapshots() {
+        return bank.getConfig().getSnapshotEncoding() ==
+            SnapshotEncoding.DELTA;
+    }
+
+    /**
+     * Check whether the remote bank can take part in a snapshot tree.
+     *
+     * @return true if the remote bank advertised tree support
+     */
+    public boolean supportsTrees() {
+        return treeSupported;
+    }
+
+    /**
+     * Check whether the remote bank accepts Chandy-Lamport markers that
+     * carry no state.
+     *
+     * @return true if the remote bank advertised lightweight markers
+     */
+    public boolean supportsLightMarkers() {
+        return lightMarkersSupported;
+    }
+
+    /**
+     * Check whether the remote bank takes part in Lai-Yang snapshots.
+     *
+     * @return true if the remote bank advertised Lai-Yang snapshots
+     */
+    public boolean supportsLaiYang() {
+        return laiYangSupported;
     }
 
     /**
@@ -1,12 +1,36 @@
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.UUID;
 
 /**
  * Snapshot of a bank.
+ *
+ * <p>
+ * Balances are held in primitive arrays indexed alongside the account IDs,
+ * {@link Account} objects are only created when asked for. A snapshot of the
+ * local bank starts out as a pinned {@link AccountStore.Version}, and is read
+ * into the arrays on first use or by {@link #materialize()}.
+ *
+ * <p>
+ * A snapshot of the local bank remembers the store and epoch it was pinned
+ * at, so {@link #diff(Snapshot)} can pick out the accounts written since an
+ * earlier snapshot from the write epochs the store already keeps, without
+ * comparing balances. The result is a delta holding only those accounts and
+ * their positions, which {@link #apply(Snapshot)} lays over the earlier
+ * snapshot to give the whole snapshot back. Positions are indices in the
+ * store, which never change once an account is opened.
  */
 public class Snapshot {
     private final UUID bankId;
-    private final Collection<Account> accounts;
+    private String[] accountIds;
+    private long[] balances;
+    private volatile AccountStore.Version version;
+    private AccountStore store;
+    private long epoch;
+    private boolean base;
+    private int[] positions;
+    private int fullSize;
 
     /**
      * Create a snapshot for a bank.
@@ -16,7 +40,257 @@ public class Snapshot {
      */
     public Snapshot(UUID bankId, Collection<Account> accounts) {
         this.bankId = bankId;
-        this.accounts = accounts;
+        this.accountIds = new String[accounts.size()];
+        this.balances = new long[accounts.size()];
+        int i = 0;
+        for (Account account : accounts) {
+            accountIds[i] = account.getAccountId();
+            balances[i++] = account.getBalance();
+        }
+    }
+
+    /**
+     * Create a snapshot for a bank from parallel arrays, which are not
+     * copied.
+     *
+     * @param bankId     ID of the bank the snapshot is for
+     * @param accountIds IDs of the accounts that the bank contains
+     * @param balances   balance of each account
+     */
+    public Snapshot(UUID bankId, String[] accountIds, long[] balances) {
+        if (accountIds.length != balances.length) {
+            throw new IllegalArgumentException(
+                "Every account needs exactly one balance");
+        }
+        this.bankId = bankId;
+        this.accountIds = accountIds;
+        this.balances = balances;
+    }
+
+    /**
+     * Create a snapshot for a bank from a pinned version of its accounts.
+     * The version is released once it has been read.
+     *
+     * @param bankId  ID of the bank the snapshot is for
+     * @param version the pinned balances of the bank
+     */
+    public Snapshot(UUID bankId, AccountStore.Version version) {
+        this.bankId = bankId;
+        this.version = version;
+        this.store = version.getStore();
+        this.epoch = version.getEpoch();
+    }
+
+    /**
+     * Create a delta holding the accounts of a snapshot that changed since
+     * an earlier one, from parallel arrays which are not copied.
+     *
+     * @param bankId     ID of the bank the snapshot is for
+     * @param positions  position of each changed account in the snapshot
+     * @param accountIds IDs of the changed accounts
+     * @param balances   balance of each changed account
+     * @param fullSize   number of accounts in the whole snapshot
+     * @return the delta
+     */
+    public static Snapshot delta(
+            UUID bankId,
+            int[] positions,
+            String[] accountIds,
+            long[] balances,
+            int fullSize) {
+        if (positions.length != accountIds.length) {
+            throw new IllegalArgumentException(
+                "Every account needs exactly one position");
+        }
+        Snapshot delta = new Snapshot(bankId, accountIds, balances);
+        delta.positions = positions;
+        delta.fullSize = fullSize;
+        delta.base = true;
+        return delta;
+    }
+
+    /**
+     * Find the accounts that changed since an earlier snapshot of the same
+     * local bank. Both snapshots may be used as the base of later deltas
+     * once sent.
+     *
+     * @param previous earlier snapshot sent to the same bank, or null if
+     *                 there is none
+     * @return a delta against the earlier snapshot, or a copy of the whole
+     *         snapshot marked as a base if there is no usable earlier one
+     */
+    public Snapshot diff(Snapshot previous) {
+        materialize();
+        if (previous == null || store == null || previous.store != store) {
+            Snapshot whole = new Snapshot(bankId, accountIds, balances);
+            whole.base = true;
+            return whole;
+        }
+        // writes after either epoch are a superset of writes between them
+        long since = Math.min(epoch, previous.epoch);
+        int previousSize = previous.size();
+        int count = 0;
+        int[] changed = new int[accountIds.length];
+        for (int i = 0; i < accountIds.length; i++) {
+            if (i >= previousSize || store.changedSince(i, since)) {
+                changed[count++] = i;
+            }
+        }
+        String[] ids = new String[count];
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = accountIds[changed[i]];
+            values[i] = balances[changed[i]];
+        }
+        return delta(
+            bankId,
+            Arrays.copyOf(changed, count),
+            ids,
+            values,
+            accountIds.length);
+    }
+
+    /**
+     * Rebuild a whole snapshot by laying a delta over this snapshot.
+     *
+     * @param delta delta taken against this snapshot
+     * @return the whole snapshot, which may be used as the base of later
+     *         deltas
+     */
+    public Snapshot apply(Snapshot delta) {
+        materialize();
+        String[] ids = Arrays.copyOf(accountIds, delta.fullSize);
+        long[] values = Arrays.copyOf(balances, delta.fullSize);
+        for (int i = 0; i < delta.positions.length; i++) {
+            ids[delta.positions[i]] = delta.accountIds[i];
+            values[delta.positions[i]] = delta.balances[i];
+        }
+        Snapshot whole = new Snapshot(delta.bankId, ids, values);
+        whole.base = true;
+        return whole;
+    }
+
+    /**
+     * Check whether the snapshot was pinned from the local account store,
+     * and so can be sent as a delta.
+     *
+     * @return true if the snapshot is of the local bank
+     */
+    public boolean isLocal() {
+        return store != null;
+    }
+
+    /**
+     * Check whether the receiver of the snapshot keeps it as the base of
+     * later deltas.
+     *
+     * @return true if the snapshot is a base
+     */
+    public boolean isBase() {
+        return base;
+    }
+
+    /**
+     * Mark a received snapshot as the base of later deltas.
+     */
+    public void markBase() {
+        base = true;
+    }
+
+    /**
+     * Prepare a received snapshot to be passed on to another bank. The base
+     * mark is dropped, as the bank it is passed to takes later deltas on the
+     * connection against snapshots of the sender, not of this one.
+     *
+     * @return an unmarked copy if the snapshot is a base, else the snapshot
+     */
+    public Snapshot passOn() {
+        if (!base) {
+            return this;
+        }
+        return new Snapshot(bankId, accountIds, balances);
+    }
+
+    /**
+     * Check whether the snapshot only holds the accounts that changed since
+     * an earlier snapshot.
+     *
+     * @return true if the snapshot is a delta
+     */
+    public boolean isDelta() {
+        return positions != null;
+    }
+
+    /**
+     * Retrieve the position in the whole snapshot of an account in a delta.
+     *
+     * @param index position of the account in the delta
+     * @return position of the account in the whole snapshot
+     */
+    public int getPosition(int index) {
+        return positions[index];
+    }
+
+    /**
+     * Retrieve the number of accounts in the whole snapshot a delta was
+     * taken from.
+     *
+     * @return the number of accounts
+     */
+    public int getFullSize() {
+        return fullSize;
+    }
+
+    /**
+     * Combine the snapshots of several banks into one, for a bank passing
+     * the snapshots of its branch up a {@link SnapshotTree}.
+     *
+     * @param bankId    ID of the bank doing the merging
+     * @param snapshots the snapshots to combine
+     * @return a snapshot holding every account of the given snapshots
+     */
+    public static Snapshot merge(UUID bankId, Collection<Snapshot> snapshots) {
+        int size = 0;
+        for (Snapshot snapshot : snapshots) {
+            size += snapshot.size();
+        }
+        String[] ids = new String[size];
+        long[] values = new long[size];
+        int offset = 0;
+        for (Snapshot snapshot : snapshots) {
+            System.arraycopy(snapshot.accountIds, 0, ids, offset,
+                snapshot.accountIds.length);
+            System.arraycopy(snapshot.balances, 0, values, offset,
+                snapshot.balances.length);
+            offset += snapshot.accountIds.length;
+        }
+        return new Snapshot(bankId, ids, values);
+    }
+
+    /**
+     * Read the pinned balances into the snapshot and release the version, if
+     * that has not happened yet.
+     */
+    public void materialize() {
+        if (version == null) {
+            return;
+        }
+        synchronized (this) {
+            AccountStore.Version pinned = version;
+            if (pinned == null) {
+                return;
+            }
+            String[] ids = new String[pinned.size()];
+            long[] values = new long[pinned.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = pinned.getAccountId(i);
+                values[i] = pinned.getBalance(i);
+            }
+            accountIds = ids;
+            balances = values;
+            pinned.release();
+            version = null;
+        }
     }
 
     /**
@@ -28,21 +302,60 @@ public class Snapshot {
         return bankId;
     }
 
+    /**
+     * Retrieve the number of accounts in the snapshot.
+     *
+     * @return the number of accounts
+     */
+    public int size() {
+        materialize();
+        return accountIds.length;
+    }
+
+    /**
+     * Retrieve the ID of an account in the snapshot.
+     *
+     * @param index position of the account in the snapshot
+     * @return the ID of the account
+     */
+    public String getAccountId(int index) {
+        materialize();
+        return accountIds[index];
+    }
+
+    /**
+     * Retrieve the balance of an account as it was when the snapshot was
+     * created.
+     *
+     * @param index position of the account in the snapshot
+     * @return the balance of the account
+     */
+    public long getBalance(int index) {
+        materialize();
+        return balances[index];
+    }
+
     /**
      * Retrieve the accounts as they were when the snapshot was created.
      *
      * @return accounts as they were when the snapshot was created
      */
     public Collection<Account> getAccounts() {
+        materialize();
+        ArrayList<Account> accounts = new ArrayList<>(accountIds.length);
+        for (int i = 0; i < accountIds.length; i++) {
+            accounts.add(new Account(accountIds[i], balances[i]));
+        }
         return accounts;
     }
 
     @Override
     public int hashCode() {
+        materialize();
         final int prime = 31;
         int result = 1;
-        result = prime * result +
-            ((accounts == null) ? 0 : accounts.hashCode());
+        result = prime * result + Arrays.hashCode(accountIds);
+        result = prime * result + Arrays.hashCode(balances);
         result = prime * result + ((bankId == null) ? 0 : bankId.hashCode());
         return result;
     }
@@ -59,11 +372,12 @@ public class Snapshot {
             return false;
         }
         Snapshot other = (Snapshot) obj;
-        if (accounts == null) {
-            if (other.accounts != null) {
-                return false;
-            }
-        } else if (!accounts.equals(other.accounts)) {
+        materialize();
+        other.materialize();
+        if (!Arrays.equals(accountIds, other.accountIds)) {
+            return false;
+        }
+        if (!Arrays.equals(balances, other.balances)) {
             return false;
         }
         if (bankId == null) {
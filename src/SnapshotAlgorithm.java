@@ -0,0 +1,20 @@
+/**
+ * Algorithms a bank can take scheduled snapshots with.
+ */
+public enum SnapshotAlgorithm {
+    /**
+     * Mattern's algorithm, collected as configured by
+     * {@link CollectionMode}.
+     */
+    MATTERN,
+
+    /**
+     * Chandy-Lamport with lightweight markers, collecting channel states.
+     */
+    CHANDY_LAMPORT,
+
+    /**
+     * Lai-Yang, carried on account updates.
+     */
+    LAI_YANG
+}
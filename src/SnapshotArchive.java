@@ -0,0 +1,1085 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Completed global snapshots kept on disk, numbered in the order they were
+ * archived, for historical queries.
+ *
+ * <p>
+ * Each snapshot holds two columns of accounts, balances and amounts in
+ * transit, sorted by account ID and cut into blocks of
+ * {@link #BLOCK_SIZE} accounts. A block stores its account IDs, each as
+ * the length of the prefix it shares with the one before and the rest,
+ * followed by its values, each as the zig-zag varint difference from the
+ * one before, and is then deflated. A directory after the blocks gives the
+ * first account ID and location of every block, so looking up an account
+ * reads the directory and inflates a single block, and comparing two
+ * snapshots walks both a block at a time.
+ *
+ * <p>
+ * Appending reads the snapshot of each bank once, sorts it through an
+ * index and writes it to a temporary file as a sorted run, then merges the
+ * runs into blocks. Only one bank's snapshot and one block are held in
+ * memory at a time, so a snapshot whose parts were spilled to disk is never
+ * read back into memory whole.
+ *
+ * <p>
+ * Snapshots are appended to a data file, and then a fixed size entry is
+ * appended to an index file holding when and by whom the snapshot was
+ * taken, its totals and where its directory is. The data is forced before
+ * the entry is written, so a snapshot is only ever found complete. Data
+ * written after the last entry by an append cut short is dropped when the
+ * archive is opened.
+ */
+public class SnapshotArchive implements Closeable {
+    public static final int BLOCK_SIZE = 4096;
+
+    private static final String DATA = "snapshots.dat";
+    private static final String INDEX = "snapshots.idx";
+    private static final int ENTRY_SIZE = 8 * 9 + 4 * 2;
+
+    private final FileChannel data;
+    private final FileChannel index;
+    // guarded by this
+    private long count;
+    private long lastTime;
+
+    /**
+     * Visits the accounts whose balance differs between two snapshots.
+     */
+    public interface DiffVisitor {
+        /**
+         * Visit an account.
+         *
+         * @param accountId ID of the account
+         * @param before    balance in the earlier snapshot, or null if the
+         *                  account was not in it
+         * @param after     balance in the later snapshot, or null if the
+         *                  account was not in it
+         */
+        void visit(String accountId, Long before, Long after);
+    }
+
+    /**
+     * Open the archive kept in a directory, creating it if it is empty.
+     *
+     * @param directory directory holding the archive
+     * @throws IOException if unable to open the archive
+     */
+    public SnapshotArchive(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create archive directory " +
+                directory);
+        }
+        data = FileChannel.open(
+            new File(directory, DATA).toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        index = FileChannel.open(
+            new File(directory, INDEX).toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        count = index.size() / ENTRY_SIZE;
+        index.truncate(count * ENTRY_SIZE);
+        if (count > 0) {
+            Entry last = getEntry(count - 1);
+            data.truncate(last.directoryOffset + last.directoryLength);
+            lastTime = last.timeMillis;
+        } else {
+            data.truncate(0);
+        }
+    }
+
+    /**
+     * Append a completed global snapshot.
+     *
+     * @param snapshot   the snapshot
+     * @param timeMillis when the snapshot completed
+     * @return the number of the snapshot in the archive
+     * @throws IOException if unable to write the snapshot
+     */
+    public synchronized long append(GlobalSnapshot snapshot, long timeMillis)
+            throws IOException {
+        Map<String, Long> inTransit = new TreeMap<>(
+            snapshot.getAmountsInTransit());
+        for (Message message : snapshot.getWhiteMessages()) {
+            for (Map.Entry<String, Long> amount :
+                    MAlgorithm.amountsOf(message).entrySet()) {
+                inTransit.merge(amount.getKey(), amount.getValue(), Long::sum);
+            }
+        }
+
+        List<Run> runs = new ArrayList<>();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            // sort each part on its own into a run on disk as it is read,
+            // so only one part is in memory at a time
+            long size = 0;
+            long totalBalance = 0;
+            for (Snapshot bankState : snapshot.getSnapshots()) {
+                runs.add(new Run(bankState));
+                size += bankState.size();
+                for (int i = 0; i < bankState.size(); i++) {
+                    totalBalance += bankState.getBalance(i);
+                }
+            }
+
+            ByteArrayOutputStream directory = new ByteArrayOutputStream();
+            ColumnWriter accounts = new ColumnWriter(
+                size,
+                data.size(),
+                directory,
+                deflater);
+            merge(runs, accounts);
+            ColumnWriter transit = new ColumnWriter(
+                inTransit.size(),
+                accounts.finish(),
+                directory,
+                deflater);
+            long totalInTransit = 0;
+            for (Map.Entry<String, Long> amount : inTransit.entrySet()) {
+                transit.add(amount.getKey(), amount.getValue());
+                totalInTransit += amount.getValue();
+            }
+            long position = transit.finish();
+            byte[] directoryBytes = directory.toByteArray();
+            writeFully(ByteBuffer.wrap(directoryBytes), position);
+            data.force(false);
+
+            return writeEntry(
+                snapshot,
+                timeMillis,
+                size,
+                totalBalance,
+                totalInTransit,
+                position,
+                directoryBytes,
+                inTransit.size());
+        } finally {
+            deflater.end();
+            for (Run run : runs) {
+                run.close();
+            }
+        }
+    }
+
+    /**
+     * Append the index entry of a snapshot whose data has been forced.
+     *
+     * @param snapshot        the snapshot
+     * @param timeMillis      when the snapshot completed
+     * @param size            number of accounts in the snapshot
+     * @param totalBalance    sum of the balances
+     * @param totalInTransit  sum of the amounts in transit
+     * @param position        where the directory of the snapshot starts
+     * @param directoryBytes  the directory of the snapshot
+     * @param transitAccounts number of accounts with money in transit
+     * @return the number of the snapshot in the archive
+     * @throws IOException if unable to write the entry
+     */
+    private long writeEntry(
+            GlobalSnapshot snapshot,
+            long timeMillis,
+            long size,
+            long totalBalance,
+            long totalInTransit,
+            long position,
+            byte[] directoryBytes,
+            long transitAccounts) throws IOException {
+        long time = Math.max(timeMillis, lastTime);
+        CRC32 crc = new CRC32();
+        crc.update(directoryBytes);
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+        entry.putLong(time);
+        entry.putLong(snapshot.getInitiatorId().getMostSignificantBits());
+        entry.putLong(snapshot.getInitiatorId().getLeastSignificantBits());
+        entry.putLong(snapshot.getEpoch());
+        entry.putLong(size);
+        entry.putLong(totalBalance);
+        entry.putLong(totalInTransit);
+        entry.putLong(position);
+        entry.putInt(directoryBytes.length);
+        entry.putInt((int) crc.getValue());
+        entry.putLong(transitAccounts);
+        entry.flip();
+        while (entry.hasRemaining()) {
+            index.write(entry, count * ENTRY_SIZE + entry.position());
+        }
+        index.force(false);
+        lastTime = time;
+        return count++;
+    }
+
+    /**
+     * Retrieve the number of snapshots archived.
+     *
+     * @return the number of snapshots
+     */
+    public synchronized long size() {
+        return count;
+    }
+
+    /**
+     * Retrieve when and by whom a snapshot was taken, and its totals.
+     *
+     * @param number the number of the snapshot
+     * @return the entry of the snapshot
+     * @throws IOException if unable to read the index
+     */
+    public Entry getEntry(long number) throws IOException {
+        if (number < 0 || number >= size()) {
+            throw new IllegalArgumentException(
+                "No archived snapshot " + number);
+        }
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+        while (entry.hasRemaining()) {
+            if (index.read(entry, number * ENTRY_SIZE + entry.position()) <
+                0) {
+                throw new IOException("Index ends early");
+            }
+        }
+        entry.flip();
+        return new Entry(
+            number,
+            entry.getLong(),
+            new UUID(entry.getLong(), entry.getLong()),
+            entry.getLong(),
+            entry.getLong(),
+            entry.getLong(),
+            entry.getLong(),
+            entry.getLong(),
+            entry.getInt(),
+            entry.getInt(),
+            entry.getLong());
+    }
+
+    /**
+     * Find the latest snapshot taken at or before a time.
+     *
+     * @param timeMillis the time
+     * @return the number of the snapshot, or -1 if every snapshot was taken
+     *         later
+     * @throws IOException if unable to read the index
+     */
+    public long findByTime(long timeMillis) throws IOException {
+        long low = 0;
+        long high = size() - 1;
+        long found = -1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            if (getEntry(middle).timeMillis <= timeMillis) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Find the latest archived snapshot with an ID.
+     *
+     * @param id the initiator and epoch of the snapshot
+     * @return the number of the snapshot, or -1 if none was archived
+     * @throws IOException if unable to read the index
+     */
+    public long find(SnapshotId id) throws IOException {
+        for (long number = size() - 1; number >= 0; number--) {
+            Entry entry = getEntry(number);
+            if (entry.epoch == id.getEpoch() &&
+                entry.initiatorId.equals(id.getInitiatorId())) {
+                return number;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Look up the balance of an account in a snapshot, reading only the
+     * block holding it.
+     *
+     * @param number    the number of the snapshot
+     * @param accountId ID of the account
+     * @return the balance, or null if the account was not in the snapshot
+     * @throws IOException if unable to read the archive
+     */
+    public Long getBalance(long number, String accountId)
+            throws IOException {
+        return lookUp(readDirectory(getEntry(number)).get(0), accountId);
+    }
+
+    /**
+     * Look up the net amount in transit to an account in a snapshot,
+     * reading only the block holding it.
+     *
+     * @param number    the number of the snapshot
+     * @param accountId ID of the account
+     * @return the amount in transit, 0 if none was
+     * @throws IOException if unable to read the archive
+     */
+    public long getInTransit(long number, String accountId)
+            throws IOException {
+        Long amount = lookUp(
+            readDirectory(getEntry(number)).get(1),
+            accountId);
+        return amount != null ? amount : 0;
+    }
+
+    /**
+     * Compare the balances of two snapshots, holding a single block of each
+     * in memory at a time.
+     *
+     * @param from    the number of the earlier snapshot
+     * @param to      the number of the later snapshot
+     * @param visitor visits every account whose balance differs
+     * @throws IOException if unable to read the archive
+     */
+    public void diff(long from, long to, DiffVisitor visitor)
+            throws IOException {
+        Cursor before = new Cursor(readDirectory(getEntry(from)).get(0));
+        Cursor after = new Cursor(readDirectory(getEntry(to)).get(0));
+        while (before.hasCurrent() || after.hasCurrent()) {
+            int order = !before.hasCurrent() ? 1 :
+                !after.hasCurrent() ? -1 :
+                before.id().compareTo(after.id());
+            if (order < 0) {
+                visitor.visit(before.id(), before.value(), null);
+                before.advance();
+            } else if (order > 0) {
+                visitor.visit(after.id(), null, after.value());
+                after.advance();
+            } else {
+                if (before.value() != after.value()) {
+                    visitor.visit(before.id(), before.value(), after.value());
+                }
+                before.advance();
+                after.advance();
+            }
+        }
+    }
+
+    /**
+     * Print when and by whom every archived snapshot was taken, and its
+     * totals.
+     *
+     * @throws IOException if unable to read the index
+     */
+    public void printIndex() throws IOException {
+        long size = size();
+        if (size == 0) {
+            System.out.println("No snapshots have been archived");
+        }
+        for (long number = 0; number < size; number++) {
+            Entry entry = getEntry(number);
+            System.out.println(String.format(
+                "#%d %s by %s epoch %d: %d accounts, $%d, $%d in transit",
+                number,
+                Instant.ofEpochMilli(entry.timeMillis),
+                entry.initiatorId,
+                entry.epoch,
+                entry.accounts,
+                entry.totalBalance,
+                entry.totalInTransit));
+        }
+    }
+
+    /**
+     * Print the balance of an account in every archived snapshot, or in a
+     * single one.
+     *
+     * @param accountId ID of the account
+     * @param number    the number of the snapshot, or -1 for every snapshot
+     * @throws IOException if unable to read the archive
+     */
+    public void printHistory(String accountId, long number)
+            throws IOException {
+        long first = number >= 0 ? number : 0;
+        long last = number >= 0 ? number : size() - 1;
+        for (long n = first; n <= last; n++) {
+            Long balance = getBalance(n, accountId);
+            if (balance == null) {
+                System.out.println(String.format(
+                    "#%d %s: not opened",
+                    n,
+                    accountId));
+                continue;
+            }
+            System.out.println(String.format(
+                "#%d %s: $%d, $%d in transit",
+                n,
+                accountId,
+                balance,
+                getInTransit(n, accountId)));
+        }
+    }
+
+    /**
+     * Print every account whose balance differs between two snapshots.
+     *
+     * @param from the number of the earlier snapshot
+     * @param to   the number of the later snapshot
+     * @throws IOException if unable to read the archive
+     */
+    public void printDiff(long from, long to) throws IOException {
+        diff(from, to, (accountId, before, after) ->
+            System.out.println(String.format(
+                "%s: %s -> %s",
+                accountId,
+                before != null ? "$" + before : "none",
+                after != null ? "$" + after : "none")));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        data.close();
+        index.close();
+    }
+
+    /**
+     * Merge the sorted runs of the parts of a snapshot into a column, an
+     * account at a time.
+     *
+     * @param runs   the runs, each sorted by ID
+     * @param column the column to add the accounts to
+     * @throws IOException if unable to read a run or write a block
+     */
+    private static void merge(List<Run> runs, ColumnWriter column)
+            throws IOException {
+        PriorityQueue<Run> queue = new PriorityQueue<>(
+            Math.max(1, runs.size()),
+            Comparator.comparing(run -> run.accountId));
+        for (Run run : runs) {
+            if (run.next()) {
+                queue.add(run);
+            }
+        }
+        while (!queue.isEmpty()) {
+            Run run = queue.poll();
+            column.add(run.accountId, run.balance);
+            if (run.next()) {
+                queue.add(run);
+            }
+        }
+    }
+
+    /**
+     * Write a buffer to the data file at a position.
+     *
+     * @param buffer   the bytes to write
+     * @param position where to write them
+     * @throws IOException if unable to write
+     */
+    private void writeFully(ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            data.write(buffer, position + buffer.position());
+        }
+    }
+
+    /**
+     * Read a range of the data file.
+     *
+     * @param position where the range starts
+     * @param length   length of the range
+     * @return the bytes read
+     * @throws IOException if the data file ends early
+     */
+    private byte[] read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (data.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Archive ends early");
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Read and check the directory of a snapshot.
+     *
+     * @param entry the entry of the snapshot
+     * @return the blocks of the balance column and of the amounts in
+     *         transit column
+     * @throws IOException if unable to read the directory, or it is damaged
+     */
+    private List<List<Block>> readDirectory(Entry entry) throws IOException {
+        byte[] bytes = read(entry.directoryOffset, entry.directoryLength);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if ((int) crc.getValue() != entry.directoryChecksum) {
+            throw new IOException(
+                "Directory of snapshot " + entry.number + " is damaged");
+        }
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        List<List<Block>> columns = new ArrayList<>();
+        for (int column = 0; column < 2; column++) {
+            int blocks = (int) readVarint(in);
+            List<Block> list = new ArrayList<>(blocks);
+            for (int i = 0; i < blocks; i++) {
+                byte[] first = new byte[(int) readVarint(in)];
+                in.get(first);
+                list.add(new Block(
+                    new String(first, StandardCharsets.UTF_8),
+                    readVarint(in),
+                    (int) readVarint(in),
+                    (int) readVarint(in)));
+            }
+            columns.add(list);
+        }
+        return columns;
+    }
+
+    /**
+     * Find the value of an account in a column, inflating only the block
+     * that would hold it.
+     *
+     * @param blocks    the blocks of the column
+     * @param accountId ID of the account
+     * @return the value, or null if the account is not in the column
+     * @throws IOException if unable to read the block
+     */
+    private Long lookUp(List<Block> blocks, String accountId)
+            throws IOException {
+        int low = 0;
+        int high = blocks.size() - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (blocks.get(middle).firstId.compareTo(accountId) <= 0) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (found < 0) {
+            return null;
+        }
+        Column column = readBlock(blocks.get(found));
+        int position = Arrays.binarySearch(column.ids, accountId);
+        return position >= 0 ? column.values[position] : null;
+    }
+
+    /**
+     * Inflate and decode a block.
+     *
+     * @param block the block
+     * @return the accounts of the block
+     * @throws IOException if unable to read the block, or it is damaged
+     */
+    private Column readBlock(Block block) throws IOException {
+        byte[] raw = new byte[block.rawLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(read(block.offset, block.length));
+            if (inflater.inflate(raw) != raw.length) {
+                throw new IOException("Archive block is damaged");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Archive block is damaged", e);
+        } finally {
+            inflater.end();
+        }
+        ByteBuffer in = ByteBuffer.wrap(raw);
+        int size = (int) readVarint(in);
+        String[] ids = new String[size];
+        byte[] previous = new byte[0];
+        for (int i = 0; i < size; i++) {
+            int shared = (int) readVarint(in);
+            byte[] id = new byte[shared + (int) readVarint(in)];
+            System.arraycopy(previous, 0, id, 0, shared);
+            in.get(id, shared, id.length - shared);
+            ids[i] = new String(id, StandardCharsets.UTF_8);
+            previous = id;
+        }
+        long[] values = new long[size];
+        long last = 0;
+        for (int i = 0; i < size; i++) {
+            long zigzag = readVarint(in);
+            last += (zigzag >>> 1) ^ -(zigzag & 1);
+            values[i] = last;
+        }
+        return new Column(ids, values);
+    }
+
+    /**
+     * Write an unsigned varint.
+     *
+     * @param out   where to write it
+     * @param value the value
+     */
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Read an unsigned varint.
+     *
+     * @param in where to read it from
+     * @return the value
+     */
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Writes a column of accounts sorted by ID as deflated blocks, a block
+     * at a time, and adds the blocks to the directory.
+     */
+    private class ColumnWriter {
+        private final ByteArrayOutputStream directory;
+        private final Deflater deflater;
+        private final ByteArrayOutputStream ids =
+            new ByteArrayOutputStream(BLOCK_SIZE * 16);
+        private final long[] values = new long[BLOCK_SIZE];
+        private long position;
+        private int count;
+        private byte[] first;
+        private byte[] previous = new byte[0];
+
+        /**
+         * Start a column, writing the number of blocks it will have to the
+         * directory.
+         *
+         * @param size      number of accounts in the column
+         * @param position  where in the data file to write the first block
+         * @param directory the directory being built
+         * @param deflater  used to deflate the blocks
+         */
+        private ColumnWriter(
+                long size,
+                long position,
+                ByteArrayOutputStream directory,
+                Deflater deflater) {
+            this.position = position;
+            this.directory = directory;
+            this.deflater = deflater;
+            writeVarint(directory, (size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        }
+
+        /**
+         * Add the next account of the column, writing the block once it is
+         * full.
+         *
+         * @param accountId ID of the account, not before the previous one
+         * @param value     value of the account
+         * @throws IOException if unable to write the block
+         */
+        private void add(String accountId, long value) throws IOException {
+            byte[] id = accountId.getBytes(StandardCharsets.UTF_8);
+            int shared = 0;
+            int limit = Math.min(id.length, previous.length);
+            while (shared < limit && id[shared] == previous[shared]) {
+                shared++;
+            }
+            writeVarint(ids, shared);
+            writeVarint(ids, id.length - shared);
+            ids.write(id, shared, id.length - shared);
+            if (count == 0) {
+                first = id;
+            }
+            previous = id;
+            values[count++] = value;
+            if (count == BLOCK_SIZE) {
+                writeBlock();
+            }
+        }
+
+        /**
+         * Write the last block, if it is not empty.
+         *
+         * @return where in the data file the column ends
+         * @throws IOException if unable to write the block
+         */
+        private long finish() throws IOException {
+            if (count > 0) {
+                writeBlock();
+            }
+            return position;
+        }
+
+        /**
+         * Deflate and write the accounts added since the previous block.
+         *
+         * @throws IOException if unable to write the block
+         */
+        private void writeBlock() throws IOException {
+            ByteArrayOutputStream block =
+                new ByteArrayOutputStream(ids.size() + count * 4 + 4);
+            writeVarint(block, count);
+            ids.writeTo(block);
+            long last = 0;
+            for (int i = 0; i < count; i++) {
+                long delta = values[i] - last;
+                writeVarint(block, (delta << 1) ^ (delta >> 63));
+                last = values[i];
+            }
+
+            byte[] raw = block.toByteArray();
+            deflater.reset();
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream compressed =
+                new ByteArrayOutputStream(raw.length / 2);
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                compressed.write(chunk, 0, deflater.deflate(chunk));
+            }
+            byte[] bytes = compressed.toByteArray();
+            writeFully(ByteBuffer.wrap(bytes), position);
+
+            writeVarint(directory, first.length);
+            directory.write(first, 0, first.length);
+            writeVarint(directory, position);
+            writeVarint(directory, bytes.length);
+            writeVarint(directory, raw.length);
+            position += bytes.length;
+            ids.reset();
+            count = 0;
+            previous = new byte[0];
+        }
+    }
+
+    /**
+     * Accounts of one part of a snapshot sorted by ID and kept in a
+     * temporary file, read back an account at a time while merging. Closing
+     * the run deletes the file.
+     */
+    private static class Run implements Closeable {
+        private final File file;
+        private DataInputStream in;
+        private int remaining;
+        private String accountId;
+        private long balance;
+
+        /**
+         * Sort the accounts of a part and write them to a temporary file.
+         *
+         * @param part the snapshot of a bank or branch
+         * @throws IOException if unable to write the file
+         */
+        private Run(Snapshot part) throws IOException {
+            file = File.createTempFile("archive", ".run");
+            int[] order = IndexSort.sort(part::getAccountId, part.size());
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)))) {
+                for (int i : order) {
+                    out.writeUTF(part.getAccountId(i));
+                    out.writeLong(part.getBalance(i));
+                }
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            }
+            remaining = order.length;
+        }
+
+        /**
+         * Read the next account of the run.
+         *
+         * @return false if the run has no more accounts
+         * @throws IOException if unable to read the file
+         */
+        private boolean next() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            if (in == null) {
+                in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            }
+            accountId = in.readUTF();
+            balance = in.readLong();
+            remaining--;
+            return true;
+        }
+
+        @Override
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.out.print("> ");
+                }
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * Where a block of a column is kept.
+     */
+    private static class Block {
+        private final String firstId;
+        private final long offset;
+        private final int length;
+        private final int rawLength;
+
+        /**
+         * Describe a block.
+         *
+         * @param firstId   ID of the first account in the block
+         * @param offset    where the block starts in the data file
+         * @param length    deflated length of the block
+         * @param rawLength inflated length of the block
+         */
+        private Block(String firstId, long offset, int length, int rawLength) {
+            this.firstId = firstId;
+            this.offset = offset;
+            this.length = length;
+            this.rawLength = rawLength;
+        }
+    }
+
+    /**
+     * Accounts of one decoded block, sorted by ID.
+     */
+    private static class Column {
+        private final String[] ids;
+        private final long[] values;
+
+        /**
+         * Hold the accounts of a block.
+         *
+         * @param ids    IDs of the accounts
+         * @param values value of each account
+         */
+        private Column(String[] ids, long[] values) {
+            this.ids = ids;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Walks a column in account ID order, a block at a time.
+     */
+    private class Cursor {
+        private final List<Block> blocks;
+        private int block = -1;
+        private Column column;
+        private int position;
+
+        /**
+         * Start at the first account of a column.
+         *
+         * @param blocks the blocks of the column
+         * @throws IOException if unable to read the first block
+         */
+        private Cursor(List<Block> blocks) throws IOException {
+            this.blocks = blocks;
+            nextBlock();
+        }
+
+        /**
+         * Check whether the cursor is at an account.
+         *
+         * @return false once every account has been passed
+         */
+        private boolean hasCurrent() {
+            return column != null;
+        }
+
+        /**
+         * Retrieve the ID of the current account.
+         *
+         * @return the account ID
+         */
+        private String id() {
+            return column.ids[position];
+        }
+
+        /**
+         * Retrieve the value of the current account.
+         *
+         * @return the value
+         */
+        private long value() {
+            return column.values[position];
+        }
+
+        /**
+         * Move to the next account.
+         *
+         * @throws IOException if unable to read the next block
+         */
+        private void advance() throws IOException {
+            if (++position == column.ids.length) {
+                nextBlock();
+            }
+        }
+
+        /**
+         * Move to the first account of the next block.
+         *
+         * @throws IOException if unable to read the block
+         */
+        private void nextBlock() throws IOException {
+            position = 0;
+            column = ++block < blocks.size() ?
+                readBlock(blocks.get(block)) :
+                null;
+        }
+    }
+
+    /**
+     * When and by whom an archived snapshot was taken, and its totals.
+     */
+    public static class Entry {
+        private final long number;
+        private final long timeMillis;
+        private final UUID initiatorId;
+        private final long epoch;
+        private final long accounts;
+        private final long totalBalance;
+        private final long totalInTransit;
+        private final long directoryOffset;
+        private final int directoryLength;
+        private final int directoryChecksum;
+        private final long accountsInTransit;
+
+        /**
+         * Create an entry.
+         *
+         * @param number            number of the snapshot in the archive
+         * @param timeMillis        when the snapshot completed
+         * @param initiatorId       ID of the bank that took the snapshot
+         * @param epoch             number of the snapshot at the initiator
+         * @param accounts          number of accounts in the snapshot
+         * @param totalBalance      sum of the balances
+         * @param totalInTransit    sum of the amounts in transit
+         * @param directoryOffset   where the directory starts
+         * @param directoryLength   length of the directory
+         * @param directoryChecksum CRC32 of the directory
+         * @param accountsInTransit number of accounts with amounts in
+         *                          transit
+         */
+        private Entry(
+                long number,
+                long timeMillis,
+                UUID initiatorId,
+                long epoch,
+                long accounts,
+                long totalBalance,
+                long totalInTransit,
+                long directoryOffset,
+                int directoryLength,
+                int directoryChecksum,
+                long accountsInTransit) {
+            this.number = number;
+            this.timeMillis = timeMillis;
+            this.initiatorId = initiatorId;
+            this.epoch = epoch;
+            this.accounts = accounts;
+            this.totalBalance = totalBalance;
+            this.totalInTransit = totalInTransit;
+            this.directoryOffset = directoryOffset;
+            this.directoryLength = directoryLength;
+            this.directoryChecksum = directoryChecksum;
+            this.accountsInTransit = accountsInTransit;
+        }
+
+        /**
+         * Retrieve the number of the snapshot in the archive.
+         *
+         * @return the snapshot number
+         */
+        public long getNumber() {
+            return number;
+        }
+
+        /**
+         * Retrieve when the snapshot completed.
+         *
+         * @return the time in milliseconds since the epoch
+         */
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        /**
+         * Retrieve the ID of the snapshot, its initiator and epoch.
+         *
+         * @return the snapshot ID
+         */
+        public SnapshotId getId() {
+            return new SnapshotId(initiatorId, epoch);
+        }
+
+        /**
+         * Retrieve the number of accounts in the snapshot.
+         *
+         * @return the number of accounts
+         */
+        public long getAccounts() {
+            return accounts;
+        }
+
+        /**
+         * Retrieve the number of accounts with amounts in transit.
+         *
+         * @return the number of accounts with amounts in transit
+         */
+        public long getAccountsInTransit() {
+            return accountsInTransit;
+        }
+
+        /**
+         * Retrieve the sum of the balances in the snapshot.
+         *
+         * @return the total balance
+         */
+        public long getTotalBalance() {
+            return totalBalance;
+        }
+
+        /**
+         * Retrieve the sum of the amounts in transit in the snapshot.
+         *
+         * @return the total amount in transit
+         */
+        public long getTotalInTransit() {
+            return totalInTransit;
+        }
+    }
+}
@@ -0,0 +1,409 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Global snapshot of a Mattern round put together as its parts arrive.
+ *
+ * <p>
+ * Every snapshot is folded into running totals when it arrives, the number
+ * of accounts, the total balance and the balance of each branch, and every
+ * white message is folded into the net amount in transit to each account
+ * rather than kept. The amounts in transit and branch totals count against
+ * the memory limit along with the snapshots held. Whenever the held total
+ * passes the limit, the most recent snapshots are appended to a temporary
+ * file until it fits again, so a round never holds more than the limit
+ * unless the amounts in transit alone pass it. The snapshots are read back
+ * one at a time, from memory first and then from the file.
+ *
+ * <p>
+ * Writes to the file run one after another on the common pool rather than
+ * on the thread adding the snapshot, which usually holds the bank's
+ * monitor, and reading the snapshots back waits for them to finish. A write
+ * that fails fails the next snapshot added, or the read. Closing the
+ * assembler deletes the file once the writes are done.
+ */
+public class SnapshotAssembler implements Closeable {
+    // rough cost of an account held in a snapshot beyond its ID characters
+    private static final int ACCOUNT_OVERHEAD = 64;
+    // rough cost of an entry in the amounts in transit or branch totals
+    // beyond its key's characters
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final long memoryLimit;
+    // all guarded by this
+    private final List<Snapshot> held = new ArrayList<>();
+    private final Map<UUID, Long> branchTotals = new LinkedHashMap<>();
+    private final Map<String, Long> amountsInTransit = new HashMap<>();
+    private long heldBytes;
+    private long accountCount;
+    private long totalBalance;
+    private long totalInTransit;
+    private int spilled;
+    private boolean closed;
+    private CompletableFuture<Void> writes =
+        CompletableFuture.completedFuture(null);
+    // only used by the writes, or once they are done
+    private File spillFile;
+    private DataOutputStream spill;
+
+    /**
+     * Create an empty assembler.
+     *
+     * @param memoryLimit bytes of snapshots and amounts in transit to hold
+     *                    in memory before spilling snapshots to disk
+     */
+    public SnapshotAssembler(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Fold a snapshot into the totals and keep it, spilling snapshots to
+     * disk if holding it passes the memory limit. Snapshots that arrive
+     * once the assembler is closed are dropped.
+     *
+     * @param snapshot snapshot of a bank, or of a branch of a snapshot tree
+     * @throws IOException if an earlier snapshot could not be spilled
+     */
+    public synchronized void add(Snapshot snapshot) throws IOException {
+        if (closed) {
+            return;
+        }
+        if (writes.isCompletedExceptionally()) {
+            awaitWrites();
+        }
+        long balance = 0;
+        for (int i = 0; i < snapshot.size(); i++) {
+            balance += snapshot.getBalance(i);
+        }
+        accountCount += snapshot.size();
+        totalBalance += balance;
+        if (!branchTotals.containsKey(snapshot.getBankId())) {
+            heldBytes += ENTRY_OVERHEAD;
+        }
+        branchTotals.merge(snapshot.getBankId(), balance, Long::sum);
+        held.add(snapshot);
+        heldBytes += sizeOf(snapshot);
+        makeRoom();
+    }
+
+    /**
+     * Fold a message that was in transit into the amounts in transit.
+     *
+     * @param whiteMessage the white message
+     */
+    public synchronized void add(Message whiteMessage) {
+        add(MAlgorithm.amountsOf(whiteMessage));
+    }
+
+    /**
+     * Fold amounts in transit totalled elsewhere into the amounts in
+     * transit.
+     *
+     * @param amounts net amount in transit to each account, indexed by
+     *                account ID
+     */
+    public synchronized void add(Map<String, Long> amounts) {
+        if (closed) {
+            return;
+        }
+        for (Map.Entry<String, Long> amount : amounts.entrySet()) {
+            if (!amountsInTransit.containsKey(amount.getKey())) {
+                heldBytes += ENTRY_OVERHEAD + 2 * amount.getKey().length();
+            }
+            amountsInTransit.merge(
+                amount.getKey(),
+                amount.getValue(),
+                Long::sum);
+            totalInTransit += amount.getValue();
+        }
+        makeRoom();
+    }
+
+    /**
+     * Retrieve the number of accounts in the snapshots folded in so far.
+     *
+     * @return the number of accounts
+     */
+    public synchronized long getAccountCount() {
+        return accountCount;
+    }
+
+    /**
+     * Retrieve the sum of the balances folded in so far.
+     *
+     * @return the total balance
+     */
+    public synchronized long getTotalBalance() {
+        return totalBalance;
+    }
+
+    /**
+     * Retrieve the sum of the amounts in transit folded in so far.
+     *
+     * @return the total amount in transit
+     */
+    public synchronized long getTotalInTransit() {
+        return totalInTransit;
+    }
+
+    /**
+     * Retrieve the total balance of each snapshot folded in so far.
+     *
+     * @return total balance indexed by the ID of the bank the snapshot is
+     *         for
+     */
+    public synchronized Map<UUID, Long> getBranchTotals() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(branchTotals));
+    }
+
+    /**
+     * Retrieve the net amount in transit to each account folded in so far.
+     *
+     * @return amounts in transit indexed by account ID
+     */
+    public synchronized Map<String, Long> getAmountsInTransit() {
+        return new HashMap<>(amountsInTransit);
+    }
+
+    /**
+     * Check whether any snapshots have been spilled to disk.
+     *
+     * @return true if the assembler has spilled any snapshots
+     */
+    public synchronized boolean isSpilled() {
+        return spilled > 0;
+    }
+
+    /**
+     * Retrieve the snapshots folded in so far. Spilled snapshots are read
+     * back one at a time as the collection is iterated, until the assembler
+     * is closed.
+     *
+     * @return the snapshots, in the order held snapshots then spilled ones
+     */
+    public synchronized Collection<Snapshot> getSnapshots() {
+        List<Snapshot> inMemory = new ArrayList<>(held);
+        int onDisk = spilled;
+        return new AbstractCollection<Snapshot>() {
+            @Override
+            public Iterator<Snapshot> iterator() {
+                return new SnapshotIterator(inMemory, onDisk);
+            }
+
+            @Override
+            public int size() {
+                return inMemory.size() + onDisk;
+            }
+        };
+    }
+
+    /**
+     * Delete the spill file, if there is one, once the writes to it are
+     * done.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writes = writes.handleAsync((done, e) -> {
+            deleteSpill();
+            return null;
+        });
+    }
+
+    /**
+     * Estimate the memory taken by a snapshot.
+     *
+     * @param snapshot the snapshot
+     * @return rough size of the snapshot in bytes
+     */
+    private static long sizeOf(Snapshot snapshot) {
+        long bytes = 0;
+        for (int i = 0; i < snapshot.size(); i++) {
+            bytes += ACCOUNT_OVERHEAD + 2 * snapshot.getAccountId(i).length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Spill the most recently held snapshots until the held total fits in
+     * the memory limit, or no snapshots are held.
+     */
+    private void makeRoom() {
+        while (heldBytes > memoryLimit && !held.isEmpty()) {
+            Snapshot snapshot = held.remove(held.size() - 1);
+            heldBytes -= sizeOf(snapshot);
+            spilled++;
+            writes = writes.thenRunAsync(() -> write(snapshot));
+        }
+    }
+
+    /**
+     * Append a snapshot to the spill file, creating the file first if
+     * there is none. Runs after the previous write.
+     *
+     * @param snapshot the snapshot to spill
+     * @throws UncheckedIOException if unable to write the snapshot
+     */
+    private void write(Snapshot snapshot) {
+        try {
+            if (spill == null) {
+                spillFile = File.createTempFile("snapshot", ".spill");
+                spill = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(spillFile)));
+            }
+            spill.writeLong(snapshot.getBankId().getMostSignificantBits());
+            spill.writeLong(snapshot.getBankId().getLeastSignificantBits());
+            spill.writeInt(snapshot.size());
+            for (int i = 0; i < snapshot.size(); i++) {
+                spill.writeUTF(snapshot.getAccountId(i));
+                spill.writeLong(snapshot.getBalance(i));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Close and delete the spill file, if there is one. Runs after the last
+     * write.
+     */
+    private void deleteSpill() {
+        if (spill == null) {
+            return;
+        }
+        try {
+            spill.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.print("> ");
+        }
+        spill = null;
+        spillFile.delete();
+    }
+
+    /**
+     * Wait for the writes to the spill file to finish.
+     *
+     * @throws IOException if a write failed
+     */
+    private void awaitWrites() throws IOException {
+        try {
+            writes.join();
+        } catch (CompletionException e) {
+            throw new IOException("Unable to spill a snapshot", e.getCause());
+        }
+    }
+
+    /**
+     * Open the spill file for reading, once every snapshot spilled so far
+     * has been written to it.
+     *
+     * @return the spill file positioned at its first snapshot
+     * @throws IOException if unable to spill a snapshot or open the file
+     */
+    private synchronized DataInputStream openSpill() throws IOException {
+        if (closed) {
+            throw new IOException("Spilled snapshots have been deleted");
+        }
+        awaitWrites();
+        spill.flush();
+        return new DataInputStream(new BufferedInputStream(
+            new FileInputStream(spillFile)));
+    }
+
+    /**
+     * Iterates over the held snapshots, then reads the spilled ones back.
+     */
+    private class SnapshotIterator implements Iterator<Snapshot> {
+        private final Iterator<Snapshot> inMemory;
+        private int onDisk;
+        private DataInputStream in;
+
+        /**
+         * Start before the first snapshot.
+         *
+         * @param inMemory the held snapshots
+         * @param onDisk   the number of spilled snapshots to read back
+         */
+        private SnapshotIterator(List<Snapshot> inMemory, int onDisk) {
+            this.inMemory = inMemory.iterator();
+            this.onDisk = onDisk;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (inMemory.hasNext() || onDisk > 0) {
+                return true;
+            }
+            closeSpill();
+            return false;
+        }
+
+        @Override
+        public Snapshot next() {
+            if (inMemory.hasNext()) {
+                return inMemory.next();
+            }
+            if (onDisk == 0) {
+                throw new NoSuchElementException();
+            }
+            try {
+                if (in == null) {
+                    in = openSpill();
+                }
+                UUID bankId = new UUID(in.readLong(), in.readLong());
+                String[] ids = new String[in.readInt()];
+                long[] balances = new long[ids.length];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = in.readUTF();
+                    balances[i] = in.readLong();
+                }
+                onDisk--;
+                return new Snapshot(bankId, ids, balances);
+            } catch (IOException e) {
+                closeSpill();
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Close the spill file once every snapshot has been read back.
+         */
+        private void closeSpill() {
+            if (in == null) {
+                return;
+            }
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.print("> ");
+            }
+            in = null;
+        }
+    }
+}
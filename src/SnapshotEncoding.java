@@ -0,0 +1,15 @@
+/**
+ * Ways in which a bank can send snapshots of its accounts to remote banks.
+ */
+public enum SnapshotEncoding {
+    /**
+     * Every snapshot carries every account, understood by every bank.
+     */
+    FULL,
+
+    /**
+     * Snapshots carry only the accounts written since the previous snapshot
+     * sent to the same bank, used when the remote bank supports it.
+     */
+    DELTA
+}
@@ -0,0 +1,79 @@
+import java.util.UUID;
+
+/**
+ * ID of a Chandy-Lamport snapshot, made of its initiator and a number the
+ * initiator gives it, so that any number of snapshots can run side by side.
+ */
+public class SnapshotId {
+    private final UUID initiatorId;
+    private final long epoch;
+
+    /**
+     * Create an instance of SnapshotId.
+     *
+     * @param initiatorId ID of the initiator of the snapshot
+     * @param epoch       number of the snapshot at the initiator
+     */
+    public SnapshotId(UUID initiatorId, long epoch) {
+        this.initiatorId = initiatorId;
+        this.epoch = epoch;
+    }
+
+    /**
+     * Retrieve the initiator ID.
+     *
+     * @return ID of the initiator
+     */
+    public UUID getInitiatorId() {
+        return initiatorId;
+    }
+
+    /**
+     * Retrieve the number of the snapshot at its initiator.
+     *
+     * @return the epoch of the snapshot
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    @Override
+    public String toString() {
+        return initiatorId + "/" + epoch;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + (int) (epoch ^ (epoch >>> 32));
+        result = prime * result +
+            ((initiatorId == null) ? 0 : initiatorId.hashCode());
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        SnapshotId other = (SnapshotId) obj;
+        if (epoch != other.epoch) {
+            return false;
+        }
+        if (initiatorId == null) {
+            if (other.initiatorId != null) {
+                return false;
+            }
+        } else if (!initiatorId.equals(other.initiatorId)) {
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,243 @@
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Takes snapshots in the background with the configured algorithm, keeping
+ * the latest for reconciliation.
+ *
+ * <p>
+ * The next round is only scheduled once the previous one completes, so
+ * rounds never overlap. A round that has not completed within
+ * {@link #ROUND_TIMEOUT_MILLIS}, such as one started while a bank was
+ * joining, is given up on: failing its future makes the algorithm abandon
+ * the round, and a snapshot that still completes is closed rather than
+ * kept. Each round is costed from the bank's {@link OverheadMeter} over
+ * the window since the previous round ended: the share of messages and
+ * bytes sent that belonged to snapshots, and the share of time the snapshot
+ * lock was held. The interval is then stretched or shrunk in proportion to
+ * how far the largest share is from the budget, at most doubling each
+ * round, never going below the configured interval nor above
+ * {@link #MAX_BACKOFF} times it. A bank with no other traffic so backs off
+ * to the longest interval, and speeds up again once traffic returns.
+ */
+public class SnapshotScheduler {
+    public static final int MAX_BACKOFF = 64;
+    public static final long ROUND_TIMEOUT_MILLIS = 10000;
+
+    private final Bank bank;
+    private final SnapshotAlgorithm algorithm;
+    private final long minIntervalMillis;
+    private final double budget;
+    // all guarded by this
+    private long intervalMillis;
+    private OverheadMeter.Reading windowStart;
+    private OverheadMeter.Reading lastCost;
+    private long lastDurationNanos;
+    private GlobalSnapshot latest;
+    private Throwable lastFailure;
+    private long rounds;
+
+    /**
+     * Create a scheduler for the snapshots of a bank, as configured.
+     *
+     * @param bank the local bank
+     */
+    public SnapshotScheduler(Bank bank) {
+        this.bank = bank;
+        this.algorithm = bank.getConfig().getSnapshotAlgorithm();
+        this.minIntervalMillis = bank.getConfig().getSnapshotIntervalMillis();
+        this.budget = bank.getConfig().getSnapshotBudget() / 100;
+        this.intervalMillis = minIntervalMillis;
+    }
+
+    /**
+     * Schedule the first round, unless scheduled snapshots are turned off.
+     */
+    public synchronized void start() {
+        if (minIntervalMillis == 0) {
+            return;
+        }
+        windowStart = bank.getOverheadMeter().read();
+        schedule();
+    }
+
+    /**
+     * Check whether snapshots are being scheduled.
+     *
+     * @return true if snapshots are taken in the background
+     */
+    public boolean isEnabled() {
+        return minIntervalMillis > 0;
+    }
+
+    /**
+     * Retrieve the current interval between rounds.
+     *
+     * @return the interval in milliseconds
+     */
+    public synchronized long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * Retrieve the latest snapshot taken in the background.
+     *
+     * @return the latest snapshot, or null if none has completed
+     */
+    public synchronized GlobalSnapshot getLatest() {
+        return latest;
+    }
+
+    /**
+     * Print the interval, the cost of the latest round and the latest
+     * snapshot.
+     */
+    public synchronized void printStatus() {
+        if (!isEnabled()) {
+            System.out.println("Scheduled snapshots are turned off");
+            return;
+        }
+        System.out.println(String.format(
+            "Scheduled snapshots: %s every %d ms, %d rounds",
+            algorithm.name().toLowerCase().replace('_', '-'),
+            intervalMillis,
+            rounds));
+        if (lastCost != null) {
+            System.out.println(String.format(
+                "last round: %d ms, %d messages, %d bytes, " +
+                    "lock held %d us, overhead %.2f%%",
+                TimeUnit.NANOSECONDS.toMillis(lastDurationNanos),
+                lastCost.getSnapshotMessages(),
+                lastCost.getSnapshotBytes(),
+                TimeUnit.NANOSECONDS.toMicros(lastCost.getLockHeldNanos()),
+                lastCost.overhead() * 100));
+        }
+        if (lastFailure != null) {
+            System.out.println("last failure: " + lastFailure.getMessage());
+        }
+        if (latest != null) {
+            bank.printSnapshots(latest.getSnapshots());
+            System.out.println();
+            bank.printAmountsInTransit(latest.getAmountsInTransit());
+            bank.printTotals(latest);
+        }
+    }
+
+    /**
+     * Schedule the next round after the current interval.
+     */
+    private void schedule() {
+        try {
+            bank.getScheduler().schedule(
+                this::runRound,
+                intervalMillis,
+                TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the bank has shut down
+        }
+    }
+
+    /**
+     * Start a round, and finish it once the snapshot completes. Runs on the
+     * bank's scheduler. A round that cannot be started is finished as
+     * failed, so the next round is still scheduled.
+     */
+    private void runRound() {
+        long startedAt = System.nanoTime();
+        CompletableFuture<GlobalSnapshot> result;
+        try {
+            result = startRound();
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            System.out.print("> ");
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+        CompletableFuture<GlobalSnapshot> round = result;
+        ScheduledFuture<?> timeout = bank.getScheduler().schedule(
+            () -> round.completeExceptionally(new TimeoutException(
+                "Snapshot did not complete in time")),
+            ROUND_TIMEOUT_MILLIS,
+            TimeUnit.MILLISECONDS);
+        result.whenComplete((snapshot, e) -> {
+            timeout.cancel(false);
+            finishRound(System.nanoTime() - startedAt, snapshot, e);
+        });
+    }
+
+    /**
+     * Start a snapshot with the configured algorithm.
+     *
+     * @return a future completed with the snapshot
+     * @throws IOException if unable to start the snapshot
+     */
+    private CompletableFuture<GlobalSnapshot> startRound()
+            throws IOException {
+        switch (algorithm) {
+            case CHANDY_LAMPORT:
+                return bank.initChandyLamport();
+            case LAI_YANG:
+                return bank.getLaiYang().initSnapshot();
+            default:
+                return bank.getmAlgorithm().initSnapshot();
+        }
+    }
+
+    /**
+     * Cost a completed round, adapt the interval to the budget and schedule
+     * the next round.
+     *
+     * @param durationNanos time taken by the round
+     * @param snapshot      the snapshot taken, or null if the round failed
+     * @param failure       why the round failed, or null if it completed
+     */
+    private synchronized void finishRound(
+            long durationNanos,
+            GlobalSnapshot snapshot,
+            Throwable failure) {
+        OverheadMeter.Reading now = bank.getOverheadMeter().read();
+        OverheadMeter.Reading cost = now.since(windowStart);
+        windowStart = now;
+        if (failure != null) {
+            // rounds fail while too few banks support the algorithm or
+            // while banks are joining, so keep trying at the same pace
+            lastFailure = failure;
+        } else {
+            rounds++;
+            if (latest != null) {
+                try {
+                    latest.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.out.print("> ");
+                }
+            }
+            latest = snapshot;
+            lastFailure = null;
+            lastCost = cost;
+            lastDurationNanos = durationNanos;
+            intervalMillis = adapt(cost.overhead());
+        }
+        schedule();
+    }
+
+    /**
+     * Work out the interval that would bring the overhead of a round to the
+     * budget.
+     *
+     * @param overhead overhead of the latest round, from 0 to 1
+     * @return the next interval in milliseconds
+     */
+    private long adapt(double overhead) {
+        long next = Math.min(
+            intervalMillis * 2,
+            Math.round(intervalMillis * overhead / budget));
+        return Math.max(
+            minIntervalMillis,
+            Math.min(minIntervalMillis * MAX_BACKOFF, next));
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Spanning tree over the banks taking part in a Mattern round, rooted at the
+ * initiator. The other banks are ordered by ID and laid out as a complete
+ * tree with a fixed fan-out, so the initiator can tell each bank which bank
+ * it reports to and how many banks report to it.
+ */
+public class SnapshotTree {
+    private final List<UUID> nodes = new ArrayList<>();
+    private final Map<UUID, Integer> positions = new HashMap<>();
+    private final int fanout;
+
+    /**
+     * Lay out a tree.
+     *
+     * @param root    ID of the initiator
+     * @param members IDs of every other bank taking part
+     * @param fanout  most children a bank may have
+     */
+    public SnapshotTree(UUID root, Collection<UUID> members, int fanout) {
+        if (fanout < 1) {
+            throw new IllegalArgumentException("Fan-out must be positive");
+        }
+        this.fanout = fanout;
+        List<UUID> sorted = new ArrayList<>(members);
+        Collections.sort(sorted);
+        nodes.add(root);
+        nodes.addAll(sorted);
+        for (int i = 0; i < nodes.size(); i++) {
+            positions.put(nodes.get(i), i);
+        }
+    }
+
+    /**
+     * Retrieve the bank a bank reports to.
+     *
+     * @param bankId ID of a bank in the tree
+     * @return ID of its parent, or null for the initiator
+     */
+    public UUID getParent(UUID bankId) {
+        int position = positions.get(bankId);
+        return position == 0 ? null : nodes.get((position - 1) / fanout);
+    }
+
+    /**
+     * Retrieve the number of banks that report to a bank.
+     *
+     * @param bankId ID of a bank in the tree
+     * @return the number of its children
+     */
+    public int getChildCount(UUID bankId) {
+        int firstChild = positions.get(bankId) * fanout + 1;
+        return Math.max(0, Math.min(fanout, nodes.size() - firstChild));
+    }
+}
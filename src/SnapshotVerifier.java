@@ -0,0 +1,566 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Checks that a completed global snapshot is consistent, and compares it
+ * with the previous snapshot checked.
+ *
+ * <p>
+ * The balances and amounts in transit have to add up to the money issued,
+ * when that is known, and the total of each bank or branch has to match the
+ * accounts it holds. Every account has to appear exactly once, no account
+ * may disappear since the previous snapshot, and money may only be in
+ * transit to accounts that exist.
+ *
+ * <p>
+ * The snapshots of the banks are read one at a time, so parts spilled to
+ * disk are never all read back at once, and their accounts are spread over
+ * {@link #PARTITIONS} partitions by the hash of their IDs as they are read.
+ * The partitions are then checked in parallel. Each partition sorts its
+ * accounts, finds duplicates next to each other, and walks the same
+ * partition of the previous snapshot alongside to find the accounts that
+ * changed. Only the ID and balance of each account are held, in arrays
+ * sorted with {@link IndexSort} rather than as {@link Account} objects.
+ *
+ * <p>
+ * The sorted IDs and balances of the previous snapshot are kept between
+ * checks, so the verifier holds about one ID and one balance per account
+ * of the previous snapshot while no check is running, and twice that while
+ * checking.
+ */
+public class SnapshotVerifier {
+    public static final int PARTITIONS = 1024;
+    public static final int MAX_REPORTED = 100;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final long expectedIssuance;
+    // guarded by this
+    private Partition[] previous;
+    private long previousTotal;
+    private Report lastReport;
+
+    /**
+     * Create a verifier.
+     *
+     * @param expectedIssuance money issued, which the balances and amounts
+     *                         in transit have to add up to, or -1 if it is
+     *                         not known
+     */
+    public SnapshotVerifier(long expectedIssuance) {
+        this.expectedIssuance = expectedIssuance;
+    }
+
+    /**
+     * Check a global snapshot, which is kept as the previous snapshot for
+     * the next check.
+     *
+     * @param snapshot the global snapshot
+     * @return what was found
+     */
+    public synchronized Report verify(GlobalSnapshot snapshot) {
+        return check(snapshot, System.nanoTime());
+    }
+
+    /**
+     * Check a global snapshot against the previous one.
+     *
+     * @param snapshot the global snapshot
+     * @param start    when the check started, from {@link System#nanoTime}
+     * @return what was found
+     */
+    private Report check(GlobalSnapshot snapshot, long start) {
+        Partition[] partitions = new Partition[PARTITIONS];
+        for (int p = 0; p < PARTITIONS; p++) {
+            partitions[p] = new Partition();
+        }
+        Map<UUID, Long> branchTotals = new HashMap<>();
+        long size = 0;
+        long totalBalance = 0;
+        for (Snapshot part : snapshot.getSnapshots()) {
+            long partTotal = 0;
+            for (int i = 0; i < part.size(); i++) {
+                String accountId = part.getAccountId(i);
+                long balance = part.getBalance(i);
+                partitions[accountId == null ? 0 : partitionOf(accountId)]
+                    .add(accountId, balance);
+                partTotal += balance;
+            }
+            size += part.size();
+            totalBalance += partTotal;
+            branchTotals.merge(part.getBankId(), partTotal, Long::sum);
+        }
+
+        List<String> violations = new ArrayList<>();
+        long violationCount = 0;
+        for (Map.Entry<UUID, Long> branch :
+                snapshot.getBranchTotals().entrySet()) {
+            Long total = branchTotals.get(branch.getKey());
+            if (!branch.getValue().equals(total)) {
+                violationCount++;
+                report(violations, String.format(
+                    "process %s was totalled at %d but its accounts add " +
+                        "up to %d",
+                    branch.getKey(),
+                    branch.getValue(),
+                    total));
+            }
+        }
+
+        List<List<String>> transitIds = new ArrayList<>(PARTITIONS);
+        for (int p = 0; p < PARTITIONS; p++) {
+            transitIds.add(new ArrayList<>());
+        }
+        for (String accountId : snapshot.getAmountsInTransit().keySet()) {
+            transitIds.get(partitionOf(accountId)).add(accountId);
+        }
+
+        Partition[] earlier = previous;
+        IntStream.range(0, PARTITIONS).parallel().forEach(p ->
+            partitions[p].check(
+                earlier != null ? earlier[p] : null,
+                transitIds.get(p)));
+
+        long overdrawn = 0;
+        long changed = 0;
+        long opened = 0;
+        for (Partition partition : partitions) {
+            overdrawn += partition.overdrawn;
+            changed += partition.changed;
+            opened += partition.opened;
+            violationCount += partition.violationCount;
+            for (String violation : partition.violations) {
+                report(violations, violation);
+            }
+        }
+        long totalInTransit = 0;
+        for (long amount : snapshot.getAmountsInTransit().values()) {
+            totalInTransit += amount;
+        }
+        for (Message message : snapshot.getWhiteMessages()) {
+            for (long amount : MAlgorithm.amountsOf(message).values()) {
+                totalInTransit += amount;
+            }
+        }
+        if (expectedIssuance >= 0 &&
+            totalBalance + totalInTransit != expectedIssuance) {
+            violationCount++;
+            report(violations, String.format(
+                "balances of %d and %d in transit do not add up to the " +
+                    "%d issued",
+                totalBalance,
+                totalInTransit,
+                expectedIssuance));
+        }
+
+        Report report = new Report(
+            new SnapshotId(snapshot.getInitiatorId(), snapshot.getEpoch()),
+            size,
+            totalBalance,
+            totalInTransit,
+            expectedIssuance,
+            earlier != null ?
+                totalBalance + totalInTransit - previousTotal :
+                0,
+            changed,
+            opened,
+            overdrawn,
+            violationCount,
+            violations,
+            System.nanoTime() - start);
+        previous = partitions;
+        previousTotal = totalBalance + totalInTransit;
+        lastReport = report;
+        return report;
+    }
+
+    /**
+     * Retrieve what the latest check found.
+     *
+     * @return the latest report, or null if no snapshot has been checked
+     */
+    public synchronized Report getLastReport() {
+        return lastReport;
+    }
+
+    /**
+     * Find the partition of an account.
+     *
+     * @param accountId ID of the account
+     * @return the partition, from 0 to {@link #PARTITIONS} - 1
+     */
+    private static int partitionOf(String accountId) {
+        // spread the hash so IDs that differ in their last characters
+        // still land in different partitions
+        int hash = accountId.hashCode() * 0x9e3779b9;
+        return (hash >>> 16) % PARTITIONS;
+    }
+
+    /**
+     * Keep a violation for the report, up to {@link #MAX_REPORTED}.
+     *
+     * @param violations the violations kept
+     * @param violation  the violation
+     */
+    private static void report(List<String> violations, String violation) {
+        if (violations.size() < MAX_REPORTED) {
+            violations.add(violation);
+        }
+    }
+
+    /**
+     * Accounts of one partition, sorted by ID once they have all been
+     * added, and what checking them found.
+     */
+    private static class Partition {
+        private String[] ids = new String[INITIAL_CAPACITY];
+        private long[] balances = new long[INITIAL_CAPACITY];
+        private int size;
+        private final List<String> violations = new ArrayList<>();
+        private long violationCount;
+        private long overdrawn;
+        private long changed;
+        private long opened;
+
+        /**
+         * Add an account to the partition.
+         *
+         * @param accountId ID of the account
+         * @param balance   balance of the account
+         */
+        private void add(String accountId, long balance) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                balances = Arrays.copyOf(balances, size * 2);
+            }
+            ids[size] = accountId;
+            balances[size++] = balance;
+        }
+
+        /**
+         * Sort and check the accounts of the partition, once they have all
+         * been added.
+         *
+         * @param previous   the same partition of the previous snapshot,
+         *                   or null if there is none
+         * @param transitIds IDs of the accounts in the partition with money
+         *                   in transit to them
+         */
+        private void check(Partition previous, List<String> transitIds) {
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == null || ids[i].isEmpty()) {
+                    violate("an account has no ID");
+                    ids[i] = "";
+                }
+            }
+            sort();
+            for (int i = 0; i < ids.length; i++) {
+                if (balances[i] < 0) {
+                    overdrawn++;
+                }
+                if (i > 0 && ids[i].equals(ids[i - 1]) &&
+                    (i == 1 || !ids[i].equals(ids[i - 2]))) {
+                    violate("account " + ids[i] + " appears more than once");
+                }
+            }
+            for (String accountId : transitIds) {
+                if (Arrays.binarySearch(ids, accountId) < 0) {
+                    violate("money is in transit to unknown account " +
+                        accountId);
+                }
+            }
+            if (previous != null) {
+                compare(previous);
+            }
+        }
+
+        /**
+         * Sort the accounts by ID through an index, leaving the IDs and
+         * balances in arrays of exactly the size of the partition.
+         */
+        private void sort() {
+            int[] order = IndexSort.sort(i -> ids[i], size);
+            String[] sortedIds = new String[size];
+            long[] sortedBalances = new long[size];
+            for (int i = 0; i < size; i++) {
+                sortedIds[i] = ids[order[i]];
+                sortedBalances[i] = balances[order[i]];
+            }
+            ids = sortedIds;
+            balances = sortedBalances;
+        }
+
+        /**
+         * Walk the same partition of the previous snapshot alongside this
+         * one, counting the accounts changed or opened since, and reporting
+         * those that disappeared.
+         *
+         * @param previous the partition of the previous snapshot
+         */
+        private void compare(Partition previous) {
+            int i = 0;
+            int j = 0;
+            while (i < ids.length || j < previous.ids.length) {
+                // duplicates have been reported already, so compare the
+                // first of each run only
+                if (i > 0 && i < ids.length && ids[i].equals(ids[i - 1])) {
+                    i++;
+                    continue;
+                }
+                if (j > 0 && j < previous.ids.length &&
+                    previous.ids[j].equals(previous.ids[j - 1])) {
+                    j++;
+                    continue;
+                }
+                int order = i == ids.length ? 1 :
+                    j == previous.ids.length ? -1 :
+                    ids[i].compareTo(previous.ids[j]);
+                if (order < 0) {
+                    opened++;
+                    i++;
+                } else if (order > 0) {
+                    violate("account " + previous.ids[j] +
+                        " has disappeared since the previous snapshot");
+                    j++;
+                } else {
+                    if (balances[i] != previous.balances[j]) {
+                        changed++;
+                    }
+                    i++;
+                    j++;
+                }
+            }
+        }
+
+        /**
+         * Count a violation in the partition, keeping the first ones.
+         *
+         * @param violation the violation
+         */
+        private void violate(String violation) {
+            violationCount++;
+            report(violations, violation);
+        }
+    }
+
+    /**
+     * What checking a global snapshot found.
+     */
+    public static class Report {
+        private final SnapshotId snapshotId;
+        private final long accounts;
+        private final long totalBalance;
+        private final long totalInTransit;
+        private final long expectedIssuance;
+        private final long totalChange;
+        private final long changedAccounts;
+        private final long openedAccounts;
+        private final long overdrawnAccounts;
+        private final long violationCount;
+        private final List<String> violations;
+        private final long durationNanos;
+
+        /**
+         * Create a report.
+         *
+         * @param snapshotId        initiator and epoch of the snapshot
+         * @param accounts          number of accounts in the snapshot
+         * @param totalBalance      sum of the balances
+         * @param totalInTransit    sum of the amounts in transit
+         * @param expectedIssuance  money issued, or -1 if not known
+         * @param totalChange       change in the money held since the
+         *                          previous snapshot
+         * @param changedAccounts   accounts whose balance changed since the
+         *                          previous snapshot
+         * @param openedAccounts    accounts opened since the previous
+         *                          snapshot
+         * @param overdrawnAccounts accounts with a negative balance
+         * @param violationCount    number of violations found
+         * @param violations        the first violations found
+         * @param durationNanos     time taken by the check
+         */
+        private Report(
+                SnapshotId snapshotId,
+                long accounts,
+                long totalBalance,
+                long totalInTransit,
+                long expectedIssuance,
+                long totalChange,
+                long changedAccounts,
+                long openedAccounts,
+                long overdrawnAccounts,
+                long violationCount,
+                List<String> violations,
+                long durationNanos) {
+            this.snapshotId = snapshotId;
+            this.accounts = accounts;
+            this.totalBalance = totalBalance;
+            this.totalInTransit = totalInTransit;
+            this.expectedIssuance = expectedIssuance;
+            this.totalChange = totalChange;
+            this.changedAccounts = changedAccounts;
+            this.openedAccounts = openedAccounts;
+            this.overdrawnAccounts = overdrawnAccounts;
+            this.violationCount = violationCount;
+            this.violations = Collections.unmodifiableList(violations);
+            this.durationNanos = durationNanos;
+        }
+
+        /**
+         * Check whether the snapshot is consistent.
+         *
+         * @return true if no violations were found
+         */
+        public boolean isConsistent() {
+            return violationCount == 0;
+        }
+
+        /**
+         * Retrieve the initiator and epoch of the snapshot checked.
+         *
+         * @return the snapshot ID
+         */
+        public SnapshotId getSnapshotId() {
+            return snapshotId;
+        }
+
+        /**
+         * Retrieve the number of accounts in the snapshot.
+         *
+         * @return the number of accounts
+         */
+        public long getAccounts() {
+            return accounts;
+        }
+
+        /**
+         * Retrieve the sum of the balances in the snapshot.
+         *
+         * @return the total balance
+         */
+        public long getTotalBalance() {
+            return totalBalance;
+        }
+
+        /**
+         * Retrieve the sum of the amounts in transit in the snapshot.
+         *
+         * @return the total amount in transit
+         */
+        public long getTotalInTransit() {
+            return totalInTransit;
+        }
+
+        /**
+         * Retrieve the money issued the snapshot was checked against.
+         *
+         * @return the money issued, or -1 if not known
+         */
+        public long getExpectedIssuance() {
+            return expectedIssuance;
+        }
+
+        /**
+         * Retrieve the change in the money held, balances and amounts in
+         * transit, since the previous snapshot.
+         *
+         * @return the change, 0 if there was no previous snapshot
+         */
+        public long getTotalChange() {
+            return totalChange;
+        }
+
+        /**
+         * Retrieve the number of accounts whose balance changed since the
+         * previous snapshot.
+         *
+         * @return the number of changed accounts
+         */
+        public long getChangedAccounts() {
+            return changedAccounts;
+        }
+
+        /**
+         * Retrieve the number of accounts opened since the previous
+         * snapshot.
+         *
+         * @return the number of opened accounts
+         */
+        public long getOpenedAccounts() {
+            return openedAccounts;
+        }
+
+        /**
+         * Retrieve the number of accounts with a negative balance.
+         *
+         * @return the number of overdrawn accounts
+         */
+        public long getOverdrawnAccounts() {
+            return overdrawnAccounts;
+        }
+
+        /**
+         * Retrieve the number of violations found.
+         *
+         * @return the number of violations
+         */
+        public long getViolationCount() {
+            return violationCount;
+        }
+
+        /**
+         * Retrieve the first {@link #MAX_REPORTED} violations found.
+         *
+         * @return descriptions of the violations
+         */
+        public List<String> getViolations() {
+            return violations;
+        }
+
+        /**
+         * Retrieve the time taken by the check.
+         *
+         * @return the duration in nanoseconds
+         */
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        /**
+         * Print what the check found.
+         */
+        public void print() {
+            System.out.println(String.format(
+                "Snapshot %d by %s: %d accounts, balance: %d, in transit: " +
+                    "%d, checked in %d ms",
+                snapshotId.getEpoch(),
+                snapshotId.getInitiatorId(),
+                accounts,
+                totalBalance,
+                totalInTransit,
+                TimeUnit.NANOSECONDS.toMillis(durationNanos)));
+            System.out.println(String.format(
+                "since previous: %+d in total, %d accounts changed, %d " +
+                    "opened; %d overdrawn",
+                totalChange,
+                changedAccounts,
+                openedAccounts,
+                overdrawnAccounts));
+            if (isConsistent()) {
+                System.out.println("consistent");
+                return;
+            }
+            System.out.println(violationCount + " violations:");
+            for (String violation : violations) {
+                System.out.println("  " + violation);
+            }
+        }
+    }
+}
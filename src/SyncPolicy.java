@@ -0,0 +1,104 @@
+/**
+ * Decides when the write-ahead log is forced to disk, and whether updates
+ * wait for it.
+ *
+ * <p>
+ * The log is forced by a single thread, so every record appended while one
+ * force is in progress is made durable by the next. Under
+ * {@link #commit()} each operation waits for a force covering its record
+ * before returning, sharing the force with every other operation waiting at
+ * the time. Under {@link #interval(long)} operations return at once and
+ * the log is forced periodically, so a crash of the machine may lose the
+ * latest interval. Under {@link #none()} the log is never forced and the
+ * operating system writes it back in its own time, which still survives a
+ * crash of the bank itself.
+ */
+public final class SyncPolicy {
+    private final boolean waitForSync;
+    private final long intervalMillis;
+
+    private SyncPolicy(boolean waitForSync, long intervalMillis) {
+        this.waitForSync = waitForSync;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Wait for a force covering each operation, grouping operations which
+     * wait at the same time into one force.
+     *
+     * @return the policy
+     */
+    public static SyncPolicy commit() {
+        return new SyncPolicy(true, 0);
+    }
+
+    /**
+     * Force the log periodically without waiting for it.
+     *
+     * @param millis time between forces
+     * @return the policy
+     */
+    public static SyncPolicy interval(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException(
+                "Sync interval must be positive");
+        }
+        return new SyncPolicy(false, millis);
+    }
+
+    /**
+     * Never force the log.
+     *
+     * @return the policy
+     */
+    public static SyncPolicy none() {
+        return new SyncPolicy(false, 0);
+    }
+
+    /**
+     * Parse a policy of the form commit, interval:&lt;millis&gt; or none.
+     *
+     * @param policy the policy to parse
+     * @return the policy
+     * @throws IllegalArgumentException if the policy is not recognised
+     */
+    public static SyncPolicy parse(String policy) {
+        String[] parts = policy.split(":", 2);
+        if (parts[0].equals("commit") && parts.length == 1) {
+            return commit();
+        } else if (parts[0].equals("interval") && parts.length == 2) {
+            return interval(Long.parseLong(parts[1]));
+        } else if (parts[0].equals("none") && parts.length == 1) {
+            return none();
+        }
+        throw new IllegalArgumentException("Unknown sync policy " + policy);
+    }
+
+    /**
+     * Check whether operations wait for the log to be forced.
+     *
+     * @return true if operations wait for their records to be durable
+     */
+    public boolean isWaitForSync() {
+        return waitForSync;
+    }
+
+    /**
+     * Retrieve the time between periodic forces.
+     *
+     * @return the sync interval in milliseconds, or 0 if the log is not
+     *         forced periodically
+     */
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * Check whether the log is ever forced.
+     *
+     * @return true if the log is forced to disk
+     */
+    public boolean isSyncing() {
+        return waitForSync || intervalMillis > 0;
+    }
+}
@@ -0,0 +1,48 @@
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Creates connections to and from remote banks.
+ */
+public interface Transport {
+    /**
+     * Wait for a remote bank to connect to this bank.
+     *
+     * @return the connection to the remote bank
+     * @throws IOException if unable to accept a connection
+     */
+    PeerConnection accept() throws IOException;
+
+    /**
+     * Make a connection to a remote bank.
+     *
+     * @param hostname host name of the remote bank
+     * @param port     port of the remote bank
+     * @return the connection to the remote bank
+     * @throws IOException if unable to connect to the remote bank
+     */
+    PeerConnection connect(String hostname, int port) throws IOException;
+
+    /**
+     * Stop accepting connections and release any I/O threads.
+     *
+     * @throws IOException if unable to close the listening socket
+     */
+    void close() throws IOException;
+
+    /**
+     * Create the pool of threads that drain the outbound queues of every
+     * connection made by a transport.
+     *
+     * @param config configuration of the local bank
+     * @return the writer pool
+     */
+    static ScheduledExecutorService newWriterPool(BankConfig config) {
+        return Executors.newScheduledThreadPool(config.getIoThreads(), task -> {
+            Thread thread = new Thread(task, "bank-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
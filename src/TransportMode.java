@@ -0,0 +1,14 @@
+/**
+ * Ways in which a bank can exchange messages with remote banks.
+ */
+public enum TransportMode {
+    /**
+     * One thread per remote bank, each blocking on its socket.
+     */
+    BLOCKING,
+
+    /**
+     * A small fixed pool of selector threads multiplexing every remote bank.
+     */
+    NIO
+}
@@ -1,38 +1,37 @@
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ObjLongConsumer;
 
 /**
  * Implementation of vector clock algorithm.
+ *
+ * <p>
+ * Process IDs are interned to dense indices shared by every clock in the
+ * JVM, and ticks are stored in a primitive array indexed by them, so merging
+ * two clocks is an element-wise maximum. A clock is not thread safe, each
+ * bank guards its own clock with its monitor.
  */
 public class VectorClock {
-    private static VectorClock vectorClock = null;
-    private final HashMap<UUID, Long> vc = new HashMap<>();
+    private static final long ABSENT = Long.MIN_VALUE;
+    private static final long[] EMPTY = new long[0];
 
-    /**
-     * Retrieve the singleton VectorClock.
-     *
-     * @return the singleton VectorClock
-     */
-    public static VectorClock getInstance() {
-        if (vectorClock == null) {
-            vectorClock = new VectorClock();
-        }
+    private static final ConcurrentHashMap<UUID, Integer> INDICES =
+        new ConcurrentHashMap<>();
+    private static volatile UUID[] processes = new UUID[0];
 
-        return vectorClock;
-    }
+    private long[] ticks = EMPTY;
 
     /**
      * Increment the logic clock of a process by 1.
      *
      * @param pid the ID of process
      */
-    public synchronized void tick(UUID pid) {
-        if (this.vc.containsKey(pid)) {
-            this.vc.put(pid, this.vc.get(pid) + 1);
-        } else {
-            this.vc.put(pid, (long) 1);
-        }
+    public void tick(UUID pid) {
+        int index = ensure(indexOf(pid));
+        ticks[index] = ticks[index] == ABSENT ? 1 : ticks[index] + 1;
     }
 
     /**
@@ -41,21 +40,107 @@ public class VectorClock {
      * @param pid   the ID of the process
      * @param ticks the clock value of the process
      */
-    public synchronized void set(UUID pid, Long ticks) {
-        this.vc.put(pid, ticks);
+    public void set(UUID pid, long ticks) {
+        int index = ensure(indexOf(pid));
+        this.ticks[index] = ticks;
     }
 
     /**
      * Get the clock value of a process.
      *
      * @param pid the ID of the process
-     * @return the clock value
+     * @return the clock value, or -1 if the process has never ticked
      */
-    public synchronized long findTick(UUID pid) {
-        if (!this.vc.containsKey(pid)) {
+    public long findTick(UUID pid) {
+        Integer index = INDICES.get(pid);
+        if (index == null || index >= ticks.length || ticks[index] == ABSENT) {
             return -1;
         }
-        return this.vc.get(pid);
+        return ticks[index];
+    }
+
+    /**
+     * Create an independent copy of the clock, so that a message can carry
+     * the time it was sent at after the clock has moved on.
+     *
+     * @return a copy of the clock
+     */
+    public VectorClock copy() {
+        VectorClock copy = new VectorClock();
+        copy.ticks = Arrays.copyOf(ticks, ticks.length);
+        return copy;
+    }
+
+    /**
+     * Retrieve a copy of every clock value.
+     *
+     * @return the clock values indexed by process ID
+     */
+    public Map<UUID, Long> getTicks() {
+        Map<UUID, Long> copy = new HashMap<>();
+        forEach(copy::put);
+        return copy;
+    }
+
+    /**
+     * Retrieve the number of processes with a clock value.
+     *
+     * @return the number of processes
+     */
+    public int size() {
+        int size = 0;
+        for (long tick : ticks) {
+            if (tick != ABSENT) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Retrieve the number of dense indices the clock has room for. Together
+     * with {@link #findProcess(int)} and {@link #getTick(int)} this walks
+     * the clock values without a callback.
+     *
+     * @return one past the highest index that may hold a clock value
+     */
+    public int getCapacity() {
+        return ticks.length;
+    }
+
+    /**
+     * Find the process at a dense index, if the clock has a value for it.
+     *
+     * @param index index below {@link #getCapacity()}
+     * @return the ID of the process, or null if there is no clock value at
+     *         the index
+     */
+    public UUID findProcess(int index) {
+        return ticks[index] == ABSENT ? null : processes[index];
+    }
+
+    /**
+     * Get the clock value at a dense index.
+     *
+     * @param index index at which {@link #findProcess(int)} found a process
+     * @return the clock value
+     */
+    public long getTick(int index) {
+        return ticks[index];
+    }
+
+    /**
+     * Visit every clock value without boxing.
+     *
+     * @param action called with each process ID and its clock value
+     */
+    public void forEach(ObjLongConsumer<UUID> action) {
+        UUID[] ids = processes;
+        for (int i = 0; i < ticks.length; i++) {
+            if (ticks[i] != ABSENT) {
+                action.accept(ids[i], ticks[i]);
+            }
+        }
     }
 
     /**
@@ -63,14 +148,92 @@ public class VectorClock {
      *
      * @param other the other vector clock
      */
-    public synchronized void merge(VectorClock other) {
-        for (Map.Entry<UUID, Long> clock : other.vc.entrySet()) {
-            Long time = this.vc.get(clock.getKey());
-            if (time == null) {
-                this.vc.put(clock.getKey(), clock.getValue());
-            } else if (time < clock.getValue()) {
-                this.vc.put(clock.getKey(), clock.getValue());
+    public void merge(VectorClock other) {
+        long[] theirs = other.ticks;
+        ensure(theirs.length - 1);
+        for (int i = 0; i < theirs.length; i++) {
+            if (ticks[i] < theirs[i]) {
+                ticks[i] = theirs[i];
+            }
+        }
+    }
+
+    /**
+     * Find the clock values that have changed since an earlier copy of the
+     * same clock. Filling the result in from the earlier copy with
+     * {@link #fill(VectorClock)} gives this clock back.
+     *
+     * @param previous earlier copy of the clock, or null if there is none
+     * @return a clock holding only the values that changed
+     */
+    public VectorClock diff(VectorClock previous) {
+        if (previous == null) {
+            return this;
+        }
+        long[] before = previous.ticks;
+        VectorClock delta = new VectorClock();
+        delta.ensure(ticks.length - 1);
+        for (int i = 0; i < ticks.length; i++) {
+            if (ticks[i] != (i < before.length ? before[i] : ABSENT)) {
+                delta.ticks[i] = ticks[i];
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * Take every clock value this clock lacks from another clock, rebuilding
+     * a clock from the values found by {@link #diff(VectorClock)}.
+     *
+     * @param previous the clock the difference was taken against
+     */
+    public void fill(VectorClock previous) {
+        long[] before = previous.ticks;
+        ensure(before.length - 1);
+        for (int i = 0; i < before.length; i++) {
+            if (ticks[i] == ABSENT) {
+                ticks[i] = before[i];
+            }
+        }
+    }
+
+    /**
+     * Grow the tick array so that an index fits.
+     *
+     * @param index index which must fit
+     * @return the index
+     */
+    private int ensure(int index) {
+        if (index >= ticks.length) {
+            int length = ticks.length;
+            ticks = Arrays.copyOf(ticks, Math.max(index + 1, length * 2));
+            Arrays.fill(ticks, length, ticks.length, ABSENT);
+        }
+        return index;
+    }
+
+    /**
+     * Find the dense index of a process, assigning the next free index to a
+     * process that has not been seen before.
+     *
+     * @param pid the ID of the process
+     * @return the index of the process
+     */
+    private static int indexOf(UUID pid) {
+        Integer index = INDICES.get(pid);
+        if (index != null) {
+            return index;
+        }
+        synchronized (INDICES) {
+            index = INDICES.get(pid);
+            if (index == null) {
+                UUID[] ids = Arrays.copyOf(processes, processes.length + 1);
+                index = processes.length;
+                ids[index] = pid;
+                processes = ids;
+                INDICES.put(pid, index);
             }
+            return index;
         }
     }
 }
@@ -0,0 +1,14 @@
+/**
+ * Encodings a bank can use for messages sent to remote banks.
+ */
+public enum WireFormat {
+    /**
+     * Line delimited JSON, understood by every bank.
+     */
+    JSON,
+
+    /**
+     * Length prefixed binary frames, used when the remote bank supports them.
+     */
+    BINARY
+}
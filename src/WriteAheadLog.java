@@ -0,0 +1,634 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Durable record of every change to the local accounts of a bank, replayed
+ * into its {@link AccountStore} when the bank starts.
+ *
+ * <p>
+ * The log is a sequence of segment files, each mapped into memory at its
+ * full size and named after the log sequence number (LSN) of its first
+ * byte. Records are appended to the mapping as a length, a CRC32 of the
+ * payload and the payload, and a segment that cannot fit the next record
+ * is forced and replaced by a new one. An update touching several accounts
+ * is a single record, so it is replayed either entirely or not at all.
+ * Replay stops reading a segment at the first record that is incomplete or
+ * fails its checksum, and the bank always starts writing to a new segment.
+ * Replay can start from the LSN of a {@link Checkpoint}, and segments
+ * covered by checkpoints are deleted.
+ *
+ * <p>
+ * Forcing the mapping to disk is left to a single background thread as the
+ * {@link SyncPolicy} decides. Appending returns the LSN just past the
+ * record, which {@link #commit(long)} waits on, so every record appended
+ * while a force is in progress shares the next one.
+ */
+public class WriteAheadLog {
+    private static final byte OPEN = 1;
+    private static final byte UPDATE = 2;
+    private static final int HEADER_SIZE = 8;
+    private static final int PARTITION_BITS = 10;
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+
+    private final File directory;
+    private final int segmentSize;
+    private final SyncPolicy policy;
+    // waited on by operations committing, so appending never wakes them
+    private final Object durable = new Object();
+    private volatile long synced;
+    private volatile boolean closed;
+    // all guarded by this
+    private ByteBuffer scratch = ByteBuffer.allocate(256);
+    private final CRC32 crc = new CRC32();
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long end;
+
+    /**
+     * Create a log kept in a directory. Nothing is read or written until
+     * the log is replayed and started.
+     *
+     * @param directory   directory holding the segment files
+     * @param segmentSize size of each segment file in bytes
+     * @param policy      when the log is forced to disk
+     * @throws IOException if unable to create the directory
+     */
+    public WriteAheadLog(File directory, int segmentSize, SyncPolicy policy)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create log directory " +
+                directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.policy = policy;
+    }
+
+    /**
+     * Apply every record from an LSN onwards in the existing segments to a
+     * store, such as the records after the checkpoint the store was restored
+     * from.
+     *
+     * <p>
+     * Segments are read and checked in parallel, and accounts opened by the
+     * records are then opened in order so they keep their indices. The
+     * records are finally applied in parallel across partitions of the
+     * accounts, each partition applying its share of every record in order.
+     *
+     * @param store the store to restore the accounts into
+     * @param from  the LSN to replay from, 0 to replay the whole log
+     * @return the number of records applied
+     * @throws IOException if unable to read a segment, the log no longer
+     *                     holds the records from the LSN, or a record refers
+     *                     to an account which was never opened
+     */
+    public synchronized long replay(AccountStore store, long from)
+            throws IOException {
+        File[] files = listSegments();
+        if (files.length > 0 && baseOf(files[0]) > from) {
+            throw new IOException(String.format(
+                "Log starts at LSN %d, after the replay from %d",
+                baseOf(files[0]),
+                from));
+        }
+        List<Segment> segments;
+        try {
+            segments = IntStream.range(0, files.length)
+                    .parallel()
+                    .mapToObj(i -> read(files, i, from))
+                    .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        List<ByteBuffer> records = new ArrayList<>();
+        end = from;
+        for (int i = 0; i < files.length; i++) {
+            Segment segment = segments.get(i);
+            if (segment == null) {
+                continue;
+            } else if (segment.end == 0) {
+                // nothing was written before the bank stopped, and the new
+                // segment may start at the same LSN
+                if (!files[i].delete()) {
+                    throw new IOException("Unable to delete " + files[i]);
+                }
+                continue;
+            }
+            for (ByteBuffer payload : segment.payloads) {
+                open(payload.duplicate(), store);
+                records.add(payload);
+            }
+            end = Math.max(end, segment.base + segment.end);
+        }
+
+        int partitions = Runtime.getRuntime().availableProcessors();
+        IntStream.range(0, partitions).parallel().forEach(partition -> {
+            for (ByteBuffer payload : records) {
+                apply(payload.duplicate(), store, partition, partitions);
+            }
+        });
+        synced = end;
+        return records.size();
+    }
+
+    /**
+     * Start appending to a new segment, and start forcing the log as the
+     * sync policy decides.
+     *
+     * @throws IOException if unable to create the segment
+     */
+    public synchronized void start() throws IOException {
+        roll();
+        if (policy.isSyncing()) {
+            Thread thread = new Thread(this::syncLoop, "wal-sync");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Append the opening of an account, or the reset of its balance if it
+     * is already open.
+     *
+     * @param accountId ID of the account
+     * @param balance   initial balance of the account
+     * @param contended true if the account is expected to be updated by many
+     *                  threads at once
+     * @return the LSN just past the record
+     * @throws IOException if unable to create a new segment
+     */
+    public synchronized long appendOpen(
+            String accountId,
+            long balance,
+            boolean contended) throws IOException {
+        byte[] id = accountId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = reserve(1 + 4 + id.length + 8 + 1);
+        record.put(OPEN);
+        record.putInt(id.length);
+        record.put(id);
+        record.putLong(balance);
+        record.put(contended ? (byte) 1 : (byte) 0);
+        return write(record);
+    }
+
+    /**
+     * Append an update to the balances of some accounts, applied together.
+     *
+     * @param indices indices of the accounts in the store
+     * @param amounts amount added to each account, negative to withdraw
+     * @return the LSN just past the record
+     * @throws IOException if unable to create a new segment, or the update
+     *                     is too large for a segment
+     */
+    public synchronized long appendUpdate(int[] indices, long[] amounts)
+            throws IOException {
+        ByteBuffer record = reserve(1 + 4 + indices.length * (4 + 8));
+        record.put(UPDATE);
+        record.putInt(indices.length);
+        for (int i = 0; i < indices.length; i++) {
+            record.putInt(indices[i]);
+            record.putLong(amounts[i]);
+        }
+        return write(record);
+    }
+
+    /**
+     * Wait until the log is durable up to an LSN, if the sync policy makes
+     * operations wait. Returns at once otherwise.
+     *
+     * @param lsn the LSN to wait for
+     * @throws IOException if interrupted while waiting
+     */
+    public void commit(long lsn) throws IOException {
+        if (!policy.isWaitForSync() || synced >= lsn) {
+            return;
+        }
+        try {
+            synchronized (durable) {
+                while (synced < lsn && !closed) {
+                    durable.wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "Interrupted waiting for the log to be forced");
+        }
+    }
+
+    /**
+     * Delete the segments holding only records before an LSN, such as those
+     * covered by a checkpoint. The segment being appended to is kept.
+     *
+     * @param lsn the LSN the log is no longer needed before
+     * @return the number of segments deleted
+     * @throws IOException if unable to delete a segment
+     */
+    public synchronized int truncate(long lsn) throws IOException {
+        File[] files = listSegments();
+        int deleted = 0;
+        // a segment ends where the next one starts
+        for (int i = 0; i + 1 < files.length; i++) {
+            if (baseOf(files[i + 1]) > lsn) {
+                break;
+            }
+            if (!files[i].delete()) {
+                throw new IOException("Unable to delete " + files[i]);
+            }
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Retrieve the LSN just past the last record appended.
+     *
+     * @return the end of the log
+     */
+    public synchronized long getEnd() {
+        return end;
+    }
+
+    /**
+     * Force what has been appended and stop appending.
+     *
+     * @throws IOException if unable to close the segment
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        notify();
+        synchronized (durable) {
+            durable.notifyAll();
+        }
+        if (segment != null) {
+            if (policy.isSyncing()) {
+                segment.force();
+            }
+            channel.close();
+        }
+    }
+
+    /**
+     * Force the log whenever it has records that are not yet durable, or
+     * periodically, until the log is closed.
+     */
+    private void syncLoop() {
+        try {
+            while (true) {
+                MappedByteBuffer target;
+                long lsn;
+                synchronized (this) {
+                    if (policy.isWaitForSync()) {
+                        while (!closed && synced >= end) {
+                            wait();
+                        }
+                    } else {
+                        wait(policy.getIntervalMillis());
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    if (synced >= end) {
+                        continue;
+                    }
+                    target = segment;
+                    lsn = end;
+                }
+                // appends carry on while the mapping is forced
+                target.force();
+                advance(lsn);
+            }
+        } catch (InterruptedException e) {
+            // the bank is shutting down
+        }
+    }
+
+    /**
+     * Record that the log is durable up to an LSN, and wake the operations
+     * waiting for it.
+     *
+     * @param lsn the LSN the log has been forced up to
+     */
+    private void advance(long lsn) {
+        synchronized (durable) {
+            if (lsn > synced) {
+                synced = lsn;
+                durable.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Clear the scratch buffer for a record, leaving room for its header.
+     *
+     * @param payloadSize size of the payload in bytes
+     * @return the scratch buffer, positioned at the start of the payload
+     */
+    private ByteBuffer reserve(int payloadSize) {
+        if (scratch.capacity() < HEADER_SIZE + payloadSize) {
+            scratch = ByteBuffer.allocate(
+                Math.max(HEADER_SIZE + payloadSize, scratch.capacity() * 2));
+        }
+        scratch.clear();
+        scratch.position(HEADER_SIZE);
+        return scratch;
+    }
+
+    /**
+     * Fill in the header of a record in the scratch buffer and append it to
+     * the current segment, moving to a new segment if it does not fit.
+     *
+     * @param record the scratch buffer, positioned after the payload
+     * @return the LSN just past the record
+     * @throws IOException if unable to create a new segment, or the record
+     *                     is too large for a segment
+     */
+    private long write(ByteBuffer record) throws IOException {
+        if (closed) {
+            throw new IOException("Log is closed");
+        }
+        record.flip();
+        ByteBuffer payload = record.duplicate();
+        payload.position(HEADER_SIZE);
+        crc.reset();
+        crc.update(payload);
+        int length = record.limit() - HEADER_SIZE;
+        record.putInt(0, length);
+        record.putInt(4, (int) crc.getValue());
+        if (segment.remaining() < record.limit()) {
+            if (record.limit() > segmentSize) {
+                throw new IOException(
+                    "Update of " + length + " bytes is larger than a segment");
+            }
+            roll();
+        }
+        boolean clean = synced >= end;
+        segment.put(record);
+        end += record.limit();
+        if (clean && policy.isWaitForSync()) {
+            // wake the sync thread, it is idle while the log is clean
+            notify();
+        }
+        return end;
+    }
+
+    /**
+     * Force the current segment, if any, and start a new one at the end of
+     * the log.
+     *
+     * @throws IOException if unable to create the segment
+     */
+    private void roll() throws IOException {
+        if (segment != null) {
+            if (policy.isSyncing()) {
+                segment.force();
+                advance(end);
+            }
+            channel.close();
+        }
+        File file = new File(
+            directory,
+            String.format("%s%020d%s", PREFIX, end, SUFFIX));
+        channel = FileChannel.open(
+            file.toPath(),
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+
+    /**
+     * List the segment files in the directory, oldest first.
+     *
+     * @return the segment files
+     */
+    private File[] listSegments() {
+        File[] files = directory.listFiles((dir, name) ->
+            name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        // the zero padded LSNs sort in the same order as their values
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Find the LSN of the first byte of a segment from its name.
+     *
+     * @param file the segment file
+     * @return the LSN the segment starts at
+     */
+    private static long baseOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(
+            PREFIX.length(),
+            name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Read the intact records of a segment which start at or after an LSN
+     * and before the next segment starts.
+     *
+     * @param files the segment files, oldest first
+     * @param i     index of the segment to read
+     * @param from  the LSN to read from
+     * @return the records read, or null if the whole segment is before the
+     *         LSN
+     * @throws UncheckedIOException if unable to read the segment
+     */
+    private static Segment read(File[] files, int i, long from) {
+        long base = baseOf(files[i]);
+        long next = i + 1 < files.length ?
+            baseOf(files[i + 1]) :
+            Long.MAX_VALUE;
+        if (next <= from) {
+            return null;
+        }
+        try (FileChannel in = FileChannel.open(
+                files[i].toPath(),
+                StandardOpenOption.READ)) {
+            ByteBuffer buffer = in.map(
+                FileChannel.MapMode.READ_ONLY,
+                0,
+                in.size());
+            // a segment left torn by a crash may still hold records past
+            // where the next segment starts, which must not be replayed
+            buffer.limit((int) Math.min(buffer.limit(), next - base));
+            buffer.position((int) Math.max(0, from - base));
+            Segment segment = new Segment(base);
+            CRC32 checksum = new CRC32();
+            ByteBuffer payload;
+            while ((payload = next(buffer, checksum)) != null) {
+                segment.payloads.add(payload);
+            }
+            segment.end = buffer.position();
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Read the next record of a segment, checking it is complete and intact.
+     *
+     * @param buffer   the segment, positioned at the next record
+     * @param checksum used to check the record
+     * @return the payload of the record, or null if there are no more valid
+     *         records, leaving the segment positioned after the last
+     */
+    private static ByteBuffer next(ByteBuffer buffer, CRC32 checksum) {
+        int start = buffer.position();
+        if (buffer.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        int length = buffer.getInt(start);
+        if (length <= 0 || length > buffer.remaining() - HEADER_SIZE) {
+            return null;
+        }
+        buffer.position(start + HEADER_SIZE);
+        ByteBuffer payload = buffer.slice();
+        payload.limit(length);
+        checksum.reset();
+        checksum.update(payload.duplicate());
+        int expected = buffer.getInt(start + 4);
+        if ((int) checksum.getValue() != expected) {
+            buffer.position(start);
+            return null;
+        }
+        buffer.position(start + HEADER_SIZE + length);
+        return payload;
+    }
+
+    /**
+     * Open the account a record opens if it is not open yet, so that new
+     * accounts are given their indices in log order. The balance is set
+     * when the record is applied.
+     *
+     * @param payload the payload of the record
+     * @param store   the store to open the account in
+     * @throws IOException if the record is not recognised, or refers to an
+     *                     account which was never opened
+     */
+    private static void open(ByteBuffer payload, AccountStore store)
+            throws IOException {
+        byte type = payload.get();
+        if (type == OPEN) {
+            String accountId = readId(payload);
+            payload.getLong();
+            boolean contended = payload.get() != 0;
+            if (!store.contains(accountId)) {
+                store.open(accountId, 0, contended);
+            }
+        } else if (type == UPDATE) {
+            int count = payload.getInt();
+            for (int i = 0; i < count; i++) {
+                int index = payload.getInt();
+                payload.getLong();
+                if (index < 0 || index >= store.size()) {
+                    throw new IOException(
+                        "Log updates unknown account index " + index);
+                }
+            }
+        } else {
+            throw new IOException("Unknown log record type " + type);
+        }
+    }
+
+    /**
+     * Apply the part of a record which falls in one partition of the
+     * accounts to a store. Records have been checked by
+     * {@link #open(ByteBuffer, AccountStore)}.
+     *
+     * @param payload    the payload of the record
+     * @param store      the store to apply it to
+     * @param partition  the partition to apply
+     * @param partitions the number of partitions
+     */
+    private static void apply(
+            ByteBuffer payload,
+            AccountStore store,
+            int partition,
+            int partitions) {
+        if (payload.get() == OPEN) {
+            String accountId = readId(payload);
+            int index = store.indexOf(accountId);
+            if (partitionOf(index, partitions) == partition) {
+                store.open(
+                    accountId,
+                    payload.getLong(),
+                    payload.get() != 0);
+            }
+        } else {
+            int count = payload.getInt();
+            for (int i = 0; i < count; i++) {
+                int index = payload.getInt();
+                long amount = payload.getLong();
+                if (partitionOf(index, partitions) == partition) {
+                    store.add(index, amount);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the partition of an account. Neighbouring accounts share a
+     * partition, so threads replaying different partitions do not write
+     * to the same cache lines.
+     *
+     * @param index      index of the account
+     * @param partitions the number of partitions
+     * @return the partition of the account
+     */
+    private static int partitionOf(int index, int partitions) {
+        return (index >>> PARTITION_BITS) % partitions;
+    }
+
+    /**
+     * Read the ID of the account opened by a record.
+     *
+     * @param payload the payload, positioned at the ID
+     * @return the account ID
+     */
+    private static String readId(ByteBuffer payload) {
+        byte[] id = new byte[payload.getInt()];
+        payload.get(id);
+        return new String(id, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Records read from one segment during replay.
+     */
+    private static class Segment {
+        private final long base;
+        private final List<ByteBuffer> payloads = new ArrayList<>();
+        private int end;
+
+        /**
+         * Create an empty segment.
+         *
+         * @param base the LSN the segment starts at
+         */
+        private Segment(long base) {
+            this.base = base;
+        }
+    }
+}